@@ -0,0 +1,31 @@
+/**
+ * Created: Oct 18, 2026
+ *
+ * Add indexes that match the sort orders used by the project listings. The
+ * listings page through the projects with a seek on (sort field, id), which
+ * only stays cheap on deep pages when an index delivers the rows in that
+ * order.
+ */
+
+-- Community project listing
+CREATE INDEX project_shared_name_idx ON blocklyprop.project (shared, name, id);
+CREATE INDEX project_shared_modified_idx ON blocklyprop.project (shared, modified, id);
+CREATE INDEX project_shared_type_idx ON blocklyprop.project (shared, type, id);
+CREATE INDEX project_shared_board_idx ON blocklyprop.project (shared, board, id);
+CREATE INDEX project_shared_user_idx ON blocklyprop.project (shared, id_user, id);
+
+-- User project listings
+CREATE INDEX project_user_name_idx ON blocklyprop.project (id_user, name, id);
+CREATE INDEX project_user_shared_modified_idx ON blocklyprop.project (id_user, shared, modified, id);
+
+-- Record schema change
+INSERT INTO blocklyprop.admin (
+    db_version, 
+    db_script,
+    notes
+    )
+VALUES (
+    15,
+    '0015-project-list-indexes',
+    'Add indexes to support keyset paging of project listings'
+    );
@@ -0,0 +1,35 @@
+/**
+ * Created: Oct 18, 2026
+ *
+ * Add a content addressed store for project code. Each distinct code block is
+ * stored once, keyed by the SHA-256 hash of the code, and counts the projects
+ * that refer to it. The code is stored encoded, the first byte identifying
+ * the codec, and compressed. Projects refer to their code through
+ * project.code_hash. When code_hash is set, it replaces the plain text code
+ * column.
+ *
+ * Existing projects are converted by the application in the background when
+ * project.code.compression.convert is enabled.
+ */
+
+CREATE TABLE blocklyprop.project_code (
+    hash        CHAR(64)    NOT NULL,
+    code        LONGBLOB    NOT NULL,
+    ref_count   INT         NOT NULL DEFAULT 0,
+    created     TIMESTAMP   NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (hash)
+);
+
+ALTER TABLE blocklyprop.project ADD code_hash CHAR(64) NULL AFTER code;
+
+-- Record schema change
+INSERT INTO blocklyprop.admin (
+    db_version, 
+    db_script,
+    notes
+    )
+VALUES (
+    16,
+    '0016-project-code-store',
+    'Add content addressed project code store'
+    );
@@ -0,0 +1,38 @@
+/**
+ * Created: Oct 18, 2026
+ *
+ * Add the revision history of project code. Each saved version of the code
+ * is stored either as a snapshot of the complete code (snapshot = 1), encoded
+ * as in project_code, or as a delta against the previous revision. depth
+ * counts the deltas since the last snapshot.
+ *
+ * Revisions are removed with their project.
+ */
+
+CREATE TABLE IF NOT EXISTS blocklyprop.project_revision (
+    id          BIGINT      NOT NULL AUTO_INCREMENT,
+    id_project  BIGINT      NOT NULL,
+    revision    INT         NOT NULL,
+    snapshot    BOOLEAN     NOT NULL,
+    depth       INT         NOT NULL DEFAULT 0,
+    code_size   INT         NOT NULL,
+    data        LONGBLOB    NOT NULL,
+    created     TIMESTAMP   NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (id),
+    UNIQUE KEY project_revision_project_revision_uk (id_project, revision),
+    CONSTRAINT project_revision_project_id_fk FOREIGN KEY (id_project)
+        REFERENCES blocklyprop.project (id) ON DELETE CASCADE
+) ENGINE=InnoDB
+  DEFAULT CHARSET=utf8;
+
+-- Record schema change
+INSERT INTO blocklyprop.admin (
+    db_version, 
+    db_script,
+    notes
+    )
+VALUES (
+    17,
+    '0017-project-revisions',
+    'Add project code revision history'
+    );
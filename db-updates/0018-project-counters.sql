@@ -0,0 +1,45 @@
+/**
+ * Created: Oct 18, 2026
+ *
+ * Add materialized project counts. Each row holds the number of projects and
+ * of shared projects owned by a user. The row with id_user 0 holds the total
+ * number of shared projects.
+ *
+ * The counts are maintained by the application and periodically reconciled
+ * with the project table.
+ */
+
+CREATE TABLE IF NOT EXISTS blocklyprop.project_counter (
+    id_user     BIGINT      NOT NULL,
+    projects    INT         NOT NULL DEFAULT 0,
+    shared      INT         NOT NULL DEFAULT 0,
+    PRIMARY KEY (id_user)
+) ENGINE=InnoDB
+  DEFAULT CHARSET=utf8;
+
+-- Initial counts
+INSERT INTO blocklyprop.project_counter (id_user, projects, shared)
+    SELECT id_user, COUNT(*), SUM(IF(shared, 1, 0))
+    FROM blocklyprop.project
+    GROUP BY id_user
+ON DUPLICATE KEY UPDATE
+    projects = VALUES(projects),
+    shared = VALUES(shared);
+
+INSERT INTO blocklyprop.project_counter (id_user, projects, shared)
+    SELECT 0, 0, COALESCE(SUM(IF(shared, 1, 0)), 0)
+    FROM blocklyprop.project
+ON DUPLICATE KEY UPDATE
+    shared = VALUES(shared);
+
+-- Record schema change
+INSERT INTO blocklyprop.admin (
+    db_version, 
+    db_script,
+    notes
+    )
+VALUES (
+    18,
+    '0018-project-counters',
+    'Add materialized project counts'
+    );
@@ -0,0 +1,35 @@
+/**
+ * Created: Oct 18, 2026
+ *
+ * Add the checkpoint of the bulk migration of project code to the current
+ * block version. The single row is updated after every chunk of projects, so
+ * an interrupted migration resumes after the last project it examined.
+ */
+
+CREATE TABLE IF NOT EXISTS blocklyprop.project_migration (
+    id              TINYINT     NOT NULL,
+    state           VARCHAR(16) NOT NULL,
+    dry_run         BOOLEAN     NOT NULL DEFAULT FALSE,
+    block_version   SMALLINT    NOT NULL,
+    last_id         BIGINT      NOT NULL DEFAULT 0,
+    examined        BIGINT      NOT NULL DEFAULT 0,
+    migrated        BIGINT      NOT NULL DEFAULT 0,
+    unchanged       BIGINT      NOT NULL DEFAULT 0,
+    skipped         BIGINT      NOT NULL DEFAULT 0,
+    failed          BIGINT      NOT NULL DEFAULT 0,
+    started         TIMESTAMP   NULL,
+    updated         TIMESTAMP   NULL,
+    PRIMARY KEY (id)
+) ENGINE=InnoDB
+  DEFAULT CHARSET=utf8;
+
+INSERT INTO blocklyprop.admin (
+    db_version, 
+    db_script,
+    notes
+    )
+VALUES (
+    19,
+    '0019-project-migration',
+    'Add the bulk project migration checkpoint'
+    );
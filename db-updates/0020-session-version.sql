@@ -0,0 +1,21 @@
+/**
+ * Created: Oct 18, 2026
+ *
+ * Add a version to sessions. The version is raised by every update of a
+ * session, so a server holding a session in its session cache can check that
+ * the session was not changed through another server without reading it.
+ */
+
+ALTER TABLE blocklyprop.session ADD version INT NOT NULL DEFAULT 0 AFTER attributes;
+
+-- Record schema change
+INSERT INTO blocklyprop.admin (
+    db_version, 
+    db_script,
+    notes
+    )
+VALUES (
+    20,
+    '0020-session-version',
+    'Add session versions for the session cache'
+    );
@@ -0,0 +1,20 @@
+/**
+ * Created: Oct 18, 2026
+ *
+ * Index sessions by last access time, so the session reaper can find expired
+ * sessions, oldest first, without scanning the session table.
+ */
+
+CREATE INDEX session_lastaccesstime_idx ON blocklyprop.session (lastAccessTime);
+
+-- Record schema change
+INSERT INTO blocklyprop.admin (
+    db_version, 
+    db_script,
+    notes
+    )
+VALUES (
+    21,
+    '0021-session-expiry-index',
+    'Index sessions by last access time for the session reaper'
+    );
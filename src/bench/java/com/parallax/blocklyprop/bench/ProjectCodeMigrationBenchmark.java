@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.blocklyprop.bench;
+
+import com.parallax.server.blocklyprop.db.enums.ProjectType;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeMigration;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeMigrations;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Migration of project code read from the database, as done by
+ * ProjectDaoImpl.fixPropcProjectBlocks() for projects of block version 0.
+ *
+ * Current code has nothing to migrate, legacy code has a deprecated block in
+ * one of ten blocks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProjectCodeMigrationBenchmark {
+
+    private static final Supplier<String> BLOCK_IDS = new Supplier<String>() {
+        @Override
+        public String get() {
+            return "0123456789abcdefghij";
+        }
+    };
+
+    @Param({"small", "medium", "huge"})
+    public String size;
+
+    @Param({"current", "legacy"})
+    public String code;
+
+    private String projectCode;
+
+
+    @Setup
+    public void setup() {
+        projectCode = ProjectFixtures.projectCode(ProjectFixtures.blocks(size), "legacy".equals(code), 42);
+    }
+
+    @Benchmark
+    public String migrate() {
+        return ProjectCodeMigrations.standard().migrate(projectCode, ProjectType.PROPC, (short) 0, BLOCK_IDS);
+    }
+
+    @Benchmark
+    public boolean screen() {
+        return ProjectCodeMigration.mayChange(projectCode, ProjectType.PROPC);
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.blocklyprop.bench;
+
+import com.google.gson.JsonObject;
+import com.google.inject.Provider;
+import com.parallax.server.blocklyprop.ProjectSummary;
+import com.parallax.server.blocklyprop.SessionData;
+import com.parallax.server.blocklyprop.converter.ProjectConverter;
+import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectSharingRecord;
+import com.parallax.server.blocklyprop.services.ProjectSharingService;
+import com.parallax.server.blocklyprop.services.UserService;
+import com.parallax.server.blocklyprop.services.impl.SecurityServiceImpl;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Conversion of projects to JSON for the project REST API.
+ *
+ * The services behind the converter answer from memory, so only the
+ * conversion itself is measured. The project is either owned by the current
+ * user, which adds the share key lookup, or by someone else.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProjectConverterBenchmark {
+
+    private static final long OWNER = 1234;
+
+    @Param({"owner", "visitor"})
+    public String viewer;
+
+    private ProjectConverter converter;
+
+    private ProjectRecord project;
+
+    private ProjectSummary summary;
+
+    private Long idCurrentUser;
+
+
+    @Setup
+    public void setup() {
+        idCurrentUser = "owner".equals(viewer) ? OWNER : OWNER + 1;
+
+        final SessionData sessionData = new SessionData();
+        sessionData.setIdUser(idCurrentUser);
+
+        SecurityServiceImpl securityService = new SecurityServiceImpl();
+        securityService.setSessionDataProvider(new Provider<SessionData>() {
+            @Override
+            public SessionData get() {
+                return sessionData;
+            }
+        });
+
+        ProjectSharingRecord sharing = new ProjectSharingRecord();
+        sharing.setIdProject(1L);
+        sharing.setSharekey("5c0a7b3e-8d41-4f0e-a0c2-7e9b6d21f3aa");
+
+        converter = new ProjectConverter();
+        converter.setUserService(stub(UserService.class, "getUserScreenName", "robotics-club"));
+        converter.setProjectSharingService(
+                stub(ProjectSharingService.class, "getSharingInfo", Collections.singletonList(sharing)));
+
+        project = ProjectFixtures.projectRecord(1, OWNER, ProjectFixtures.projectCode(ProjectFixtures.SMALL, false, 42));
+        summary = ProjectFixtures.projectSummary(1, OWNER);
+    }
+
+    @Benchmark
+    public JsonObject toJson() {
+        return converter.toJson(project);
+    }
+
+    @Benchmark
+    public JsonObject toListJson() {
+        return converter.toListJson(summary, idCurrentUser);
+    }
+
+
+    // A service answering one method, and null for all others
+    private static <T> T stub(Class<T> service, final String method, final Object answer) {
+        return service.cast(Proxy.newProxyInstance(
+                service.getClassLoader(),
+                new Class<?>[] {service},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method invoked, Object[] args) {
+                        return invoked.getName().equals(method) ? answer : null;
+                    }
+                }));
+    }
+
+}
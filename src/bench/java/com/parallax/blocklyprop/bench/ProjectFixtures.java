@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.blocklyprop.bench;
+
+import com.parallax.client.cloudsession.objects.User;
+import com.parallax.server.blocklyprop.ProjectSummary;
+import com.parallax.server.blocklyprop.SessionData;
+import com.parallax.server.blocklyprop.db.enums.ProjectType;
+import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Random;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+
+
+/**
+ * Generators for realistic benchmark data.
+ *
+ * All generators are seeded, so every run of a benchmark works on the same
+ * data and results can be compared between releases.
+ */
+public final class ProjectFixtures {
+
+    /**
+     * Project sizes, in blocks. A small project fits on a screen, a huge one
+     * is the size of the largest projects in the community listing.
+     */
+    public static final int SMALL = 20;
+    public static final int MEDIUM = 500;
+    public static final int HUGE = 10000;
+
+    private static final String BLOCK_ID_CHARACTERS
+            = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz!#()*-+./:;=@[]^_`{|}~";
+
+    private static final String[] STATEMENTS = {
+        "console_print", "pause", "make_pin", "variables_set", "servo_move", "ab_drive_goto", "comment"
+    };
+
+    private static final String[] OPERATORS = {"==", "!=", "&lt;", "&gt;", "&lt;=", "&gt;="};
+
+    private static final String[] LEGACY_OPERATORS = {"EQ", "NEQ", "LT", "GT", "LTE", "GTE"};
+
+    private static final String[] LEGACY_STATEMENTS = {"spin_comment", "spin_integer"};
+
+
+    private ProjectFixtures() {
+    }
+
+    /**
+     * Size of a project by name
+     *
+     * @param size small, medium or huge
+     * @return the number of blocks
+     */
+    public static int blocks(String size) {
+        switch (size) {
+            case "small":
+                return SMALL;
+
+            case "medium":
+                return MEDIUM;
+
+            case "huge":
+                return HUGE;
+
+            default:
+                throw new IllegalArgumentException("Unknown project size " + size);
+        }
+    }
+
+    /**
+     * Generate the code of a PropC project
+     *
+     * The code is made of stacks of statements, with if blocks holding a
+     * comparison and a nested statement, the way the editor saves it.
+     *
+     * @param blocks the number of blocks
+     * @param legacy when true, one block in ten is a deprecated block as
+     * saved by block version 0
+     * @param seed
+     * @return
+     */
+    public static String projectCode(int blocks, boolean legacy, long seed) {
+        Random random = new Random(seed);
+        StringBuilder code = new StringBuilder(blocks * 160);
+
+        code.append("<xml xmlns=\"http://www.w3.org/1999/xhtml\">");
+
+        int written = 0;
+        while (written < blocks) {
+            int stack = Math.min(blocks - written, 5 + random.nextInt(20));
+
+            code.append("<block type=\"activitybot_init\" id=\"").append(blockId(random))
+                    .append("\" x=\"").append(25 + random.nextInt(800))
+                    .append("\" y=\"").append(25 + random.nextInt(2000)).append("\">")
+                    .append("<field name=\"BOT\">abdrive.h</field>");
+
+            int closing = 0;
+            for (int i = 1; i < stack; i++) {
+                boolean deprecated = legacy && random.nextInt(10) == 0;
+
+                code.append("<next>");
+                if (random.nextInt(4) == 0) {
+                    appendIf(code, random, deprecated);
+                } else {
+                    appendStatement(code, random, deprecated);
+                }
+                closing++;
+            }
+
+            for (int i = 0; i < closing; i++) {
+                code.append("</block></next>");
+            }
+            code.append("</block>");
+
+            written += stack;
+        }
+
+        return code.append("</xml>").toString();
+    }
+
+    /**
+     * Generate a project as read from the database
+     *
+     * @param id
+     * @param idUser the owner of the project
+     * @param code
+     * @return
+     */
+    public static ProjectRecord projectRecord(long id, long idUser, String code) {
+        ProjectRecord project = new ProjectRecord();
+        project.setId(id);
+        project.setIdUser(idUser);
+        project.setIdClouduser(idUser);
+        project.setName("Line follower " + id);
+        project.setDescription("Follows a black line on the floor, and stops at the end of the line.");
+        project.setDescriptionHtml("<p>Follows a black line on the floor, and stops at the end of the line.</p>");
+        project.setCode(code);
+        project.setCodeBlockVersion((short) 1);
+        project.setType(ProjectType.PROPC);
+        project.setBoard("activity-board");
+        project.setPrivate(false);
+        project.setShared(true);
+        project.setCreated(calendar(1514764800000L + id * 60000L));
+        project.setModified(calendar(1530403200000L + id * 60000L));
+        return project;
+    }
+
+    /**
+     * Generate a project as listed in the community listing
+     *
+     * @param id
+     * @param idUser the owner of the project
+     * @return
+     */
+    public static ProjectSummary projectSummary(long id, long idUser) {
+        ProjectSummary project = new ProjectSummary();
+        project.setId(id);
+        project.setIdUser(idUser);
+        project.setName("Line follower " + id);
+        project.setDescription("Follows a black line on the floor, and stops at the end of the line.");
+        project.setType(ProjectType.PROPC);
+        project.setBoard("activity-board");
+        project.setPrivate(false);
+        project.setShared(true);
+        project.setCreated(calendar(1514764800000L + id * 60000L));
+        project.setModified(calendar(1530403200000L + id * 60000L));
+        project.setOwnerName("robotics-club-" + idUser);
+        return project;
+    }
+
+    /**
+     * Generate the Shiro session of a signed in user
+     *
+     * @param idUser
+     * @return
+     */
+    public static SimpleSession session(long idUser) {
+        User user = new User();
+        user.setScreenname("robotics-club-" + idUser);
+
+        SessionData sessionData = new SessionData();
+        sessionData.setUser(user);
+        sessionData.setIdUser(idUser);
+        sessionData.setLocale("en");
+
+        HashMap<Object, Object> attributes = new HashMap<>();
+        attributes.put(DefaultSubjectContext.PRINCIPALS_SESSION_KEY,
+                new SimplePrincipalCollection("user" + idUser + "@example.com", "CloudSession"));
+        attributes.put(DefaultSubjectContext.AUTHENTICATED_SESSION_KEY, Boolean.TRUE);
+
+        // Session scoped objects are stored under their Guice key
+        attributes.put("Key[type=com.parallax.server.blocklyprop.SessionData, annotation=[none]]", sessionData);
+
+        SimpleSession session = new SimpleSession("203.0.113.7");
+        session.setId("3f2c1a9e-6a1b-4c5d-9e8f-" + String.format("%012d", idUser));
+        session.setStartTimestamp(new Date(1530403200000L));
+        session.setLastAccessTime(new Date(1530403260000L));
+        session.setTimeout(28800000);
+        session.setAttributes(attributes);
+        return session;
+    }
+
+
+    private static void appendIf(StringBuilder code, Random random, boolean deprecated) {
+        code.append("<block type=\"").append(deprecated ? "controls_boolean_if" : "controls_if")
+                .append("\" id=\"").append(blockId(random)).append("\">")
+                .append("<value name=\"IF0\"><block type=\"")
+                .append(deprecated ? "logic_boolean_compare" : "logic_compare")
+                .append("\" id=\"").append(blockId(random)).append("\">");
+
+        int operator = random.nextInt(OPERATORS.length);
+        code.append("<field name=\"OP\">")
+                .append(deprecated ? LEGACY_OPERATORS[operator] : OPERATORS[operator])
+                .append("</field>");
+
+        appendNumber(code, random, "A");
+        appendNumber(code, random, "B");
+
+        code.append("</block></value><statement name=\"DO0\">");
+        appendStatement(code, random, false);
+        code.append("</block></statement>");
+    }
+
+    // Leaves the block open for a following <next>
+    private static void appendStatement(StringBuilder code, Random random, boolean deprecated) {
+        String type = deprecated
+                ? LEGACY_STATEMENTS[random.nextInt(LEGACY_STATEMENTS.length)]
+                : STATEMENTS[random.nextInt(STATEMENTS.length)];
+
+        code.append("<block type=\"").append(type).append("\" id=\"").append(blockId(random)).append("\">");
+
+        switch (type) {
+            case "comment":
+                code.append("<field name=\"COMMENT_TEXT\">Check the sensors</field>");
+                break;
+
+            case "spin_comment":
+                code.append("<field name=\"COMMENT\">Check the sensors</field>");
+                break;
+
+            case "spin_integer":
+                code.append("<field name=\"INT_VALUE\">").append(random.nextInt(1000)).append("</field>");
+                break;
+
+            case "console_print":
+                code.append("<field name=\"MESSAGE\">Distance: ").append(random.nextInt(100)).append(" cm</field>");
+                break;
+
+            default:
+                code.append("<field name=\"PIN\">").append(random.nextInt(16)).append("</field>");
+                appendNumber(code, random, "VALUE");
+        }
+    }
+
+    private static void appendNumber(StringBuilder code, Random random, String input) {
+        code.append("<value name=\"").append(input).append("\"><block type=\"math_number\" id=\"")
+                .append(blockId(random)).append("\"><field name=\"NUM\">")
+                .append(random.nextInt(1000)).append("</field></block></value>");
+    }
+
+    private static String blockId(Random random) {
+        char[] id = new char[20];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = BLOCK_ID_CHARACTERS.charAt(random.nextInt(BLOCK_ID_CHARACTERS.length()));
+        }
+
+        // Block ids are attribute values
+        return new String(id).replace("&", "&amp;").replace("<", "&lt;");
+    }
+
+    private static GregorianCalendar calendar(long time) {
+        GregorianCalendar calendar = new GregorianCalendar();
+        calendar.setTimeInMillis(time);
+        return calendar;
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.parallax.blocklyprop.bench;
+
+import com.parallax.server.blocklyprop.db.utils.SessionAttributeCodec;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Encoding of the attributes of a signed in user's session, with Java
+ * serialization and with the compact codec. The encoded size of each codec
+ * is reported with the encode results, as the secondary result bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionAttributeCodecBenchmark {
+
+    @Param({"java", "compact"})
+    public String codec;
+
+    private SessionAttributeCodec sessionAttributeCodec;
+
+    private Map<Object, Object> attributes;
+
+    private byte[] encoded;
+
+
+    @Setup
+    public void setup() {
+        BaseConfiguration configuration = new BaseConfiguration();
+        configuration.setProperty("session.attributes.codec", codec);
+        sessionAttributeCodec = new SessionAttributeCodec(configuration);
+
+        attributes = new HashMap<>(ProjectFixtures.session(1234).getAttributes());
+        encoded = sessionAttributeCodec.encode(attributes);
+    }
+
+    @Benchmark
+    public byte[] encode(EncodedSize size) {
+        byte[] value = sessionAttributeCodec.encode(attributes);
+        size.bytes = value.length;
+        return value;
+    }
+
+    @Benchmark
+    public Map<Object, Object> decode() {
+        return sessionAttributeCodec.decode(encoded);
+    }
+
+
+    /**
+     * The encoded size, reported as is rather than per operation
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class EncodedSize {
+
+        public long bytes;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.blocklyprop.bench;
+
+import com.parallax.server.blocklyprop.db.generated.tables.records.SessionRecord;
+import com.parallax.server.blocklyprop.security.BlocklyPropSessionDao;
+import java.util.concurrent.TimeUnit;
+import org.apache.shiro.session.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Conversion between Shiro sessions and session records, done by
+ * BlocklyPropSessionDao on every session read and update.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionConversionBenchmark {
+
+    private final Converter converter = new Converter();
+
+    private Session session;
+
+    private SessionRecord sessionRecord;
+
+
+    @Setup
+    public void setup() {
+        session = ProjectFixtures.session(1234);
+        sessionRecord = converter.toRecord(session);
+    }
+
+    @Benchmark
+    public SessionRecord toRecord() {
+        return converter.toRecord(session);
+    }
+
+    @Benchmark
+    public Session toSession() {
+        return converter.toSession(sessionRecord);
+    }
+
+
+    /**
+     * Exposes the conversions of the session DAO
+     */
+    static class Converter extends BlocklyPropSessionDao {
+
+        SessionRecord toRecord(Session session) {
+            return convert(session);
+        }
+
+        Session toSession(SessionRecord sessionRecord) {
+            return convert(sessionRecord);
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop;
+
+import java.util.GregorianCalendar;
+
+
+/**
+ * Project code saved by a user that has not been written to the database yet
+ */
+public class ProjectCodeSave {
+
+    private final Long idProject;
+    private final Long idUser;
+    private final String code;
+    private final GregorianCalendar saved;
+
+
+    /**
+     * @param idProject
+     * @param idUser the user that saved the code
+     * @param code
+     * @param saved the time the code was saved
+     */
+    public ProjectCodeSave(Long idProject, Long idUser, String code, GregorianCalendar saved) {
+        this.idProject = idProject;
+        this.idUser = idUser;
+        this.code = code;
+        this.saved = saved;
+    }
+
+    public Long getIdProject() {
+        return idProject;
+    }
+
+    public Long getIdUser() {
+        return idUser;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public GregorianCalendar getSaved() {
+        return saved;
+    }
+
+    @Override
+    public String toString() {
+        return "ProjectCodeSave{" + "idProject=" + idProject + ", idUser=" + idUser + '}';
+    }
+
+}
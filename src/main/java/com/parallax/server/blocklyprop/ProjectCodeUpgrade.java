@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop;
+
+
+/**
+ * Project code with its deprecated blocks replaced, waiting to be written
+ * together with the current block version
+ */
+public class ProjectCodeUpgrade {
+
+    private final Long idProject;
+    private final Short fromVersion;
+    private final String code;
+
+
+    /**
+     * @param idProject
+     * @param fromVersion the block version of the code that was migrated
+     * @param code the migrated code, or null if the code does not change
+     */
+    public ProjectCodeUpgrade(Long idProject, Short fromVersion, String code) {
+        this.idProject = idProject;
+        this.fromVersion = fromVersion;
+        this.code = code;
+    }
+
+    public Long getIdProject() {
+        return idProject;
+    }
+
+    public Short getFromVersion() {
+        return fromVersion;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    @Override
+    public String toString() {
+        return "ProjectCodeUpgrade{" + "idProject=" + idProject + ", fromVersion=" + fromVersion + '}';
+    }
+
+}
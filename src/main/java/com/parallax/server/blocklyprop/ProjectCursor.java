@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop;
+
+import com.parallax.server.blocklyprop.db.enums.ProjectType;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.GregorianCalendar;
+
+
+/**
+ * Position in a sorted project listing.
+ *
+ * A cursor remembers the sort, the sort order and the sort key of the last
+ * project on a page. The next page is read by seeking past that key instead
+ * of skipping over all the preceding rows, so every page costs the same no
+ * matter how deep into the listing it is.
+ *
+ * Cursors are handed to clients as opaque tokens. A token is only meaningful
+ * for the listing that produced it.
+ */
+public class ProjectCursor {
+
+    private static final String SEPARATOR = ":";
+
+    // Sort values are prefixed so that a NULL value can be told apart from
+    // an empty one
+    private static final String NULL_VALUE = "n";
+
+    private static final String VALUE_PREFIX = "v";
+
+    private final TableSort sort;
+
+    private final TableOrder order;
+
+    private final Long id;
+
+    private final Object value;
+
+
+    /**
+     * Create a cursor pointing after a project
+     *
+     * @param sort the project field the listing is sorted on
+     * @param order the listing sort order
+     * @param id the id of the last project returned
+     * @param value the value of the sort field of the last project returned
+     */
+    public ProjectCursor(TableSort sort, TableOrder order, Long id, Object value) {
+        this.sort = sort == null ? TableSort.name : sort;
+        this.order = order == null ? TableOrder.asc : order;
+        this.id = id;
+        this.value = value;
+    }
+
+    /**
+     * Create a cursor pointing after the last project of a page
+     *
+     * @param project the last project on the page
+     * @param sort the project field the listing is sorted on
+     * @param order the listing sort order
+     * @return
+     */
+    public static ProjectCursor after(ProjectSummary project, TableSort sort, TableOrder order) {
+        TableSort listSort = sort == null ? TableSort.name : sort;
+        return new ProjectCursor(listSort, order, project.getId(), sortValue(project, listSort));
+    }
+
+    public TableSort getSort() {
+        return sort;
+    }
+
+    public TableOrder getOrder() {
+        return order;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+
+    /**
+     * Convert the cursor to an opaque, URL safe token
+     *
+     * @return
+     */
+    public String encode() {
+        StringBuilder token = new StringBuilder();
+        token.append(sort.name()).append(SEPARATOR);
+        token.append(order.name()).append(SEPARATOR);
+        token.append(id).append(SEPARATOR);
+        token.append(encodeValue());
+
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(token.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Convert a token created by encode() back into a cursor
+     *
+     * @param token
+     * @return the cursor, or null if no token was supplied
+     * @throws IllegalArgumentException if the token is not a valid cursor
+     */
+    public static ProjectCursor decode(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+
+        String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)
+                .split(SEPARATOR, 4);
+
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Malformed project cursor");
+        }
+
+        try {
+            TableSort sort = TableSort.valueOf(parts[0]);
+            TableOrder order = TableOrder.valueOf(parts[1]);
+            Long id = Long.valueOf(parts[2]);
+
+            return new ProjectCursor(sort, order, id, decodeValue(sort, parts[3]));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Malformed project cursor", ex);
+        }
+    }
+
+
+    private static Object sortValue(ProjectSummary project, TableSort sort) {
+        switch (sort) {
+            case type:
+                return project.getType();
+
+            case board:
+                return project.getBoard();
+
+            case user:
+                return project.getIdUser();
+
+            case modified:
+                return project.getModified();
+
+            default:
+                return project.getName();
+        }
+    }
+
+    private String encodeValue() {
+        if (value == null) {
+            return NULL_VALUE;
+        }
+
+        if (value instanceof GregorianCalendar) {
+            return VALUE_PREFIX + ((GregorianCalendar) value).getTimeInMillis();
+        }
+
+        if (value instanceof ProjectType) {
+            return VALUE_PREFIX + ((ProjectType) value).name();
+        }
+
+        return VALUE_PREFIX + value.toString();
+    }
+
+    private static Object decodeValue(TableSort sort, String encoded) {
+        if (NULL_VALUE.equals(encoded)) {
+            return null;
+        }
+
+        if (!encoded.startsWith(VALUE_PREFIX)) {
+            throw new IllegalArgumentException("Malformed project cursor value");
+        }
+
+        String value = encoded.substring(VALUE_PREFIX.length());
+        switch (sort) {
+            case type:
+                return ProjectType.valueOf(value);
+
+            case user:
+                return Long.valueOf(value);
+
+            case modified:
+                GregorianCalendar modified = new GregorianCalendar();
+                modified.setTimeInMillis(Long.parseLong(value));
+                return modified;
+
+            default:
+                return value;
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop;
+
+import java.sql.Timestamp;
+
+
+/**
+ * Progress of the bulk migration of project code to the current block
+ * version. The status is saved after every chunk of projects, so a run can
+ * resume where it was when the application stopped.
+ */
+public class ProjectMigrationStatus {
+
+    public enum State {
+        RUNNING,
+        STOPPED,
+        FINISHED
+    }
+
+    private State state;
+
+    private boolean dryRun;
+
+    private Short blockVersion;
+
+    private Long lastId;
+
+    private long examined;
+
+    private long migrated;
+
+    private long unchanged;
+
+    private long skipped;
+
+    private long failed;
+
+    private Timestamp started;
+
+    private Timestamp updated;
+
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * Are the migrated projects left unchanged in the database
+     *
+     * @return
+     */
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * The block version the projects are migrated to
+     *
+     * @return
+     */
+    public Short getBlockVersion() {
+        return blockVersion;
+    }
+
+    public void setBlockVersion(Short blockVersion) {
+        this.blockVersion = blockVersion;
+    }
+
+    /**
+     * The id of the last project examined
+     *
+     * @return
+     */
+    public Long getLastId() {
+        return lastId;
+    }
+
+    public void setLastId(Long lastId) {
+        this.lastId = lastId;
+    }
+
+    public long getExamined() {
+        return examined;
+    }
+
+    public void setExamined(long examined) {
+        this.examined = examined;
+    }
+
+    /**
+     * Number of projects with deprecated blocks replaced
+     *
+     * @return
+     */
+    public long getMigrated() {
+        return migrated;
+    }
+
+    public void setMigrated(long migrated) {
+        this.migrated = migrated;
+    }
+
+    /**
+     * Number of projects without deprecated blocks
+     *
+     * @return
+     */
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    public void setUnchanged(long unchanged) {
+        this.unchanged = unchanged;
+    }
+
+    /**
+     * Number of projects saved while they were being migrated
+     *
+     * @return
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public void setSkipped(long skipped) {
+        this.skipped = skipped;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public void setFailed(long failed) {
+        this.failed = failed;
+    }
+
+    public Timestamp getStarted() {
+        return started;
+    }
+
+    public void setStarted(Timestamp started) {
+        this.started = started;
+    }
+
+    public Timestamp getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(Timestamp updated) {
+        this.updated = updated;
+    }
+
+    @Override
+    public String toString() {
+        return "ProjectMigrationStatus{" + "state=" + state + ", dryRun=" + dryRun + ", lastId=" + lastId
+                + ", examined=" + examined + ", migrated=" + migrated + ", failed=" + failed + '}';
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop;
+
+import java.util.GregorianCalendar;
+
+
+/**
+ * A saved version of the code of a project.
+ *
+ * Revisions are numbered from 1 for each project. A revision is stored either
+ * as a snapshot of the complete code or as a delta against the revision
+ * before it. A snapshot is stored at least every few revisions, which bounds
+ * the number of deltas applied to rebuild any revision.
+ */
+public class ProjectRevision {
+
+    private Long idProject;
+    private Integer revision;
+    private Boolean snapshot;
+    private Integer depth;
+    private Integer size;
+    private GregorianCalendar created;
+    private String code;
+    private byte[] data;
+
+    public Long getIdProject() {
+        return idProject;
+    }
+
+    public void setIdProject(Long idProject) {
+        this.idProject = idProject;
+    }
+
+    public Integer getRevision() {
+        return revision;
+    }
+
+    public void setRevision(Integer revision) {
+        this.revision = revision;
+    }
+
+    /**
+     * Is the revision stored as complete code
+     *
+     * @return
+     */
+    public Boolean getSnapshot() {
+        return snapshot;
+    }
+
+    public void setSnapshot(Boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Obtain the number of deltas between the last snapshot and this revision
+     *
+     * @return 0 for a snapshot
+     */
+    public Integer getDepth() {
+        return depth;
+    }
+
+    public void setDepth(Integer depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * Obtain the length of the code of this revision
+     *
+     * @return the number of characters in the code
+     */
+    public Integer getSize() {
+        return size;
+    }
+
+    public void setSize(Integer size) {
+        this.size = size;
+    }
+
+    public GregorianCalendar getCreated() {
+        return created;
+    }
+
+    public void setCreated(GregorianCalendar created) {
+        this.created = created;
+    }
+
+    /**
+     * Obtain the code of this revision, if it has been rebuilt
+     *
+     * @return
+     */
+    public String getCode() {
+        return code;
+    }
+
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    /**
+     * Obtain the stored form of this revision: the encoded code of a
+     * snapshot, or the delta against the previous revision.
+     *
+     * @return
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return "ProjectRevision{" + "idProject=" + idProject + ", revision=" + revision + ", snapshot=" + snapshot + ", size=" + size + '}';
+    }
+
+}
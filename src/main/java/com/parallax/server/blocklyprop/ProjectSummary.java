@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop;
+
+import com.parallax.server.blocklyprop.db.enums.ProjectType;
+import java.util.GregorianCalendar;
+
+
+/**
+ * Project details shown in a project listing.
+ *
+ * A summary carries only the fields a listing displays. The project code
+ * and the HTML description are left out, so listing a large number of big
+ * projects does not read those columns from the database.
+ */
+public class ProjectSummary {
+
+    private Long id;
+    private Long idUser;
+    private String name;
+    private String description;
+    private ProjectType type;
+    private String board;
+    private Boolean privateProject;
+    private Boolean sharedProject;
+    private GregorianCalendar created;
+    private GregorianCalendar modified;
+    private String ownerName;
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    /**
+     * Obtain the id of the user that owns the project
+     *
+     * @return BP user id
+     */
+    public Long getIdUser() {
+        return idUser;
+    }
+
+    public void setIdUser(Long idUser) {
+        this.idUser = idUser;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public ProjectType getType() {
+        return type;
+    }
+
+    public void setType(ProjectType type) {
+        this.type = type;
+    }
+
+    public String getBoard() {
+        return board;
+    }
+
+    public void setBoard(String board) {
+        this.board = board;
+    }
+
+    public Boolean getPrivate() {
+        return privateProject;
+    }
+
+    public void setPrivate(Boolean privateProject) {
+        this.privateProject = privateProject;
+    }
+
+    public Boolean getShared() {
+        return sharedProject;
+    }
+
+    public void setShared(Boolean sharedProject) {
+        this.sharedProject = sharedProject;
+    }
+
+    public GregorianCalendar getCreated() {
+        return created;
+    }
+
+    public void setCreated(GregorianCalendar created) {
+        this.created = created;
+    }
+
+    public GregorianCalendar getModified() {
+        return modified;
+    }
+
+    public void setModified(GregorianCalendar modified) {
+        this.modified = modified;
+    }
+
+    /**
+     * Obtain the screen name of the project owner, if it was looked up
+     * together with the listing
+     *
+     * @return the screen name or null if it was not looked up
+     */
+    public String getOwnerName() {
+        return ownerName;
+    }
+
+    public void setOwnerName(String ownerName) {
+        this.ownerName = ownerName;
+    }
+
+    @Override
+    public String toString() {
+        return "ProjectSummary{" + "id=" + id + ", idUser=" + idUser + ", name=" + name + ", type=" + type + ", board=" + board + '}';
+    }
+
+}
@@ -24,12 +24,14 @@ package com.parallax.server.blocklyprop.config;
 import com.google.inject.AbstractModule;
 
 import com.parallax.server.blocklyprop.db.dao.ProjectDao;
+import com.parallax.server.blocklyprop.db.dao.ProjectRevisionDao;
 import com.parallax.server.blocklyprop.db.dao.ProjectSharingDao;
 import com.parallax.server.blocklyprop.db.dao.SessionDao;
 import com.parallax.server.blocklyprop.db.dao.UserDao;
 import com.parallax.server.blocklyprop.db.dao.MotdDao;
 
 import com.parallax.server.blocklyprop.db.dao.impl.ProjectDaoImpl;
+import com.parallax.server.blocklyprop.db.dao.impl.ProjectRevisionDaoImpl;
 import com.parallax.server.blocklyprop.db.dao.impl.ProjectSharingDaoImpl;
 import com.parallax.server.blocklyprop.db.dao.impl.SessionDaoImpl;
 import com.parallax.server.blocklyprop.db.dao.impl.UserDaoImpl;
@@ -61,6 +63,7 @@ public class DaoModule extends AbstractModule {
     @Override
     protected void configure() {
         bind(ProjectDao.class).to(ProjectDaoImpl.class);
+        bind(ProjectRevisionDao.class).to(ProjectRevisionDaoImpl.class);
         bind(UserDao.class).to(UserDaoImpl.class);
         bind(SessionDao.class).to(SessionDaoImpl.class);
         bind(ProjectSharingDao.class).to(ProjectSharingDaoImpl.class);
@@ -24,6 +24,9 @@ package com.parallax.server.blocklyprop.config;
 import com.adamlewis.guice.persist.jooq.JooqPersistModule;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.persist.Transactional;
+import com.parallax.server.blocklyprop.db.dao.impl.ProjectRecordCache;
 import com.parallax.server.blocklyprop.db.utils.DataSourceSetup;
 import java.sql.SQLException;
 import javax.sql.DataSource;
@@ -49,6 +52,14 @@ public class PersistenceModule extends AbstractModule {
 
     @Override
     protected void configure() {
+        // Bound ahead of the transaction interceptor, so it runs outside of
+        // it and sees transactions complete
+        ProjectRecordCache.TransactionInterceptor projectCacheInterceptor
+                = new ProjectRecordCache.TransactionInterceptor();
+        requestInjection(projectCacheInterceptor);
+        bindInterceptor(Matchers.annotatedWith(Transactional.class), Matchers.any(), projectCacheInterceptor);
+        bindInterceptor(Matchers.any(), Matchers.annotatedWith(Transactional.class), projectCacheInterceptor);
+
         install(new JooqPersistModule());
         bind(DataSource.class).to(PoolingDataSource.class).asEagerSingleton();
     }
@@ -21,6 +21,7 @@
 
 package com.parallax.server.blocklyprop.config;
 
+import com.parallax.server.blocklyprop.rest.RestAdmin;
 import com.parallax.server.blocklyprop.rest.RestCompile;
 import com.parallax.server.blocklyprop.rest.RestMotd;
 import com.parallax.server.blocklyprop.rest.RestProfile;
@@ -48,6 +49,7 @@ public class RestModule extends JerseyServletModule {
         bind(RestSharedProject.class);
         bind(RestProfile.class);
         bind(RestMotd.class);
+        bind(RestAdmin.class);
 
         /* bind jackson converters for JAXB/JSON serialization */
         bind(MessageBodyReader.class).to(JacksonJsonProvider.class);
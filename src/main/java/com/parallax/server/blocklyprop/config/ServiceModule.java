@@ -30,6 +30,8 @@ import com.parallax.server.blocklyprop.security.oauth.OAuthAuthenticator;
 
 import com.parallax.server.blocklyprop.services.AuthenticationService;
 import com.parallax.server.blocklyprop.services.MotdService;
+import com.parallax.server.blocklyprop.services.ProjectListService;
+import com.parallax.server.blocklyprop.services.ProjectRevisionService;
 import com.parallax.server.blocklyprop.services.ProjectService;
 import com.parallax.server.blocklyprop.services.ProjectSharingService;
 import com.parallax.server.blocklyprop.services.SecurityService;
@@ -39,6 +41,8 @@ import com.parallax.server.blocklyprop.services.UserService;
 
 import com.parallax.server.blocklyprop.services.impl.AuthenticationServiceImpl;
 import com.parallax.server.blocklyprop.services.impl.MotdServiceImpl;
+import com.parallax.server.blocklyprop.services.impl.ProjectListServiceImpl;
+import com.parallax.server.blocklyprop.services.impl.ProjectRevisionServiceImpl;
 import com.parallax.server.blocklyprop.services.impl.ProjectServiceImpl;
 import com.parallax.server.blocklyprop.services.impl.ProjectSharingServiceImpl;
 import com.parallax.server.blocklyprop.services.impl.SecurityServiceImpl;
@@ -67,6 +71,8 @@ public class ServiceModule extends AbstractModule {
 
         bind(MotdService.class).to(MotdServiceImpl.class);
         bind(ProjectService.class).to(ProjectServiceImpl.class);
+        bind(ProjectListService.class).to(ProjectListServiceImpl.class);
+        bind(ProjectRevisionService.class).to(ProjectRevisionServiceImpl.class);
         bind(ProjectSharingService.class).to(ProjectSharingServiceImpl.class);
         bind(UserService.class).to(UserServiceImpl.class).asEagerSingleton();
         bind(SecurityService.class).to(SecurityServiceImpl.class).asEagerSingleton();
@@ -27,9 +27,22 @@ import com.google.inject.Injector;
 import com.google.inject.servlet.GuiceServletContextListener;
 
 import com.parallax.server.blocklyprop.SessionData;
+import com.parallax.server.blocklyprop.db.utils.SessionAttributeCodec;
 import com.parallax.server.blocklyprop.jsp.Properties;
 import com.parallax.server.blocklyprop.monitoring.Monitor;
+import com.parallax.server.blocklyprop.security.SessionCache;
+import com.parallax.server.blocklyprop.utils.CommunityFeed;
+import com.parallax.server.blocklyprop.utils.DatabaseExecutor;
 import com.parallax.server.blocklyprop.utils.HelpFileInitializer;
+import com.parallax.server.blocklyprop.utils.ProjectCodeCompressor;
+import com.parallax.server.blocklyprop.utils.ProjectCodeMigrator;
+import com.parallax.server.blocklyprop.utils.ProjectCodeUpgrader;
+import com.parallax.server.blocklyprop.utils.ProjectCodeWriteBehind;
+import com.parallax.server.blocklyprop.utils.ProjectCounterReconciler;
+import com.parallax.server.blocklyprop.utils.ProjectRevisionCompactor;
+import com.parallax.server.blocklyprop.utils.ProjectRevisionRecorder;
+import com.parallax.server.blocklyprop.utils.SessionReaper;
+import com.parallax.server.blocklyprop.utils.SessionTouchWriter;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.util.Enumeration;
@@ -54,6 +67,11 @@ public class SetupConfig extends GuiceServletContextListener {
      * Application-specific configuration options
      */
     private Configuration configuration;
+
+    /**
+     * Application injector, kept to shut down background services
+     */
+    private Injector injector;
     
     /**
      * Application logging connector
@@ -64,7 +82,7 @@ public class SetupConfig extends GuiceServletContextListener {
     protected Injector getInjector() {
         readConfiguration();
 
-        return Guice.createInjector(new AbstractModule() {
+        injector = Guice.createInjector(new AbstractModule() {
 
             @Override
             protected void configure() {
@@ -84,9 +102,35 @@ public class SetupConfig extends GuiceServletContextListener {
                 install(new ServiceModule());
                 install(new ServletsModule());
                 install(new RestModule());
+
+                // Background conversion of stored project code
+                bind(ProjectCodeCompressor.class).asEagerSingleton();
+
+                // Background recording and compaction of project revisions
+                bind(ProjectRevisionRecorder.class).asEagerSingleton();
+                bind(ProjectRevisionCompactor.class).asEagerSingleton();
+
+                // Background correction of the materialized project counts
+                bind(ProjectCounterReconciler.class).asEagerSingleton();
+
+                // Precomputed community project listing
+                bind(CommunityFeed.class).asEagerSingleton();
+
+                // Bulk project code migration, resumed when interrupted
+                bind(ProjectCodeMigrator.class).asEagerSingleton();
+
+                // Sessions of active users, used by the Shiro session DAO
+                bind(SessionAttributeCodec.class).asEagerSingleton();
+                bind(SessionCache.class).asEagerSingleton();
+                bind(SessionTouchWriter.class).asEagerSingleton();
+
+                // Removal of expired sessions, which Shiro does not do here
+                bind(SessionReaper.class).asEagerSingleton();
             }
 
         });
+
+        return injector;
     }
 
     /*
@@ -116,6 +160,24 @@ public class SetupConfig extends GuiceServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent servletContextEvent) {
+        if (injector != null) {
+            // Stop the background jobs, leaving a migration to resume
+            injector.getInstance(ProjectCodeMigrator.class).shutdown();
+            injector.getInstance(ProjectCodeCompressor.class).stop();
+            injector.getInstance(ProjectRevisionCompactor.class).stop();
+            injector.getInstance(ProjectCounterReconciler.class).stop();
+            injector.getInstance(SessionReaper.class).stop();
+            injector.getInstance(CommunityFeed.class).stop();
+            injector.getInstance(ProjectCodeUpgrader.class).stop();
+
+            // Write what is still queued
+            injector.getInstance(ProjectRevisionRecorder.class).stop();
+            injector.getInstance(SessionTouchWriter.class).stop();
+            injector.getInstance(ProjectCodeWriteBehind.class).drain();
+
+            injector.getInstance(DatabaseExecutor.class).stop();
+        }
+
         super.contextDestroyed(servletContextEvent);
         
         Enumeration<Driver> drivers = DriverManager.getDrivers();
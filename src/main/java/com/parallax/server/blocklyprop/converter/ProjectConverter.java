@@ -5,6 +5,8 @@
  */
 package com.parallax.server.blocklyprop.converter;
 
+import com.parallax.server.blocklyprop.ProjectRevision;
+import com.parallax.server.blocklyprop.ProjectSummary;
 import com.parallax.server.blocklyprop.db.dao.ProjectDao;
 import com.parallax.server.blocklyprop.db.generated.tables.pojos.Project;
 import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
@@ -59,13 +61,25 @@ public class ProjectConverter {
 
     
     /**
-     * Convert a ProjectRecord to a JSON object
+     * Convert a ProjectSummary to a JSON object
      * 
      * @param project
      * @return 
      */
-    public JsonObject toListJson(ProjectRecord project) {
-        LOG.debug("Converting a ProjectRecord to a Json object");
+    public JsonObject toListJson(ProjectSummary project) {
+        return toListJson(project, BlocklyPropSecurityUtils.getCurrentUserId());
+    }
+
+    /**
+     * Convert a ProjectSummary to a JSON object as seen by a given user
+     * 
+     * @param project
+     * @param idCurrentUser the user the project is listed for, null for an
+     * anonymous visitor
+     * @return 
+     */
+    public JsonObject toListJson(ProjectSummary project, Long idCurrentUser) {
+        LOG.debug("Converting a ProjectSummary to a Json object");
         
         JsonObject result = new JsonObject();
 
@@ -80,13 +94,16 @@ public class ProjectConverter {
             result.addProperty("created", DateConversion.toDateTimeString(project.getCreated().getTime()));
             result.addProperty("modified", DateConversion.toDateTimeString(project.getModified().getTime()));
         
-            boolean isYours = project.getIdUser().equals(BlocklyPropSecurityUtils.getCurrentUserId());
+            boolean isYours = project.getIdUser().equals(idCurrentUser);
             result.addProperty("yours", isYours);
 
             // Get user screen name only if it's a registered user
             if (project.getId() > 0) {
-                // Get the project owner's screen name
-                String screenName = userService.getUserScreenName(project.getIdUser());
+                // Get the project owner's screen name, unless it was looked
+                // up with the listing
+                String screenName = project.getOwnerName() != null
+                        ? project.getOwnerName()
+                        : userService.getUserScreenName(project.getIdUser());
                 result.addProperty("user",(screenName == "" ? "unknown" : screenName));
 
                 // Add the project user's BP user id
@@ -100,6 +117,23 @@ public class ProjectConverter {
         return result;
     }
 
+    /**
+     * Convert a ProjectRevision to a JSON object
+     * 
+     * @param revision
+     * @return 
+     */
+    public JsonObject toJson(ProjectRevision revision) {
+        JsonObject result = new JsonObject();
+
+        if (revision != null) {
+            result.addProperty("revision", revision.getRevision());
+            result.addProperty("size", revision.getSize());
+            result.addProperty("created", DateConversion.toDateTimeString(revision.getCreated().getTime()));
+        }
+        return result;
+    }
+
     // TODO: Refactor code to eliminate the parent project details. We don't use it
     
     
@@ -5,10 +5,16 @@
  */
 package com.parallax.server.blocklyprop.db.dao;
 
+import com.parallax.server.blocklyprop.ProjectCodeSave;
+import com.parallax.server.blocklyprop.ProjectCodeUpgrade;
+import com.parallax.server.blocklyprop.ProjectCursor;
+import com.parallax.server.blocklyprop.ProjectMigrationStatus;
+import com.parallax.server.blocklyprop.ProjectSummary;
 import com.parallax.server.blocklyprop.TableOrder;
 import com.parallax.server.blocklyprop.TableSort;
 import com.parallax.server.blocklyprop.db.enums.ProjectType;
 import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -55,6 +61,24 @@ public interface ProjectDao {
 
     ProjectRecord getProject(Long idProject);
 
+    /**
+     * Retrieve the owner of a project with a key-only read. Owners are
+     * cached, as the owner of a project never changes.
+     *
+     * @param idProject
+     * @return the id of the user owning the project or null if the project
+     * does not exist
+     */
+    Long getProjectOwnerId(Long idProject);
+
+    /**
+     * Retrieve a project without its code
+     *
+     * @param idProject
+     * @return the project or null if the project does not exist
+     */
+    ProjectRecord getProjectInfo(Long idProject);
+
     ProjectRecord createProject(
             String name, 
             String description, 
@@ -96,27 +120,121 @@ public interface ProjectDao {
             Long idProject, 
             String code);
 
-    List<ProjectRecord> getUserProjects(
+    List<ProjectSummary> getUserProjects(
             Long idUser, 
             TableSort sort, 
             TableOrder order, 
             Integer limit, 
             Integer offset);
 
+    // Return the page of a user's projects that follows the cursor
+    List<ProjectSummary> getUserProjects(
+            Long idUser, 
+            Integer limit, 
+            ProjectCursor cursor);
+
     // Return a list of community projects
-    List<ProjectRecord> getSharedProjects(
+    List<ProjectSummary> getSharedProjects(
             TableSort sort, 
             TableOrder order, 
             Integer limit, 
             Integer offset);
 
-    List<ProjectRecord> getSharedProjectsByUser(
+    // Return the page of community projects that follows the cursor
+    List<ProjectSummary> getSharedProjects(
+            Integer limit, 
+            ProjectCursor cursor);
+
+    List<ProjectSummary> getSharedProjectsByUser(
             TableSort sort, 
             TableOrder order, 
             Integer limit, 
             Integer offset, 
             Long idUser);
 
+    List<ProjectSummary> getSharedProjectsByUser(
+            Integer limit, 
+            ProjectCursor cursor, 
+            Long idUser);
+
+    // Move existing project code into the project code store, one chunk at a time
+    Long compressProjectCode(Long idAfter, int limit);
+
+    // Correct the materialized project counts, one chunk of users at a time
+    Long reconcileProjectCounters(Long idAfter, int limit);
+
+    // Read the code of projects with an old block version, in id order
+    List<ProjectRecord> getLegacyProjectCode(Long idAfter, int limit);
+
+    /**
+     * Store the code of projects after their deprecated blocks have been
+     * replaced, and mark it as current. A project that has been saved since
+     * its code was read is left alone.
+     *
+     * @param upgrades at most one upgrade per project
+     * @return the number of projects upgraded
+     */
+    int upgradeProjectCode(List<ProjectCodeUpgrade> upgrades);
+
+    ProjectMigrationStatus getProjectMigration();
+
+    void saveProjectMigration(ProjectMigrationStatus status);
+
+    /**
+     * Write the code of several projects in a single batch. The code of a
+     * project is only written if the project is owned by the user that saved
+     * the code.
+     *
+     * @param saves at most one save per project
+     * @return the saves that were written
+     */
+    List<ProjectCodeSave> saveCode(List<ProjectCodeSave> saves);
+
+    /**
+     * Create several projects with a single multi-row insert
+     *
+     * @param idUser the BP user id of the owner of the projects
+     * @param idCloudUser the cloud session user id of the owner
+     * @param projects the name, description, code, type, board and sharing
+     * of each project
+     * @return the ids of the new projects, in the same order
+     */
+    List<Long> createProjects(Long idUser, Long idCloudUser, List<ProjectRecord> projects);
+
+    /**
+     * Pass each project owned by a user, in ascending id order, to a visitor.
+     * The projects are streamed from the database, so only the project being
+     * visited is held in memory.
+     *
+     * @param idUser
+     * @param visitor
+     * @throws IOException if the visitor fails
+     */
+    void forEachUserProjectSummary(Long idUser, Visitor<ProjectSummary> visitor) throws IOException;
+
+    /**
+     * Pass each project owned by a user, including its code, in ascending id
+     * order, to a visitor. The projects are streamed from the database, so
+     * only the project being visited is held in memory.
+     *
+     * @param idUser
+     * @param visitor
+     * @throws IOException if the visitor fails
+     */
+    void forEachUserProject(Long idUser, Visitor<ProjectRecord> visitor) throws IOException;
+
+
+    /**
+     * Receives the projects of a streamed listing one at a time
+     *
+     * @param <T>
+     */
+    interface Visitor<T> {
+
+        void visit(T project) throws IOException;
+
+    }
+
     int countUserProjects(Long idUser);
 
     int countSharedProjects(Long idUser);
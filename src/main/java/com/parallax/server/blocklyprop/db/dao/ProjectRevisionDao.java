@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.dao;
+
+import com.parallax.server.blocklyprop.ProjectRevision;
+import java.sql.Timestamp;
+import java.util.List;
+
+
+/**
+ * Storage of the revision history of project code
+ */
+public interface ProjectRevisionDao {
+
+    /**
+     * Store new revisions in a single batch
+     *
+     * @param revisions revisions with their stored form set
+     */
+    void createRevisions(List<ProjectRevision> revisions);
+
+    /**
+     * Retrieve the most recent revision of a project, without its data
+     *
+     * @param idProject
+     * @return the latest revision or null if the project has no revisions
+     */
+    ProjectRevision getLatestRevision(Long idProject);
+
+    /**
+     * Retrieve the most recent revision of a project, without its data, and
+     * lock it until the end of the transaction. A concurrent transaction
+     * reading the latest revision of the project for update waits, so it
+     * sees the revisions created by this one.
+     *
+     * @param idProject
+     * @return the latest revision or null if the project has no revisions
+     */
+    ProjectRevision lockLatestRevision(Long idProject);
+
+    /**
+     * List the revisions of a project, most recent first, without their data
+     *
+     * @param idProject
+     * @return
+     */
+    List<ProjectRevision> getRevisions(Long idProject);
+
+    /**
+     * Retrieve the stored revisions required to rebuild a revision: the last
+     * snapshot at or before the revision, followed by the deltas up to and
+     * including the revision.
+     *
+     * @param idProject
+     * @param revision
+     * @return the revisions in ascending order, or an empty list if the
+     * revision does not exist
+     */
+    List<ProjectRevision> getRevisionChain(Long idProject, Integer revision);
+
+    /**
+     * Find the oldest revision of a project created at or after a point in time
+     *
+     * @param idProject
+     * @param since
+     * @return the revision number or null if there is no such revision
+     */
+    Integer getFirstRevisionSince(Long idProject, Timestamp since);
+
+    /**
+     * Store a revision as a snapshot
+     *
+     * @param idProject
+     * @param revision
+     * @param data the encoded code of the revision
+     */
+    void replaceWithSnapshot(Long idProject, Integer revision, byte[] data);
+
+    /**
+     * Remove the revisions of a project older than a revision
+     *
+     * @param idProject
+     * @param revision the oldest revision to keep
+     * @return the number of revisions removed
+     */
+    int deleteRevisionsBefore(Long idProject, Integer revision);
+
+    /**
+     * List projects that have revisions
+     *
+     * @param idAfter list projects with an id greater than this
+     * @param limit
+     * @return project ids in ascending order
+     */
+    List<Long> getProjectsWithRevisions(Long idAfter, int limit);
+
+}
@@ -7,7 +7,9 @@ package com.parallax.server.blocklyprop.db.dao;
 
 import com.parallax.server.blocklyprop.db.enums.Role;
 import com.parallax.server.blocklyprop.db.generated.tables.records.UserRecord;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -47,6 +49,14 @@ public interface UserDao {
 
     Long getUserIdForCloudSessionUserId(Long id);
 
+    /**
+     * Retrieve the screen names of several BP users with a single query
+     * 
+     * @param idUsers
+     * @return screen names by user id. Unknown users are left out.
+     */
+    Map<Long, String> getScreenNames(Collection<Long> idUsers);
+
     @Deprecated
     public void updateScreenname(Long idUser, String screenname);
 
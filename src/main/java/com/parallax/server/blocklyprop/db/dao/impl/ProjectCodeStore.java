@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.dao.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeCodec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.InsertValuesStep3;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Record2;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Content addressed storage for project code.
+ *
+ * Project code is kept in the blocklyprop.project_code table, keyed by the
+ * SHA-256 hash of the code. Projects refer to their code by hash, so any
+ * number of projects with identical code, typically clones of a community
+ * project, share a single copy of the code until one of them is changed.
+ *
+ * Each stored code block counts the projects referring to it. A code block is
+ * removed when its last reference is released.
+ *
+ * Code referred to by COMMON_REFERENCES projects or more, such as the code of
+ * a new, empty project, is common and no longer counted: its references are
+ * neither taken nor released and it is never removed. Every save of common
+ * code would otherwise wait for the lock on its single reference count.
+ *
+ * The code is stored encoded by ProjectCodeCodec.
+ */
+@Singleton
+public class ProjectCodeStore {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectCodeStore.class);
+
+    /**
+     * The code store table. It is not part of the generated jOOQ classes.
+     */
+    static final Table<Record> PROJECT_CODE = DSL.table(DSL.name("blocklyprop", "project_code"));
+
+    static final Field<String> HASH = DSL.field(
+            DSL.name("blocklyprop", "project_code", "hash"), SQLDataType.CHAR.length(64));
+
+    static final Field<byte[]> CODE = DSL.field(
+            DSL.name("blocklyprop", "project_code", "code"), SQLDataType.BLOB);
+
+    static final Field<Integer> REF_COUNT = DSL.field(
+            DSL.name("blocklyprop", "project_code", "ref_count"), SQLDataType.INTEGER);
+
+    /**
+     * Reference from a project to its code
+     */
+    static final Field<String> PROJECT_CODE_HASH = DSL.field(
+            DSL.name("blocklyprop", "project", "code_hash"), SQLDataType.CHAR.length(64));
+
+    /**
+     * The reference count at which stored code becomes common
+     */
+    static final int COMMON_REFERENCES = 1000;
+
+    // Hashes of code found to be common
+    private final Cache<String, Boolean> common = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .build();
+
+    private DSLContext create;
+
+    private ProjectCodeCodec projectCodeCodec;
+
+
+    @Inject
+    public void setDSLContext(DSLContext dsl) {
+        this.create = dsl;
+    }
+
+    @Inject
+    public void setProjectCodeCodec(ProjectCodeCodec projectCodeCodec) {
+        this.projectCodeCodec = projectCodeCodec;
+    }
+
+    /**
+     * Compute the key under which the code is stored
+     *
+     * @param code
+     * @return the lower case hex SHA-256 hash of the UTF-8 encoded code
+     */
+    public static String hash(String code) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return BaseEncoding.base16().lowerCase()
+                    .encode(digest.digest(code.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * Store project code and take a reference to it.
+     *
+     * If the code is already stored, only its reference count is incremented
+     * and the code itself is not sent to the database. Common code is not
+     * counted.
+     *
+     * @param hash the hash of the code, see hash()
+     * @param code
+     */
+    public void store(String hash, String code) {
+        if (hash == null || code == null || isCommon(hash)) {
+            return;
+        }
+
+        // Code is immutable, so an existing row never needs its code updated
+        int rows = create
+                .update(PROJECT_CODE)
+                .set(REF_COUNT, REF_COUNT.add(1))
+                .where(HASH.equal(hash))
+                .execute();
+
+        if (rows == 0) {
+            create.insertInto(PROJECT_CODE, HASH, CODE, REF_COUNT)
+                    .values(hash, projectCodeCodec.encode(code), 1)
+                    .onDuplicateKeyUpdate()
+                    .set(REF_COUNT, REF_COUNT.add(1))
+                    .execute();
+        }
+    }
+
+    /**
+     * Store the code of several projects and take a reference to each.
+     *
+     * @param codes the code of each project, null for a project without code
+     * @return the hash of the code of each project, in the same order
+     * @see #change(Map, Map)
+     */
+    public List<String> storeAll(List<String> codes) {
+        List<String> hashes = new ArrayList<>(codes.size());
+        Map<String, String> codeByHash = new HashMap<>();
+        Map<String, Integer> references = new HashMap<>();
+
+        for (String code : codes) {
+            String hash = code == null ? null : hash(code);
+            hashes.add(hash);
+
+            if (hash != null) {
+                codeByHash.put(hash, code);
+                reference(references, hash, 1);
+            }
+        }
+
+        change(references, codeByHash);
+        return hashes;
+    }
+
+    /**
+     * Take and release references to stored code.
+     *
+     * The stored code involved is locked in hash order before any reference
+     * count changes. Saves that exchange code between projects lock the same
+     * rows in the same order, so they wait for each other instead of
+     * deadlocking. Code that is no longer referenced takes the place of new
+     * code in a single statement where it can.
+     *
+     * Takes one statement to lock the stored code, one batch to change it and
+     * one insert for the new code, no matter how many references change.
+     *
+     * @param references the change in the reference count of each hash,
+     * positive to take references and negative to release them
+     * @param codes the code of each hash whose references are taken
+     */
+    public void change(Map<String, Integer> references, Map<String, String> codes) {
+        TreeMap<String, Integer> changes = new TreeMap<>();
+        for (Map.Entry<String, Integer> reference : references.entrySet()) {
+            if (reference.getKey() != null && reference.getValue() != 0 && !isCommon(reference.getKey())) {
+                changes.put(reference.getKey(), reference.getValue());
+            }
+        }
+
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        Map<String, Integer> refCounts = new HashMap<>();
+        for (Record2<String, Integer> row : create
+                .select(HASH, REF_COUNT)
+                .from(PROJECT_CODE)
+                .where(HASH.in(changes.keySet()))
+                .orderBy(HASH)
+                .forUpdate()
+                .fetch()) {
+
+            refCounts.put(row.value1(), row.value2());
+        }
+
+        List<Query> queries = new ArrayList<>();
+        Deque<String> unreferenced = new ArrayDeque<>();
+        Map<String, Integer> inserted = new TreeMap<>();
+
+        for (Map.Entry<String, Integer> change : changes.entrySet()) {
+            String hash = change.getKey();
+            Integer refCount = refCounts.get(hash);
+
+            if (refCount == null) {
+                // Releasing code that is not stored leaves nothing to do
+                if (change.getValue() > 0) {
+                    inserted.put(hash, change.getValue());
+                }
+            } else if (refCount >= COMMON_REFERENCES) {
+                common.put(hash, Boolean.TRUE);
+            } else if (refCount + change.getValue() <= 0) {
+                unreferenced.add(hash);
+            } else {
+                queries.add(create
+                        .update(PROJECT_CODE)
+                        .set(REF_COUNT, REF_COUNT.add(change.getValue()))
+                        .where(HASH.equal(hash)));
+            }
+        }
+
+        InsertValuesStep3<Record, String, byte[], Integer> insert = null;
+        for (Map.Entry<String, Integer> reference : inserted.entrySet()) {
+            byte[] encoded = projectCodeCodec.encode(codes.get(reference.getKey()));
+
+            if (!unreferenced.isEmpty()) {
+                queries.add(create
+                        .update(PROJECT_CODE)
+                        .set(HASH, reference.getKey())
+                        .set(CODE, encoded)
+                        .set(REF_COUNT, reference.getValue())
+                        .where(HASH.equal(unreferenced.poll())));
+            } else {
+                insert = (insert == null ? create.insertInto(PROJECT_CODE, HASH, CODE, REF_COUNT) : insert)
+                        .values(reference.getKey(), encoded, reference.getValue());
+            }
+        }
+
+        if (!unreferenced.isEmpty()) {
+            queries.add(create
+                    .deleteFrom(PROJECT_CODE)
+                    .where(HASH.in(unreferenced)));
+            LOG.debug("Removed unreferenced project code {}", unreferenced);
+        }
+
+        if (queries.size() == 1) {
+            queries.get(0).execute();
+        } else if (!queries.isEmpty()) {
+            create.batch(queries).execute();
+        }
+
+        if (insert != null) {
+            // Code stored by another request in the meantime
+            insert.onDuplicateKeyUpdate()
+                    .set(REF_COUNT, REF_COUNT.add(DSL.field("values({0})", Integer.class, DSL.name("ref_count"))))
+                    .execute();
+        }
+    }
+
+    /**
+     * Release a reference to stored code. The code is deleted when no
+     * references are left.
+     *
+     * @param hash
+     */
+    public void release(String hash) {
+        if (hash == null || isCommon(hash)) {
+            return;
+        }
+
+        create.update(PROJECT_CODE)
+                .set(REF_COUNT, REF_COUNT.sub(1))
+                .where(HASH.equal(hash))
+                .and(REF_COUNT.lessThan(COMMON_REFERENCES))
+                .execute();
+
+        int deleted = create
+                .deleteFrom(PROJECT_CODE)
+                .where(HASH.equal(hash))
+                .and(REF_COUNT.lessOrEqual(0))
+                .execute();
+
+        if (deleted > 0) {
+            LOG.debug("Removed unreferenced project code {}", hash);
+        }
+    }
+
+    /**
+     * Add a change in the reference count of a hash to a set of changes
+     *
+     * @param references the changes by hash, see change()
+     * @param hash the hash, ignored if null
+     * @param count the references taken, or released if negative
+     */
+    public static void reference(Map<String, Integer> references, String hash, int count) {
+        if (hash != null) {
+            Integer current = references.get(hash);
+            references.put(hash, current == null ? count : current + count);
+        }
+    }
+
+    // Common code is known to be stored and is never deleted
+    private boolean isCommon(String hash) {
+        return common.getIfPresent(hash) != null;
+    }
+
+    /**
+     * Decode code read from the store
+     *
+     * @param encoded
+     * @return
+     */
+    public String decode(byte[] encoded) {
+        return projectCodeCodec.decode(encoded);
+    }
+
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.dao.impl;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.db.generated.Tables;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Record3;
+import org.jooq.SelectSeekStep1;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Materialized project counts.
+ *
+ * The blocklyprop.project_counter table holds the number of projects and of
+ * shared projects per user, and, in the row for user 0, the total number of
+ * shared projects. Project listings read their totals from here instead of
+ * counting the project table on every page.
+ *
+ * The counts are adjusted by the statements that create and delete projects
+ * or change their shared flag, in the same transaction. reconcile() corrects
+ * any drift against the project table.
+ */
+@Singleton
+public class ProjectCounterStore {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectCounterStore.class);
+
+    /**
+     * The counter row holding the totals over all users
+     */
+    static final Long ALL_USERS = 0L;
+
+    static final Table<Record> PROJECT_COUNTER = DSL.table(DSL.name("blocklyprop", "project_counter"));
+
+    static final Field<Long> ID_USER = DSL.field(
+            DSL.name("blocklyprop", "project_counter", "id_user"), SQLDataType.BIGINT);
+
+    static final Field<Integer> PROJECTS = DSL.field(
+            DSL.name("blocklyprop", "project_counter", "projects"), SQLDataType.INTEGER);
+
+    static final Field<Integer> SHARED = DSL.field(
+            DSL.name("blocklyprop", "project_counter", "shared"), SQLDataType.INTEGER);
+
+    private static final Field<BigDecimal> SHARED_PROJECTS = DSL.sum(DSL.decode()
+            .when(Tables.PROJECT.SHARED.isTrue(), DSL.inline(1))
+            .otherwise(DSL.inline(0)));
+
+    private final Counter corrections = Monitor.metrics()
+            .counter(MetricRegistry.name("project", "counter", "corrections"));
+
+    private DSLContext create;
+
+
+    @Inject
+    public void setDSLContext(DSLContext dsl) {
+        this.create = dsl;
+    }
+
+    /**
+     * Count created projects
+     *
+     * @param idUser the owner of the projects
+     * @param projects the number of projects created
+     * @param shared the number of those projects that are shared
+     */
+    public void created(Long idUser, int projects, int shared) {
+        add(idUser, projects, shared);
+    }
+
+    /**
+     * Count a deleted project
+     *
+     * @param idUser the owner of the project
+     * @param shared was the project shared
+     */
+    public void deleted(Long idUser, Boolean shared) {
+        add(idUser, -1, Boolean.TRUE.equals(shared) ? -1 : 0);
+    }
+
+    /**
+     * Count a change of the shared flag of a project
+     *
+     * @param idUser the owner of the project
+     * @param before the shared flag before the change
+     * @param after the shared flag after the change
+     */
+    public void shareChanged(Long idUser, Boolean before, Boolean after) {
+        boolean wasShared = Boolean.TRUE.equals(before);
+        boolean isShared = Boolean.TRUE.equals(after);
+
+        if (wasShared != isShared) {
+            add(idUser, 0, isShared ? 1 : -1);
+        }
+    }
+
+    /**
+     * Obtain the number of projects owned by a user
+     *
+     * @param idUser
+     * @return
+     */
+    public int getProjects(Long idUser) {
+        Integer count = create
+                .select(PROJECTS)
+                .from(PROJECT_COUNTER)
+                .where(ID_USER.equal(idUser))
+                .fetchOne(PROJECTS);
+
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Obtain the number of shared projects
+     *
+     * @param idUser the owner of the projects or null for all users
+     * @return
+     */
+    public int getSharedProjects(Long idUser) {
+        Integer count = create
+                .select(SHARED)
+                .from(PROJECT_COUNTER)
+                .where(ID_USER.equal(idUser == null ? ALL_USERS : idUser))
+                .fetchOne(SHARED);
+
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Correct the counts of a range of users from the project table.
+     *
+     * The users are reconciled in id order, limit counted users at a time.
+     * The counts of the range are locked before the projects are counted, so
+     * a project created, deleted or shared meanwhile waits for the correction
+     * and then adjusts the corrected count. After the last user, the counts
+     * of users without projects are removed and the total number of shared
+     * projects is corrected.
+     *
+     * @param idAfter reconcile the users after this id
+     * @param limit the largest number of users to reconcile
+     * @return the id of the last user reconciled or null when done
+     */
+    public Long reconcile(Long idAfter, int limit) {
+        // The first statement of the transaction is a locking read, so the
+        // counts below are read after the locks are held
+        Map<Long, Record3<Long, Integer, Integer>> counted = new HashMap<>();
+        Long idLastCounter = null;
+        for (Record3<Long, Integer, Integer> counter : create
+                .select(ID_USER, PROJECTS, SHARED)
+                .from(PROJECT_COUNTER)
+                .where(ID_USER.greaterThan(idAfter))
+                .orderBy(ID_USER)
+                .limit(limit)
+                .forUpdate()
+                .fetch()) {
+            counted.put(counter.value1(), counter);
+            idLastCounter = counter.value1();
+        }
+
+        // With fewer counts than the limit, the lock covers all users after
+        // idAfter, and the total is locked as well in case this is the last
+        // range
+        Long idLocked = counted.size() >= limit ? idLastCounter : null;
+        Integer sharedTotal = null;
+        if (idLocked == null) {
+            sharedTotal = create
+                    .select(SHARED)
+                    .from(PROJECT_COUNTER)
+                    .where(ID_USER.equal(ALL_USERS))
+                    .forUpdate()
+                    .fetchOne(SHARED);
+        }
+
+        SelectSeekStep1<Record3<Long, Integer, BigDecimal>, Long> counting = create
+                .select(Tables.PROJECT.ID_USER, DSL.count(), SHARED_PROJECTS)
+                .from(Tables.PROJECT)
+                .where(Tables.PROJECT.ID_USER.greaterThan(idAfter))
+                .and(idLocked == null ? DSL.trueCondition() : Tables.PROJECT.ID_USER.lessOrEqual(idLocked))
+                .groupBy(Tables.PROJECT.ID_USER)
+                .orderBy(Tables.PROJECT.ID_USER);
+
+        List<Record3<Long, Integer, BigDecimal>> actual = idLocked == null
+                ? counting.limit(limit).fetch()
+                : counting.fetch();
+
+        Long idLast = idLocked;
+        if (idLast == null && actual.size() >= limit) {
+            idLast = actual.get(actual.size() - 1).value1();
+        }
+
+        List<Query> fixes = new ArrayList<>();
+        for (Record3<Long, Integer, BigDecimal> row : actual) {
+            Record3<Long, Integer, Integer> current = counted.remove(row.value1());
+            int projects = row.value2();
+            int shared = row.value3() == null ? 0 : row.value3().intValue();
+
+            if (current == null || current.value2() != projects || current.value3() != shared) {
+                fixes.add(create
+                        .insertInto(PROJECT_COUNTER, ID_USER, PROJECTS, SHARED)
+                        .values(row.value1(), projects, shared)
+                        .onDuplicateKeyUpdate()
+                        .set(PROJECTS, projects)
+                        .set(SHARED, shared));
+            }
+        }
+
+        // Counts left over in the range belong to users without projects
+        List<Long> unused = new ArrayList<>();
+        for (Long idUser : counted.keySet()) {
+            if (!idUser.equals(ALL_USERS) && (idLast == null || idUser <= idLast)) {
+                unused.add(idUser);
+            }
+        }
+
+        if (!unused.isEmpty()) {
+            fixes.add(create
+                    .deleteFrom(PROJECT_COUNTER)
+                    .where(ID_USER.in(unused)));
+        }
+
+        if (!fixes.isEmpty()) {
+            create.batch(fixes).execute();
+            corrections.inc(fixes.size());
+            LOG.info("Corrected the project counts of {} users after user {}", fixes.size(), idAfter);
+        }
+
+        if (idLast == null) {
+            reconcileTotals(sharedTotal);
+        }
+
+        return idLast;
+    }
+
+
+    // Adjust the counts of a user and the shared project total
+    private void add(Long idUser, int projects, int shared) {
+        if (idUser == null || (projects == 0 && shared == 0)) {
+            return;
+        }
+
+        create.insertInto(PROJECT_COUNTER, ID_USER, PROJECTS, SHARED)
+                .values(idUser, Math.max(0, projects), Math.max(0, shared))
+                .onDuplicateKeyUpdate()
+                .set(PROJECTS, PROJECTS.add(projects))
+                .set(SHARED, SHARED.add(shared))
+                .execute();
+
+        if (shared != 0) {
+            create.insertInto(PROJECT_COUNTER, ID_USER, PROJECTS, SHARED)
+                    .values(ALL_USERS, 0, Math.max(0, shared))
+                    .onDuplicateKeyUpdate()
+                    .set(SHARED, SHARED.add(shared))
+                    .execute();
+        }
+    }
+
+    // Correct the shared project total. The total was locked before the
+    // projects of the last range were counted.
+    private void reconcileTotals(Integer sharedTotal) {
+        BigDecimal actual = create
+                .select(SHARED_PROJECTS)
+                .from(Tables.PROJECT)
+                .fetchOne(SHARED_PROJECTS);
+
+        int shared = actual == null ? 0 : actual.intValue();
+
+        if (sharedTotal == null || sharedTotal != shared) {
+            create.insertInto(PROJECT_COUNTER, ID_USER, PROJECTS, SHARED)
+                    .values(ALL_USERS, 0, shared)
+                    .onDuplicateKeyUpdate()
+                    .set(SHARED, shared)
+                    .execute();
+
+            corrections.inc();
+            LOG.info("Corrected the shared project total to {}", shared);
+        }
+    }
+
+}
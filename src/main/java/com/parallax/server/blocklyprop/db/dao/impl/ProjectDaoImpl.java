@@ -5,25 +5,51 @@
  */
 package com.parallax.server.blocklyprop.db.dao.impl;
 
+import com.parallax.server.blocklyprop.ProjectCodeSave;
+import com.parallax.server.blocklyprop.ProjectCodeUpgrade;
+import com.parallax.server.blocklyprop.ProjectCursor;
+import com.parallax.server.blocklyprop.ProjectMigrationStatus;
+import com.parallax.server.blocklyprop.ProjectSummary;
 import com.parallax.server.blocklyprop.TableOrder;
 import com.parallax.server.blocklyprop.TableSort;
 import com.parallax.server.blocklyprop.db.dao.ProjectDao;
 import com.parallax.server.blocklyprop.db.enums.ProjectType;
 import com.parallax.server.blocklyprop.db.generated.Tables;
 import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeMigration;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeMigrations;
 import com.parallax.server.blocklyprop.security.BlocklyPropSecurityUtils;
+import com.parallax.server.blocklyprop.utils.ProjectCodeUpgrader;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.shiro.authz.UnauthorizedException;
 import org.jooq.Condition;
+import org.jooq.Cursor;
 import org.jooq.DSLContext;
+import org.jooq.InsertValuesStepN;
+import org.jooq.Field;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Record2;
+import org.jooq.Record3;
+import org.jooq.RecordMapper;
 import org.jooq.SortField;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.Random;
 
 
 /**
@@ -54,17 +80,89 @@ public class ProjectDaoImpl implements ProjectDao {
     private DSLContext create;
 
     
-    // Used by the randomString function
-    static final String AB = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz!#()*-+./:;=@[]^_`{|}~";
-    static Random rnd = new Random();
+    /**
+     * Cache of recently read project records
+     */
+    private ProjectRecordCache projectRecordCache;
+
+    /**
+     * Shared storage of the project code
+     */
+    private ProjectCodeStore projectCodeStore;
+
+    /**
+     * Materialized project counts
+     */
+    private ProjectCounterStore projectCounterStore;
+
+    private ProjectCodeUpgrader projectCodeUpgrader;
+
+    private ProjectMigrationStore projectMigrationStore;
+
+    /**
+     * Owners of recently saved projects
+     */
+    private final Cache<Long, Long> projectOwners = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .build();
+
 
     
     // Constants to clarify the edit flag in method calls
     static final boolean EDIT_MODE_OFF = false;
     static final boolean EDIT_MODE_ON = true;
     
-    // Constant to identify the current version of the blockly block library;
-    public static final short BLOCKLY_LIBRARY_VERSION = 1;
+    // Constant to identify the current version of the blockly block library,
+    // the version of the last step in ProjectCodeMigrations
+    public static final short BLOCKLY_LIBRARY_VERSION = ProjectCodeMigrations.CURRENT_VERSION;
+
+    /**
+     * All project columns except the project code
+     */
+    private static final Field<?>[] PROJECT_INFO_FIELDS = projectInfoFields();
+
+    /**
+     * All project columns, including the project code store reference
+     */
+    private static final Field<?>[] PROJECT_FIELDS = projectFields();
+
+    /**
+     * Project columns shown in a project listing
+     */
+    private static final Field<?>[] PROJECT_SUMMARY_FIELDS = {
+        Tables.PROJECT.ID,
+        Tables.PROJECT.ID_USER,
+        Tables.PROJECT.NAME,
+        Tables.PROJECT.DESCRIPTION,
+        Tables.PROJECT.TYPE,
+        Tables.PROJECT.BOARD,
+        Tables.PROJECT.PRIVATE,
+        Tables.PROJECT.SHARED,
+        Tables.PROJECT.CREATED,
+        Tables.PROJECT.MODIFIED
+    };
+
+    /**
+     * Map a row of summary columns to a project summary
+     */
+    private static final RecordMapper<Record, ProjectSummary> PROJECT_SUMMARY_MAPPER
+            = new RecordMapper<Record, ProjectSummary>() {
+        @Override
+        public ProjectSummary map(Record record) {
+            ProjectSummary summary = new ProjectSummary();
+            summary.setId(record.getValue(Tables.PROJECT.ID));
+            summary.setIdUser(record.getValue(Tables.PROJECT.ID_USER));
+            summary.setName(record.getValue(Tables.PROJECT.NAME));
+            summary.setDescription(record.getValue(Tables.PROJECT.DESCRIPTION));
+            summary.setType(record.getValue(Tables.PROJECT.TYPE));
+            summary.setBoard(record.getValue(Tables.PROJECT.BOARD));
+            summary.setPrivate(record.getValue(Tables.PROJECT.PRIVATE));
+            summary.setShared(record.getValue(Tables.PROJECT.SHARED));
+            summary.setCreated(record.getValue(Tables.PROJECT.CREATED));
+            summary.setModified(record.getValue(Tables.PROJECT.MODIFIED));
+            return summary;
+        }
+    };
     
     
     @Inject
@@ -72,6 +170,31 @@ public class ProjectDaoImpl implements ProjectDao {
         this.create = dsl;
     }
 
+    @Inject
+    public void setProjectRecordCache(ProjectRecordCache projectRecordCache) {
+        this.projectRecordCache = projectRecordCache;
+    }
+
+    @Inject
+    public void setProjectCodeStore(ProjectCodeStore projectCodeStore) {
+        this.projectCodeStore = projectCodeStore;
+    }
+
+    @Inject
+    public void setProjectCounterStore(ProjectCounterStore projectCounterStore) {
+        this.projectCounterStore = projectCounterStore;
+    }
+
+    @Inject
+    public void setProjectCodeUpgrader(ProjectCodeUpgrader projectCodeUpgrader) {
+        this.projectCodeUpgrader = projectCodeUpgrader;
+    }
+
+    @Inject
+    public void setProjectMigrationStore(ProjectMigrationStore projectMigrationStore) {
+        this.projectMigrationStore = projectMigrationStore;
+    }
+
     
     /**
      *
@@ -96,10 +219,7 @@ public class ProjectDaoImpl implements ProjectDao {
         ProjectRecord record = null;
 
         try {
-            record = create
-                    .selectFrom(Tables.PROJECT)
-                    .where(Tables.PROJECT.ID.equal(idProject))
-                    .fetchOne();
+            record = fetchProject(idProject);
 
             if (record == null) {
                 LOG.warn("Unable to retreive project {}", idProject);
@@ -119,6 +239,26 @@ public class ProjectDaoImpl implements ProjectDao {
         return alterReadRecord(record);
     }
 
+    @Override
+    public Long getProjectOwnerId(Long idProject) {
+        Long idUser = projectOwners.getIfPresent(idProject);
+        if (idUser != null) {
+            return idUser;
+        }
+
+        idUser = create
+                .select(Tables.PROJECT.ID_USER)
+                .from(Tables.PROJECT)
+                .where(Tables.PROJECT.ID.equal(idProject))
+                .fetchOne(Tables.PROJECT.ID_USER);
+
+        if (idUser != null) {
+            projectOwners.put(idProject, idUser);
+        }
+
+        return idUser;
+    }
+
     
     /**
      *
@@ -167,42 +307,48 @@ public class ProjectDaoImpl implements ProjectDao {
             return null;
         }
         
+        Map<Field<?>, Object> values = new HashMap<>();
+        values.put(Tables.PROJECT.ID_USER, idUser);
+        values.put(Tables.PROJECT.ID_CLOUDUSER, idCloudUser);
+        values.put(Tables.PROJECT.NAME, name);
+        values.put(Tables.PROJECT.DESCRIPTION, description);
+        values.put(Tables.PROJECT.DESCRIPTION_HTML, descriptionHtml);
+        values.put(Tables.PROJECT.CODE, code);
+        values.put(Tables.PROJECT.CODE_BLOCK_VERSION, BLOCKLY_LIBRARY_VERSION);
+        values.put(Tables.PROJECT.TYPE, type);
+        values.put(Tables.PROJECT.BOARD, board);
+        values.put(Tables.PROJECT.PRIVATE, privateProject);
+        values.put(Tables.PROJECT.SHARED, sharedProject);
+        values.put(Tables.PROJECT.BASED_ON, idProjectBasedOn);
+
+        // Identical code, for example in a clone, is stored only once
+        String codeHash = code == null ? null : ProjectCodeStore.hash(code);
+
         try {
+            projectCodeStore.store(codeHash, code);
+
             record = create
-                .insertInto(Tables.PROJECT,
-                        Tables.PROJECT.ID_USER,
-                        Tables.PROJECT.ID_CLOUDUSER,
-                        Tables.PROJECT.NAME,
-                        Tables.PROJECT.DESCRIPTION,
-                        Tables.PROJECT.DESCRIPTION_HTML,
-                        Tables.PROJECT.CODE,
-                        Tables.PROJECT.CODE_BLOCK_VERSION,
-                        Tables.PROJECT.TYPE,
-                        Tables.PROJECT.BOARD,
-                        Tables.PROJECT.PRIVATE,
-                        Tables.PROJECT.SHARED,
-                        Tables.PROJECT.BASED_ON)
-                .values(idUser,
-                        idCloudUser,
-                        name,
-                        description,
-                        descriptionHtml,
-                        code,
-                        BLOCKLY_LIBRARY_VERSION,
-                        type,
-                        board,
-                        privateProject,
-                        sharedProject,
-                        idProjectBasedOn)
+                .insertInto(Tables.PROJECT)
+                .set(storeCode(values, codeHash))
                 .returning()
                 .fetchOne();
+
+            // The code is held in the project code store
+            if (record != null) {
+                record.setCode(code);
+                record.changed(false);
+
+                projectCounterStore.created(idUser, 1, sharedProject ? 1 : 0);
+            }
         }
         catch (org.jooq.exception.DataAccessException sqex) {
             LOG.error("Database error encountered {}", sqex.getMessage());
+            projectCodeStore.release(codeHash);
             return null;
         } catch (Exception ex) {
             LOG.error("Unexpected exception creating a project record");
             LOG.error("Error Message: {}", ex.getMessage());
+            projectCodeStore.release(codeHash);
             return null;
         }
         
@@ -277,21 +423,19 @@ public class ProjectDaoImpl implements ProjectDao {
 
         LOG.info("Update project {}.", idProject);
 
-        ProjectRecord record = getProject(idProject, EDIT_MODE_ON);
+        Map<Field<?>, Object> changes = new HashMap<>();
+        changes.put(Tables.PROJECT.NAME, name);
+        changes.put(Tables.PROJECT.DESCRIPTION, description);
+        changes.put(Tables.PROJECT.DESCRIPTION_HTML, descriptionHtml);
+        changes.put(Tables.PROJECT.PRIVATE, privateProject);
+        changes.put(Tables.PROJECT.SHARED, sharedProject);
+        changes.put(Tables.PROJECT.MODIFIED, getCurrentTimestamp());
+
+        ProjectRecord record = updateOwnedProject(idProject, changes);
         if (record == null) {
             LOG.warn("Unable to locate project {} to update it.", idProject);
-            return null;
         }
 
-        record.setName(name);
-        record.setDescription(description);
-        record.setDescriptionHtml(descriptionHtml);
-        record.setPrivate(privateProject);
-        record.setShared(sharedProject);
-        record.setModified(getCurrentTimestamp());
-        record.setCodeBlockVersion(BLOCKLY_LIBRARY_VERSION);
-        record.update();
-
         return record;
     }
 
@@ -322,23 +466,22 @@ public class ProjectDaoImpl implements ProjectDao {
 
         LOG.info("Update project {}.", idProject);
 
-        ProjectRecord record = getProject(idProject, EDIT_MODE_ON);
-        if (record != null) {
-            record.setName(name);
-            record.setDescription(description);
-            record.setDescriptionHtml(descriptionHtml);
-            record.setCode(code);
-            record.setPrivate(privateProject);
-            record.setShared(sharedProject);
-            record.setModified(getCurrentTimestamp());
-            record.setCodeBlockVersion(BLOCKLY_LIBRARY_VERSION);
-            record.update();
-
-            return record;
+        Map<Field<?>, Object> changes = new HashMap<>();
+        changes.put(Tables.PROJECT.NAME, name);
+        changes.put(Tables.PROJECT.DESCRIPTION, description);
+        changes.put(Tables.PROJECT.DESCRIPTION_HTML, descriptionHtml);
+        changes.put(Tables.PROJECT.CODE, code);
+        changes.put(Tables.PROJECT.PRIVATE, privateProject);
+        changes.put(Tables.PROJECT.SHARED, sharedProject);
+        changes.put(Tables.PROJECT.MODIFIED, getCurrentTimestamp());
+        changes.put(Tables.PROJECT.CODE_BLOCK_VERSION, BLOCKLY_LIBRARY_VERSION);
+
+        ProjectRecord record = updateOwnedProject(idProject, changes);
+        if (record == null) {
+            LOG.warn("Unable to update project {}", idProject);
         }
 
-        LOG.warn("Unable to update project {}", idProject);
-        return null;
+        return record;
     }
 
     /**
@@ -352,30 +495,23 @@ public class ProjectDaoImpl implements ProjectDao {
     public ProjectRecord saveCode(Long idProject, String code) {
         LOG.info("Saving code for project {}.", idProject);
 
-        ProjectRecord record = getProject(idProject, EDIT_MODE_ON);
-        if (record != null) {
-            // Update project record details
-            record.setCode(code);
-            record.setCodeBlockVersion(BLOCKLY_LIBRARY_VERSION);
-            record.setModified(getCurrentTimestamp());
-            
-            // Update the record
-            ProjectRecord returningRecord = create
-                    .update(Tables.PROJECT)
-                    .set(record)
-                    .returning()
-                    .fetchOne();
-            
-            // Return a copy of the updated project record
-            return returningRecord;
+        Map<Field<?>, Object> changes = new HashMap<>();
+        changes.put(Tables.PROJECT.CODE, code);
+        changes.put(Tables.PROJECT.CODE_BLOCK_VERSION, BLOCKLY_LIBRARY_VERSION);
+        changes.put(Tables.PROJECT.MODIFIED, getCurrentTimestamp());
+
+        ProjectRecord record = updateOwnedProject(idProject, changes);
+        if (record == null) {
+            LOG.error("Unable to save code for project {}", idProject);
         }
-        
-        LOG.error("Unable to save code for project {}", idProject);
-        return null;
+
+        return record;
     }
 
     /**
-     * TODO: add details.
+     * Return a page of the projects owned by a user.
+     *
+     * User projects are always listed by project name.
      *
      * @param idUser
      * @param sort
@@ -385,7 +521,7 @@ public class ProjectDaoImpl implements ProjectDao {
      * @return
      */
     @Override
-    public List<ProjectRecord> getUserProjects(
+    public List<ProjectSummary> getUserProjects(
             Long idUser, 
             TableSort sort, 
             TableOrder order, 
@@ -394,15 +530,30 @@ public class ProjectDaoImpl implements ProjectDao {
         
         LOG.info("Retreive projects for user {}.", idUser);
 
-        SortField<String> orderField = Tables.PROJECT.NAME.asc();
-        if (TableOrder.desc == order) {
-            orderField = Tables.PROJECT.NAME.desc();
-        }
+        return getProjectPage(
+                Tables.PROJECT.ID_USER.equal(idUser),
+                TableSort.name, order, limit, offset, null);
+    }
 
-        return create.selectFrom(Tables.PROJECT)
-                .where(Tables.PROJECT.ID_USER.equal(idUser))
-                .orderBy(orderField).limit(limit).offset(offset)
-                .fetch();
+    /**
+     * Return the page of projects owned by a user that follows the cursor.
+     *
+     * @param idUser
+     * @param limit
+     * @param cursor
+     * @return
+     */
+    @Override
+    public List<ProjectSummary> getUserProjects(
+            Long idUser, 
+            Integer limit, 
+            ProjectCursor cursor) {
+        
+        LOG.info("Retreive projects for user {} after cursor.", idUser);
+
+        return getProjectPage(
+                Tables.PROJECT.ID_USER.equal(idUser),
+                TableSort.name, cursor.getOrder(), limit, null, cursor);
     }
 
     /**
@@ -412,11 +563,10 @@ public class ProjectDaoImpl implements ProjectDao {
      * @param order
      * @param limit
      * @param offset
-     * @param idUser
      * @return
      */
     @Override
-    public List<ProjectRecord> getSharedProjects(
+    public List<ProjectSummary> getSharedProjects(
             TableSort sort, 
             TableOrder order, 
             Integer limit, 
@@ -424,18 +574,30 @@ public class ProjectDaoImpl implements ProjectDao {
         
         LOG.info("Retreive shared projects.");
 
-        SortField<?> orderField = sort == null ? Tables.PROJECT.NAME.asc() : sort.getField().asc();
-        if (TableOrder.desc == order) {
-            orderField = sort == null ? Tables.PROJECT.NAME.desc() : sort.getField().desc();
-        }
-
         // Search for community projects
         Condition conditions = Tables.PROJECT.SHARED.eq(Boolean.TRUE);
         
-        return create.selectFrom(Tables.PROJECT)
-                .where(conditions)
-                .orderBy(orderField).limit(limit).offset(offset)
-                .fetch();
+        return getProjectPage(conditions, sort, order, limit, offset, null);
+    }
+
+    /**
+     * Return the page of community projects that follows the cursor
+     *
+     * @param limit
+     * @param cursor
+     * @return
+     */
+    @Override
+    public List<ProjectSummary> getSharedProjects(
+            Integer limit, 
+            ProjectCursor cursor) {
+        
+        LOG.info("Retreive shared projects after cursor.");
+
+        Condition conditions = Tables.PROJECT.SHARED.eq(Boolean.TRUE);
+
+        return getProjectPage(
+                conditions, cursor.getSort(), cursor.getOrder(), limit, null, cursor);
     }
 
     /**
@@ -449,7 +611,7 @@ public class ProjectDaoImpl implements ProjectDao {
      * @return
      */
     @Override
-    public List<ProjectRecord> getSharedProjectsByUser(
+    public List<ProjectSummary> getSharedProjectsByUser(
             TableSort sort, 
             TableOrder order, 
             Integer limit, 
@@ -458,22 +620,36 @@ public class ProjectDaoImpl implements ProjectDao {
         
         LOG.info("Retreive shared projects.");
 
-        SortField<?> orderField = sort == null ? Tables.PROJECT.NAME.asc() : sort.getField().asc();
-        if (TableOrder.desc == order) {
-            orderField = sort == null ? Tables.PROJECT.NAME.desc() : sort.getField().desc();
-        }
-        Condition conditions = Tables.PROJECT.SHARED.eq(Boolean.TRUE);
-        if (idUser != null) {
-            conditions = conditions.and(Tables.PROJECT.ID_USER.eq(idUser));
-        }
-        return create.selectFrom(Tables.PROJECT)
-                .where(conditions)
-                .orderBy(orderField).limit(limit).offset(offset)
-                .fetch();
+        return getProjectPage(
+                sharedByUserConditions(idUser), sort, order, limit, offset, null);
     }
 
     /**
-     * TODO: add details.
+     * Return the page of a user's community projects that follows the cursor
+     *
+     * @param limit
+     * @param cursor
+     * @param idUser
+     * @return
+     */
+    @Override
+    public List<ProjectSummary> getSharedProjectsByUser(
+            Integer limit, 
+            ProjectCursor cursor, 
+            Long idUser) {
+        
+        LOG.info("Retreive shared projects after cursor.");
+
+        return getProjectPage(
+                sharedByUserConditions(idUser), 
+                cursor.getSort(), cursor.getOrder(), limit, null, cursor);
+    }
+
+    /**
+     * Count the projects owned by a user.
+     *
+     * The count is read from the materialized project counts rather than
+     * counted in the project table.
      *
      * @param idUser
      * @return
@@ -482,12 +658,15 @@ public class ProjectDaoImpl implements ProjectDao {
     public int countUserProjects(Long idUser) {
         LOG.info("Count project for user {}.", idUser);
 
-        return create.fetchCount(Tables.PROJECT, Tables.PROJECT.ID_USER.equal(idUser));
+        return projectCounterStore.getProjects(idUser);
     }
 
     /**
      *
-     * TODO: add details.
+     * Count the community projects.
+     *
+     * The count is read from the materialized project counts rather than
+     * counted in the project table.
      *
      * @param idUser
      * @return
@@ -496,22 +675,16 @@ public class ProjectDaoImpl implements ProjectDao {
     public int countSharedProjects(Long idUser) {
         LOG.info("Count shared projects for user {}.", idUser);
 
-        Condition conditions = Tables.PROJECT.SHARED.equal(Boolean.TRUE);
-        
         // Shared projects are really community projects. We should not include
         // the logged in user's projects in the community listing. There is a
         // separate listing available for the logged in user's private projects.
-        /*
-        if (idUser != null) {
-            conditions = conditions.or(Tables.PROJECT.ID_USER.eq(idUser));
-        }
-        */
-        return create.fetchCount(Tables.PROJECT, conditions);
+        return projectCounterStore.getSharedProjects(null);
     }
 
     /**
      *
-     * TODO: add details.
+     * Count the community projects of a user, or of all users if no user is
+     * supplied.
      *
      * @param idUser
      * @return
@@ -520,11 +693,7 @@ public class ProjectDaoImpl implements ProjectDao {
     public int countSharedProjectsByUser(Long idUser) {
         LOG.info("Count shared projects for user {}.", idUser);
 
-        Condition conditions = Tables.PROJECT.SHARED.equal(Boolean.TRUE);
-        if (idUser != null) {
-            conditions = conditions.and(Tables.PROJECT.ID_USER.eq(idUser));
-        }
-        return create.fetchCount(Tables.PROJECT, conditions);
+        return projectCounterStore.getSharedProjects(idUser);
     }
 
     /**
@@ -557,114 +726,535 @@ public class ProjectDaoImpl implements ProjectDao {
     @Override
     public boolean deleteProject(Long idProject) {
         LOG.info("Delete project {}.", idProject);
-        return create.deleteFrom(Tables.PROJECT)
+
+        Record3<String, Long, Boolean> project = create
+                .select(ProjectCodeStore.PROJECT_CODE_HASH, Tables.PROJECT.ID_USER, Tables.PROJECT.SHARED)
+                .from(Tables.PROJECT)
+                .where(Tables.PROJECT.ID.equal(idProject))
+                .forUpdate()
+                .fetchOne();
+
+        boolean deleted = create.deleteFrom(Tables.PROJECT)
                 .where(Tables.PROJECT.ID.equal(idProject))
                 .execute() > 0;
+
+        if (deleted && project != null) {
+            projectCodeStore.release(project.value1());
+            projectCounterStore.deleted(project.value2(), project.value3());
+        }
+
+        projectRecordCache.invalidate(idProject);
+        projectOwners.invalidate(idProject);
+        return deleted;
     }
 
     /**
-     * TODO: add details.
-     *
-     * @param idProject
-     * @param code
-     * @return
+     * Create several projects with a single multi-row insert.
+     * 
+     * The owner is passed in rather than read from the current session for
+     * each project. The generated ids are returned by the driver for the
+     * whole insert.
+     * 
+     * @param idUser
+     * @param idCloudUser
+     * @param projects
+     * @return the ids of the new projects, in the same order
      */
     @Override
-    public ProjectRecord updateProjectCode(Long idProject, String code) {
-        LOG.info("Update code for project {}.", idProject);
-        ProjectRecord record = create.selectFrom(Tables.PROJECT)
-                .where(Tables.PROJECT.ID.equal(idProject))
-                .fetchOne();
+    public List<Long> createProjects(Long idUser, Long idCloudUser, List<ProjectRecord> projects) {
+        List<Long> ids = new ArrayList<>(projects.size());
+        if (projects.isEmpty()) {
+            return ids;
+        }
 
-        GregorianCalendar cal = new GregorianCalendar();
-        cal.setTime(new java.util.Date());
+        List<String> codes = new ArrayList<>(projects.size());
+        for (ProjectRecord project : projects) {
+            codes.add(project.getCode());
+        }
 
-        if (record != null) {
-            Long idUser = BlocklyPropSecurityUtils.getCurrentUserId();
-            if (record.getIdUser().equals(idUser)) {
-                record.setCode(code);
-                record.setModified(cal);
-                record.setCodeBlockVersion(BLOCKLY_LIBRARY_VERSION);
-                record.update();
-                return record;
-            } else {
-                if (record.getShared()) {
-                    ProjectRecord cloned = doProjectClone(record);
-                    cloned.setCode(code);
-                    cloned.setModified(cal);
-                    cloned.setCodeBlockVersion(BLOCKLY_LIBRARY_VERSION);
-                    cloned.update();
-                    return cloned;
-                }
-                LOG.error("User {} tried and failed to update project {}.", idUser, idProject);
-                throw new UnauthorizedException();
+        List<String> hashes = projectCodeStore.storeAll(codes);
+
+        InsertValuesStepN<ProjectRecord> insert = create
+                .insertInto(Tables.PROJECT, Arrays.<Field<?>>asList(
+                        Tables.PROJECT.ID_USER,
+                        Tables.PROJECT.ID_CLOUDUSER,
+                        Tables.PROJECT.NAME,
+                        Tables.PROJECT.DESCRIPTION,
+                        Tables.PROJECT.DESCRIPTION_HTML,
+                        ProjectCodeStore.PROJECT_CODE_HASH,
+                        Tables.PROJECT.CODE_BLOCK_VERSION,
+                        Tables.PROJECT.TYPE,
+                        Tables.PROJECT.BOARD,
+                        Tables.PROJECT.PRIVATE,
+                        Tables.PROJECT.SHARED));
+
+        for (int i = 0; i < projects.size(); i++) {
+            ProjectRecord project = projects.get(i);
+            insert = insert.values(
+                    idUser,
+                    idCloudUser,
+                    project.getName(),
+                    project.getDescription(),
+                    project.getDescriptionHtml(),
+                    hashes.get(i),
+                    BLOCKLY_LIBRARY_VERSION,
+                    project.getType(),
+                    project.getBoard(),
+                    project.getPrivate(),
+                    project.getShared());
+        }
+
+        for (ProjectRecord created : insert.returning(Tables.PROJECT.ID).fetch()) {
+            ids.add(created.getId());
+        }
+
+        int shared = 0;
+        for (ProjectRecord project : projects) {
+            if (Boolean.TRUE.equals(project.getShared())) {
+                shared++;
             }
-        } else {
-            LOG.warn("Unable to project {}. Unknown reason.", idProject);
-            return null;
         }
+        projectCounterStore.created(idUser, ids.size(), shared);
+
+        LOG.info("Created {} projects for user {}", ids.size(), idUser);
+        return ids;
     }
 
     /**
-     * Save the current project as a new project
-     *
-     * @param idProject
-     * @param code
-     * @param newName
-     * @param newBoard
-     * @return
+     * Pass each project owned by a user to a visitor.
+     * 
+     * Rows are streamed from the database rather than read into a result
+     * first. With MySQL this requires a fetch size of Integer.MIN_VALUE, and
+     * no other statement may run on the connection until the cursor is closed.
+     * 
+     * @param idUser
+     * @param visitor
+     * @throws IOException 
      */
     @Override
-    public ProjectRecord saveProjectCodeAs(Long idProject, String code, String newName, String newBoard) {
-        
-        LOG.info("Saving project code as '{}'", newName);
-
-        // Retreive the source project
-        ProjectRecord original = getProject(idProject);
-        if (original == null) {
-            LOG.error("Original project {} is missing. Unable to save code as...", idProject);
-            throw new NullPointerException("Project doesn't exist");
-        } else if (newBoard == null) {
-            newBoard = original.getBoard();
-        }
-        
-        // Obtain the current bp user record. 
-        Long idUser = BlocklyPropSecurityUtils.getCurrentUserId();
-        
-        if (idUser != null) {
-            // Create a copy of the source project is the source project is owned
-            // by the current user OR if the source project is designated as a
-            // shared or community project
-            // --------------------------------------------------------------------
-            if (original.getIdUser().equals(idUser) || original.getShared()) {
-                ProjectRecord cloned = createProject(
-                        newName, 
-                        original.getDescription(),
-                        original.getDescriptionHtml(),
-                        code,
-                        original.getType(),
-                        newBoard,
-                        true,                   // Set project private
-                        false,                  // Set project unshared
-                        original.getId());
+    public void forEachUserProjectSummary(Long idUser, Visitor<ProjectSummary> visitor) throws IOException {
+        try (Cursor<Record> cursor = create
+                .select(PROJECT_SUMMARY_FIELDS)
+                .from(Tables.PROJECT)
+                .where(Tables.PROJECT.ID_USER.equal(idUser))
+                .orderBy(Tables.PROJECT.ID)
+                .fetchSize(Integer.MIN_VALUE)
+                .fetchLazy()) {
 
-                return cloned;
+            while (cursor.hasNext()) {
+                visitor.visit(PROJECT_SUMMARY_MAPPER.map(cursor.fetchOne()));
             }
-        } else {
-            LOG.info("Unable to retreive BP user id");
         }
-        return null;
     }
 
-    // Private over-ride of the public getProject()
-    //
-    // 
+    /**
+     * Pass each project owned by a user, including its code, to a visitor.
+     * 
+     * Rows are streamed from the database rather than read into a result
+     * first. With MySQL this requires a fetch size of Integer.MIN_VALUE, and
+     * no other statement may run on the connection until the cursor is closed.
+     * 
+     * @param idUser
+     * @param visitor
+     * @throws IOException 
+     */
+    @Override
+    public void forEachUserProject(Long idUser, Visitor<ProjectRecord> visitor) throws IOException {
+        try (Cursor<Record> cursor = create
+                .select(PROJECT_FIELDS)
+                .select(ProjectCodeStore.CODE)
+                .from(Tables.PROJECT)
+                .leftOuterJoin(ProjectCodeStore.PROJECT_CODE)
+                .on(ProjectCodeStore.HASH.equal(ProjectCodeStore.PROJECT_CODE_HASH))
+                .where(Tables.PROJECT.ID_USER.equal(idUser))
+                .orderBy(Tables.PROJECT.ID)
+                .fetchSize(Integer.MIN_VALUE)
+                .fetchLazy()) {
+
+            while (cursor.hasNext()) {
+                visitor.visit(alterReadRecord(toProjectRecord(cursor.fetchOne())));
+            }
+        }
+    }
+
+    /**
+     * Write the code of several projects in a single batch.
+     * 
+     * The project rows are locked first, so the batched updates cannot miss.
+     * Code already in the project code store only has its reference count
+     * raised.
+     * 
+     * @param saves at most one save per project
+     * @return the saves that were written
+     */
+    @Override
+    public List<ProjectCodeSave> saveCode(List<ProjectCodeSave> saves) {
+        List<ProjectCodeSave> written = new ArrayList<>(saves.size());
+        if (saves.isEmpty()) {
+            return written;
+        }
+
+        Map<Long, ProjectCodeSave> byProject = new LinkedHashMap<>();
+        for (ProjectCodeSave save : saves) {
+            byProject.put(save.getIdProject(), save);
+        }
+
+        List<Query> updates = new ArrayList<>(saves.size());
+        Map<String, Integer> references = new HashMap<>();
+        Map<String, String> codes = new HashMap<>();
+
+        for (Record3<Long, Long, String> row : create
+                .select(Tables.PROJECT.ID, Tables.PROJECT.ID_USER, ProjectCodeStore.PROJECT_CODE_HASH)
+                .from(Tables.PROJECT)
+                .where(Tables.PROJECT.ID.in(byProject.keySet()))
+                .forUpdate()
+                .fetch()) {
+
+            ProjectCodeSave save = byProject.get(row.value1());
+            if (!row.value2().equals(save.getIdUser())) {
+                LOG.error("User {} attempted to save the code of project {} without authorization.",
+                        save.getIdUser(), save.getIdProject());
+                continue;
+            }
+
+            String codeHash = ProjectCodeStore.hash(save.getCode());
+            if (!codeHash.equals(row.value3())) {
+                ProjectCodeStore.reference(references, codeHash, 1);
+                ProjectCodeStore.reference(references, row.value3(), -1);
+                codes.put(codeHash, save.getCode());
+            }
+
+            Map<Field<?>, Object> changes = new HashMap<>();
+            changes.put(Tables.PROJECT.CODE, save.getCode());
+            changes.put(Tables.PROJECT.CODE_BLOCK_VERSION, BLOCKLY_LIBRARY_VERSION);
+            changes.put(Tables.PROJECT.MODIFIED, save.getSaved());
+
+            updates.add(create
+                    .update(Tables.PROJECT)
+                    .set(storeCode(changes, codeHash))
+                    .where(Tables.PROJECT.ID.equal(save.getIdProject())));
+
+            written.add(save);
+        }
+
+        projectCodeStore.change(references, codes);
+
+        if (!updates.isEmpty()) {
+            create.batch(updates).execute();
+        }
+
+        for (ProjectCodeSave save : written) {
+            projectRecordCache.invalidate(save.getIdProject());
+        }
+
+        LOG.debug("Saved the code of {} projects", written.size());
+        return written;
+    }
+
+    /**
+     * Correct the materialized project counts of a range of users.
+     * 
+     * @param idAfter reconcile the users with an id greater than this id
+     * @param limit the maximum number of users to reconcile
+     * @return the id of the last user reconciled or null if there are no
+     * users left to reconcile
+     */
+    @Override
+    public Long reconcileProjectCounters(Long idAfter, int limit) {
+        return projectCounterStore.reconcile(idAfter, limit);
+    }
+
+    /**
+     * Move the code of existing projects into the project code store.
+     * 
+     * Projects are converted in ascending id order. The projects are locked
+     * while they are converted, so a project saved in the meantime keeps the
+     * newly saved code.
+     * 
+     * @param idAfter convert projects with an id greater than this id
+     * @param limit the maximum number of projects to convert
+     * @return the id of the last project examined or null if there are no
+     * projects left to convert
+     */
+    @Override
+    public Long compressProjectCode(Long idAfter, int limit) {
+        List<Record2<Long, String>> rows = create
+                .select(Tables.PROJECT.ID, Tables.PROJECT.CODE)
+                .from(Tables.PROJECT)
+                .where(Tables.PROJECT.ID.greaterThan(idAfter))
+                .and(ProjectCodeStore.PROJECT_CODE_HASH.isNull())
+                .and(Tables.PROJECT.CODE.isNotNull())
+                .orderBy(Tables.PROJECT.ID)
+                .limit(limit)
+                .forUpdate()
+                .fetch();
+
+        if (rows.isEmpty()) {
+            return null;
+        }
+
+        List<Query> updates = new ArrayList<>(rows.size());
+        Map<String, Integer> references = new HashMap<>();
+        Map<String, String> codes = new HashMap<>();
+
+        for (Record2<Long, String> row : rows) {
+            String code = row.value2();
+            String codeHash = ProjectCodeStore.hash(code);
+            ProjectCodeStore.reference(references, codeHash, 1);
+            codes.put(codeHash, code);
+
+            // The project rows are locked, so a project cannot be saved while
+            // it is being converted
+            updates.add(create
+                    .update(Tables.PROJECT)
+                    .set(ProjectCodeStore.PROJECT_CODE_HASH, codeHash)
+                    .set(Tables.PROJECT.CODE, (String) null)
+                    .where(Tables.PROJECT.ID.equal(row.value1())));
+        }
+
+        projectCodeStore.change(references, codes);
+        create.batch(updates).execute();
+
+        for (Record2<Long, String> row : rows) {
+            projectRecordCache.invalidate(row.value1());
+        }
+
+        LOG.info("Compressed the code of {} projects", rows.size());
+
+        return rows.get(rows.size() - 1).value1();
+    }
+
+    /**
+     * Read the code of projects with an old block version, in id order.
+     *
+     * @param idAfter read projects with an id greater than this id
+     * @param limit the maximum number of projects to read
+     * @return the id, type, block version and code of each project
+     */
+    @Override
+    public List<ProjectRecord> getLegacyProjectCode(Long idAfter, int limit) {
+        List<ProjectRecord> projects = new ArrayList<>();
+
+        for (Record row : create
+                .select(PROJECT_FIELDS)
+                .select(ProjectCodeStore.CODE)
+                .from(Tables.PROJECT)
+                .leftOuterJoin(ProjectCodeStore.PROJECT_CODE)
+                .on(ProjectCodeStore.HASH.equal(ProjectCodeStore.PROJECT_CODE_HASH))
+                .where(Tables.PROJECT.ID.greaterThan(idAfter))
+                .and(Tables.PROJECT.CODE_BLOCK_VERSION.lessThan(BLOCKLY_LIBRARY_VERSION))
+                .orderBy(Tables.PROJECT.ID)
+                .limit(limit)
+                .fetch()) {
+
+            projects.add(toProjectRecord(row));
+        }
+
+        return projects;
+    }
+
+    /**
+     * Store migrated project code and raise its block version.
+     *
+     * Every save of project code sets the current block version, so a project
+     * is left alone if its block version is no longer the version the
+     * migrated code was read with. The modified time is not changed.
+     *
+     * @param upgrades at most one upgrade per project
+     * @return the number of projects upgraded
+     */
+    @Override
+    public int upgradeProjectCode(List<ProjectCodeUpgrade> upgrades) {
+        if (upgrades.isEmpty()) {
+            return 0;
+        }
+
+        Map<Long, ProjectCodeUpgrade> byProject = new LinkedHashMap<>();
+        for (ProjectCodeUpgrade upgrade : upgrades) {
+            byProject.put(upgrade.getIdProject(), upgrade);
+        }
+
+        List<Query> updates = new ArrayList<>(upgrades.size());
+        Map<String, Integer> references = new HashMap<>();
+        Map<String, String> codes = new HashMap<>();
+
+        for (Record3<Long, Short, String> row : create
+                .select(Tables.PROJECT.ID, Tables.PROJECT.CODE_BLOCK_VERSION, ProjectCodeStore.PROJECT_CODE_HASH)
+                .from(Tables.PROJECT)
+                .where(Tables.PROJECT.ID.in(byProject.keySet()))
+                .forUpdate()
+                .fetch()) {
+
+            ProjectCodeUpgrade upgrade = byProject.get(row.value1());
+            if (!upgrade.getFromVersion().equals(row.value2())) {
+                // Saved in the meantime
+                continue;
+            }
+
+            if (upgrade.getCode() == null) {
+                updates.add(create
+                        .update(Tables.PROJECT)
+                        .set(Tables.PROJECT.CODE_BLOCK_VERSION, BLOCKLY_LIBRARY_VERSION)
+                        .where(Tables.PROJECT.ID.equal(upgrade.getIdProject())));
+                continue;
+            }
+
+            String codeHash = ProjectCodeStore.hash(upgrade.getCode());
+            if (!codeHash.equals(row.value3())) {
+                ProjectCodeStore.reference(references, codeHash, 1);
+                ProjectCodeStore.reference(references, row.value3(), -1);
+                codes.put(codeHash, upgrade.getCode());
+            }
+
+            updates.add(create
+                    .update(Tables.PROJECT)
+                    .set(ProjectCodeStore.PROJECT_CODE_HASH, codeHash)
+                    .set(Tables.PROJECT.CODE, (String) null)
+                    .set(Tables.PROJECT.CODE_BLOCK_VERSION, BLOCKLY_LIBRARY_VERSION)
+                    .where(Tables.PROJECT.ID.equal(upgrade.getIdProject())));
+        }
+
+        projectCodeStore.change(references, codes);
+
+        if (!updates.isEmpty()) {
+            create.batch(updates).execute();
+        }
+
+        for (Long idProject : byProject.keySet()) {
+            projectRecordCache.invalidate(idProject);
+        }
+
+        LOG.debug("Upgraded the code of {} of {} projects", updates.size(), upgrades.size());
+        return updates.size();
+    }
+
+    /**
+     * Read the checkpoint of the bulk project migration
+     *
+     * @return the status of the latest run, or null if there has been none
+     */
+    @Override
+    public ProjectMigrationStatus getProjectMigration() {
+        return projectMigrationStore.get();
+    }
+
+    /**
+     * Write the checkpoint of the bulk project migration
+     *
+     * @param status
+     */
+    @Override
+    public void saveProjectMigration(ProjectMigrationStatus status) {
+        projectMigrationStore.save(status);
+    }
+
+    /**
+     * TODO: add details.
+     *
+     * @param idProject
+     * @param code
+     * @return
+     */
+    @Override
+    public ProjectRecord updateProjectCode(Long idProject, String code) {
+        LOG.info("Update code for project {}.", idProject);
+
+        Long idUser = BlocklyPropSecurityUtils.getCurrentUserId();
+
+        Map<Field<?>, Object> changes = new HashMap<>();
+        changes.put(Tables.PROJECT.CODE, code);
+        changes.put(Tables.PROJECT.MODIFIED, getCurrentTimestamp());
+        changes.put(Tables.PROJECT.CODE_BLOCK_VERSION, BLOCKLY_LIBRARY_VERSION);
+
+        ProjectRecord project = updateProjectRow(idProject, idUser, changes);
+        if (project != null) {
+            return project;
+        }
+
+        // Nothing was updated. Find out why.
+        Record2<Long, Boolean> owner = getProjectOwner(idProject);
+        if (owner == null) {
+            LOG.warn("Unable to project {}. Unknown reason.", idProject);
+            return null;
+        }
+
+        if (owner.value2()) {
+            // Someone else's shared project. Save the code as a new project
+            // owned by the current user.
+            ProjectRecord original = getProjectInfo(idProject);
+            return createProject(
+                    original.getName(),
+                    original.getDescription(),
+                    original.getDescriptionHtml(),
+                    code,
+                    original.getType(),
+                    original.getBoard(),
+                    original.getPrivate(),
+                    original.getShared(),
+                    original.getId());
+        }
+
+        LOG.error("User {} tried and failed to update project {}.", idUser, idProject);
+        throw new UnauthorizedException();
+    }
+
+    /**
+     * Save the current project as a new project
+     *
+     * @param idProject
+     * @param code
+     * @param newName
+     * @param newBoard
+     * @return
+     */
+    @Override
+    public ProjectRecord saveProjectCodeAs(Long idProject, String code, String newName, String newBoard) {
+        
+        LOG.info("Saving project code as '{}'", newName);
+
+        // Retreive the source project
+        ProjectRecord original = getProject(idProject);
+        if (original == null) {
+            LOG.error("Original project {} is missing. Unable to save code as...", idProject);
+            throw new NullPointerException("Project doesn't exist");
+        } else if (newBoard == null) {
+            newBoard = original.getBoard();
+        }
+        
+        // Obtain the current bp user record. 
+        Long idUser = BlocklyPropSecurityUtils.getCurrentUserId();
+        
+        if (idUser != null) {
+            // Create a copy of the source project is the source project is owned
+            // by the current user OR if the source project is designated as a
+            // shared or community project
+            // --------------------------------------------------------------------
+            if (original.getIdUser().equals(idUser) || original.getShared()) {
+                ProjectRecord cloned = createProject(
+                        newName, 
+                        original.getDescription(),
+                        original.getDescriptionHtml(),
+                        code,
+                        original.getType(),
+                        newBoard,
+                        true,                   // Set project private
+                        false,                  // Set project unshared
+                        original.getId());
+
+                return cloned;
+            }
+        } else {
+            LOG.info("Unable to retreive BP user id");
+        }
+        return null;
+    }
+
+    // Private over-ride of the public getProject()
+    //
+    // 
     private ProjectRecord getProject(Long idProject, boolean toEdit) {
         LOG.info("Retreiving project {}.", idProject);
-        ProjectRecord record = create
-                .selectFrom(Tables.PROJECT)
-                .where(Tables.PROJECT.ID.equal(idProject))
-                .fetchOne();
+        ProjectRecord record = fetchProject(idProject);
 
         if (record != null) {
             Long idUser = BlocklyPropSecurityUtils.getCurrentUserId();
@@ -711,9 +1301,349 @@ public class ProjectDaoImpl implements ProjectDao {
                 .set(Tables.PROJECT.BASED_ON, original.getId())
                 .where(Tables.PROJECT.ID.equal(cloned.getId()));
         
+        projectRecordCache.invalidate(cloned.getId());
+
         return cloned;
     }
 
+    // Community projects, optionally limited to a single user
+    private Condition sharedByUserConditions(Long idUser) {
+        Condition conditions = Tables.PROJECT.SHARED.eq(Boolean.TRUE);
+        if (idUser != null) {
+            conditions = conditions.and(Tables.PROJECT.ID_USER.eq(idUser));
+        }
+
+        return conditions;
+    }
+
+    /**
+     * Read one page of a project listing.
+     * 
+     * Only the columns shown in a listing are read. The project code and the
+     * HTML description are never part of a listing.
+     * 
+     * The listing is ordered on the sort field and then on the project id, so
+     * that the order is stable even when many projects share a sort value.
+     * When a cursor is supplied, the page starts right after the cursor
+     * position using a seek on (sort field, id) and the offset is ignored.
+     * The seek follows the MySQL ordering of NULL sort values, which come
+     * first in ascending order and last in descending order.
+     * 
+     * @param conditions
+     * @param sort the sort field, defaults to the project name
+     * @param order
+     * @param limit
+     * @param offset
+     * @param cursor
+     * @return 
+     */
+    private List<ProjectSummary> getProjectPage(
+            Condition conditions,
+            TableSort sort,
+            TableOrder order,
+            Integer limit,
+            Integer offset,
+            ProjectCursor cursor) {
+
+        Field<?> sortField = sort == null ? Tables.PROJECT.NAME : sort.getField();
+
+        SortField<?>[] orderFields;
+        if (TableOrder.desc == order) {
+            orderFields = new SortField<?>[] {sortField.desc(), Tables.PROJECT.ID.desc()};
+        } else {
+            orderFields = new SortField<?>[] {sortField.asc(), Tables.PROJECT.ID.asc()};
+        }
+
+        if (cursor != null) {
+            return create
+                    .select(PROJECT_SUMMARY_FIELDS)
+                    .from(Tables.PROJECT)
+                    .where(conditions)
+                    .and(seekAfter(sortField, order, cursor))
+                    .orderBy(orderFields)
+                    .limit(limit)
+                    .fetch(PROJECT_SUMMARY_MAPPER);
+        }
+
+        return create
+                .select(PROJECT_SUMMARY_FIELDS)
+                .from(Tables.PROJECT)
+                .where(conditions)
+                .orderBy(orderFields)
+                .limit(limit)
+                .offset(offset)
+                .fetch(PROJECT_SUMMARY_MAPPER);
+    }
+
+    /**
+     * Condition selecting the projects listed after a cursor position.
+     * 
+     * A plain row value comparison never matches a NULL sort value, so the
+     * NULL ordering is spelled out.
+     * 
+     * @param sortField
+     * @param order
+     * @param cursor
+     * @return 
+     */
+    @SuppressWarnings("unchecked")
+    private Condition seekAfter(Field<?> sortField, TableOrder order, ProjectCursor cursor) {
+        Field<Object> field = (Field<Object>) sortField;
+        Object value = cursor.getValue();
+        Long id = cursor.getId();
+
+        if (TableOrder.desc == order) {
+            // NULL values are last
+            if (value == null) {
+                return field.isNull().and(Tables.PROJECT.ID.lt(id));
+            }
+
+            return field.lt(value)
+                    .or(field.eq(value).and(Tables.PROJECT.ID.lt(id)))
+                    .or(field.isNull());
+        }
+
+        // NULL values are first
+        if (value == null) {
+            return field.isNotNull()
+                    .or(field.isNull().and(Tables.PROJECT.ID.gt(id)));
+        }
+
+        return field.gt(value)
+                .or(field.eq(value).and(Tables.PROJECT.ID.gt(id)));
+    }
+
+    /**
+     * Read a project record, using the project cache when possible.
+     * 
+     * The returned record is the raw database row. Deprecated block
+     * conversion is left to the caller.
+     * 
+     * @param idProject
+     * @return a ProjectRecord attached to the current DSL context or null if
+     * the project does not exist
+     */
+    private ProjectRecord fetchProject(Long idProject) {
+        ProjectRecord record = projectRecordCache.get(idProject, create);
+        if (record != null) {
+            return record;
+        }
+
+        long generation = projectRecordCache.generation();
+        record = toProjectRecord(create
+                .select(PROJECT_FIELDS)
+                .select(ProjectCodeStore.CODE)
+                .from(Tables.PROJECT)
+                .leftOuterJoin(ProjectCodeStore.PROJECT_CODE)
+                .on(ProjectCodeStore.HASH.equal(ProjectCodeStore.PROJECT_CODE_HASH))
+                .where(Tables.PROJECT.ID.equal(idProject))
+                .fetchOne());
+
+        projectRecordCache.put(record, generation);
+        return record;
+    }
+
+    // Convert a row of PROJECT_FIELDS and the stored code into a project
+    // record with plain code
+    private ProjectRecord toProjectRecord(Record row) {
+        if (row == null) {
+            return null;
+        }
+
+        ProjectRecord record = row.into(Tables.PROJECT);
+
+        byte[] encoded = row.getValue(ProjectCodeStore.CODE);
+        if (encoded != null) {
+            record.setCode(projectCodeStore.decode(encoded));
+        }
+
+        record.changed(false);
+        return record;
+    }
+
+    /**
+     * Prepare column values for storage.
+     * 
+     * The project code itself is kept in the project code store. The project
+     * row only refers to it by hash.
+     * 
+     * @param values column values that may include the project code
+     * @param codeHash the hash of the project code
+     * @return the column values to store
+     */
+    private Map<Field<?>, Object> storeCode(Map<Field<?>, Object> values, String codeHash) {
+        if (!values.containsKey(Tables.PROJECT.CODE)) {
+            return values;
+        }
+
+        Map<Field<?>, Object> stored = new HashMap<>(values);
+        stored.put(Tables.PROJECT.CODE, null);
+        stored.put(ProjectCodeStore.PROJECT_CODE_HASH, codeHash);
+
+        return stored;
+    }
+
+    /**
+     * Update a project owned by the current user.
+     * 
+     * The update is a single conditional statement that only writes the
+     * supplied columns. The project row is read first, and locked, only when
+     * the update depends on its current values. If the user owns no such
+     * project, a key-only probe determines whether the project does not exist
+     * or belongs to someone else.
+     * 
+     * @param idProject
+     * @param changes the new column values
+     * @return the updated ProjectRecord or null if the project does not exist
+     * @throws UnauthorizedException if the project is not owned by the
+     * current user
+     */
+    private ProjectRecord updateOwnedProject(Long idProject, Map<Field<?>, Object> changes) {
+        Long idUser = BlocklyPropSecurityUtils.getCurrentUserId();
+
+        ProjectRecord project = updateProjectRow(idProject, idUser, changes);
+        if (project != null) {
+            return project;
+        }
+
+        if (getProjectOwner(idProject) == null) {
+            return null;
+        }
+
+        LOG.error("User {} attempted to edit project {} without authorization.",
+                idUser, idProject);
+        throw new UnauthorizedException();
+    }
+
+    // Update the project row if, and only if, it is owned by the user. Returns
+    // the updated project, or null if the user owns no such project.
+    private ProjectRecord updateProjectRow(Long idProject, Long idUser, Map<Field<?>, Object> changes) {
+        if (idProject == null || idUser == null) {
+            return null;
+        }
+
+        if (!changes.containsKey(Tables.PROJECT.CODE) && !changes.containsKey(Tables.PROJECT.SHARED)) {
+            int rows = create
+                    .update(Tables.PROJECT)
+                    .set(changes)
+                    .where(Tables.PROJECT.ID.equal(idProject))
+                    .and(Tables.PROJECT.ID_USER.equal(idUser))
+                    .execute();
+
+            // Any cached copy is out of date now
+            projectRecordCache.invalidate(idProject);
+
+            return rows > 0 ? getProjectInfo(idProject) : null;
+        }
+
+        // The shared flag is read to keep the project counts in step, and the
+        // code hash to release the code the project no longer refers to. The
+        // rest of the row completes the updated project.
+        Record current = create
+                .select(PROJECT_INFO_FIELDS)
+                .select(ProjectCodeStore.PROJECT_CODE_HASH)
+                .from(Tables.PROJECT)
+                .where(Tables.PROJECT.ID.equal(idProject))
+                .and(Tables.PROJECT.ID_USER.equal(idUser))
+                .forUpdate()
+                .fetchOne();
+
+        if (current == null) {
+            return null;
+        }
+
+        Map<Field<?>, Object> values = changes;
+        if (changes.containsKey(Tables.PROJECT.CODE)) {
+            String code = (String) changes.get(Tables.PROJECT.CODE);
+            String codeHash = code == null ? null : ProjectCodeStore.hash(code);
+            String previousHash = current.getValue(ProjectCodeStore.PROJECT_CODE_HASH);
+
+            if (codeHash == null || !codeHash.equals(previousHash)) {
+                Map<String, Integer> references = new HashMap<>();
+                ProjectCodeStore.reference(references, codeHash, 1);
+                ProjectCodeStore.reference(references, previousHash, -1);
+                projectCodeStore.change(references, Collections.singletonMap(codeHash, code));
+            }
+
+            values = storeCode(changes, codeHash);
+        }
+
+        // The project row is locked, so the update cannot miss
+        create.update(Tables.PROJECT)
+                .set(values)
+                .where(Tables.PROJECT.ID.equal(idProject))
+                .execute();
+
+        if (changes.containsKey(Tables.PROJECT.SHARED)) {
+            projectCounterStore.shareChanged(idUser,
+                    current.getValue(Tables.PROJECT.SHARED), (Boolean) changes.get(Tables.PROJECT.SHARED));
+        }
+
+        // Any cached copy is out of date now
+        projectRecordCache.invalidate(idProject);
+
+        // The updated project is the row as read with the changes applied.
+        // The code is taken from the update rather than read back.
+        ProjectRecord project = current.into(Tables.PROJECT);
+        for (Map.Entry<Field<?>, Object> change : changes.entrySet()) {
+            setValue(project, change.getKey(), change.getValue());
+        }
+        project.changed(false);
+
+        return project;
+    }
+
+    private static <T> void setValue(Record record, Field<T> field, Object value) {
+        record.setValue(field, field.getType().cast(value));
+    }
+
+    // Key-only probe returning the project owner and shared flag
+    private Record2<Long, Boolean> getProjectOwner(Long idProject) {
+        return create
+                .select(Tables.PROJECT.ID_USER, Tables.PROJECT.SHARED)
+                .from(Tables.PROJECT)
+                .where(Tables.PROJECT.ID.equal(idProject))
+                .fetchOne();
+    }
+
+    @Override
+    public ProjectRecord getProjectInfo(Long idProject) {
+        Record record = create
+                .select(PROJECT_INFO_FIELDS)
+                .from(Tables.PROJECT)
+                .where(Tables.PROJECT.ID.equal(idProject))
+                .fetchOne();
+
+        if (record == null) {
+            return null;
+        }
+
+        ProjectRecord project = record.into(Tables.PROJECT);
+        project.changed(false);
+        return project;
+    }
+
+    private static Field<?>[] projectFields() {
+        List<Field<?>> fields = new ArrayList<>();
+        for (Field<?> field : Tables.PROJECT.fields()) {
+            fields.add(field);
+        }
+        fields.add(ProjectCodeStore.PROJECT_CODE_HASH);
+
+        return fields.toArray(new Field<?>[fields.size()]);
+    }
+
+    private static Field<?>[] projectInfoFields() {
+        List<Field<?>> fields = new ArrayList<>();
+        for (Field<?> field : Tables.PROJECT.fields()) {
+            if (!field.equals(Tables.PROJECT.CODE)) {
+                fields.add(field);
+            }
+        }
+
+        return fields.toArray(new Field<?>[fields.size()]);
+    }
+
     
     // Produce a current timestamp
     private GregorianCalendar getCurrentTimestamp() {
@@ -746,7 +1676,7 @@ public class ProjectDaoImpl implements ProjectDao {
         }
 
         try {
-            if (record.getCodeBlockVersion() == BLOCKLY_LIBRARY_VERSION) {
+            if (record.getCodeBlockVersion() >= BLOCKLY_LIBRARY_VERSION) {
                 LOG.info("Bypassing project block evaluation");
                 return record;
             }
@@ -773,12 +1703,17 @@ public class ProjectDaoImpl implements ProjectDao {
              * are unalike, update the project code in the database with the
              * updated code.
              */
-            newCode = fixPropcProjectBlocks(currentCode, record.getType());
+            newCode = fixPropcProjectBlocks(currentCode, record.getType(), record.getCodeBlockVersion());
 
             // Check for any difference from the original code
-            if (!currentCode.equals(newCode)) {
+            boolean changed = !currentCode.equals(newCode);
+            if (changed) {
                 record.setCode(newCode);
             }
+
+            // Write the result back, so the project is only migrated once
+            projectCodeUpgrader.upgrade(
+                    record.getId(), record.getCodeBlockVersion(), changed ? newCode : null);
         } catch (Exception ex) {
             LOG.error("Exception trapped. Message is: {}", ex.getMessage());
         }
@@ -787,245 +1722,18 @@ public class ProjectDaoImpl implements ProjectDao {
         return record;
     }
 
-        /**
-     *
-     * Create a random string to use as a blockID.
-     *
-     * This method is used to create a random block name for blocks that are
-     * replaced in the deprecated block conversion routines.
-     *
-     * @param len
-     * @return
-     */
-    private String randomString(int len) {
-        StringBuilder sb = new StringBuilder(len);
-        for (int i = 0; i < len; i++) {
-            sb.append(AB.charAt(rnd.nextInt(AB.length())));
-        }
-        return sb.toString();
-    }
-
-    // Correct depricated block details related to Spin blocks
-    @Deprecated
-    private String fixSpinProjectBlocks(String newCode) {
-        LOG.info("Looking for depricated Spin blocks.");
-
-        newCode = newCode.replaceAll(
-                "block type=\"controls_if\"",
-                "block type=\"controls_boolean_if\"");
-
-        newCode = newCode.replaceAll(
-                "block type=\"logic_compare\"",
-                "block type=\"logic_boolean_compare\"");
-
-        newCode = newCode.replaceAll(
-                "block type=\"logic_operation\"",
-                "block type=\"logic_boolean_operation\"");
-
-        newCode = newCode.replaceAll(
-                "block type=\"logic_negate\"",
-                "block type=\"logic_boolean_negate\"");
-
-        newCode = newCode.replaceAll(
-                "block type=\"math_number\"",
-                "block type=\"spin_integer\"");
-        
-        return newCode;
-    }
-
     /**
      * Find and replace deprecated project code blocks
      * 
      * @param originalCode is the project code that will be evaluated.
      * @param projType
+     * @param blockVersion is the block version the code was saved with.
      * @return 
      */
-    private String fixPropcProjectBlocks(String originalCode, ProjectType projType) {
+    private String fixPropcProjectBlocks(String originalCode, ProjectType projType, short blockVersion) {
         LOG.info("Looking for depricated PropC blocks.");
-        
-        // Copy the original project code into a working variable
-        String newCode = originalCode;
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">ADD</field",
-                "field name=\"OP\"> + </field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">MINUS</field",
-                "field name=\"OP\"> - </field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">MULTIPLY</field",
-                "field name=\"OP\"> * </field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">DIVIDE</field",
-                "field name=\"OP\"> / </field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">MODULUS</field",
-                "field name=\"OP\"> % </field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">AND</field",
-                "field name=\"OP\"> &amp;&amp; </field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">AND_NOT</field",
-                "field name=\"OP\"> &amp;&amp; !</field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">LT</field",
-                "field name=\"OP\">&lt;</field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">GT</field",
-                "field name=\"OP\">&gt;</field");
 
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">LTE</field",
-                "field name=\"OP\">&lt;=</field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">GTE</field",
-                "field name=\"OP\">&gt;=</field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">EQ</field",
-                "field name=\"OP\">==</field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"OP\">NEQ</field",
-                "field name=\"OP\">!=</field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"UNIT\">INCHES</field",
-                "field name=\"UNIT\">_inches</field");
-
-        newCode = newCode.replaceAll(
-                "field name=\"UNIT\">CM</field",
-                "field name=\"UNIT\">_cm</field");
-
-        newCode = newCode.replaceAll(
-                "block type=\"spin_comment\"",
-                "block type=\"comment\"");
-
-        newCode = newCode.replaceAll(
-                "field name=\"COMMENT\">",
-                "field name=\"COMMENT_TEXT\">");
-
-        newCode = newCode.replaceAll(
-                "block type=\"controls_boolean_if\"",
-                "block type=\"controls_if\"");
-
-        newCode = newCode.replaceAll(
-                "block type=\"logic_boolean_compare\"",
-                "block type=\"logic_compare\"");
-
-        newCode = newCode.replaceAll(
-                "block type=\"logic_boolean_operation\"",
-                "block type=\"logic_operation\"");
-
-        newCode = newCode.replaceAll(
-                "block type=\"logic_boolean_negate\"",
-                "block type=\"logic_negate\"");
-        
-        newCode = newCode.replaceAll( "_000 / ", "000 / ");
-
-        // Fix a small issue with calling the wrong project type.
-        newCode = newCode.replaceAll(
-                "block type=\"spin_integer\"",
-                "block type=\"math_number\"");
-        
-        if (!newCode.contains("block type=\"math_number\"") && projType == ProjectType.SPIN) {
-            // Change all math number blocks to the same kind
-            newCode = newCode.replaceAll(
-                    "block type=\"math_int_angle\"",
-                    "block type=\"math_number\"");
-            
-            newCode = newCode.replaceAll(
-                    "block type=\"math_integer\"",
-                    "block type=\"math_number\"");
-            
-            newCode = newCode.replaceAll(
-                    "block type=\"scribbler_random_number\"",
-                    "block type=\"math_random\"");
-            
-            newCode = newCode.replaceAll(
-                    "field name=\"INT_VALUE\"",
-                    "field name=\"NUM\"");
-            
-            newCode = newCode.replaceAll(
-                    "field name=\"ANGLE_VALUE\"",
-                    "field name=\"NUM\"");
-
-            newCode = newCode.replaceAll(
-                    "block type=\"digital_input\"",
-                    "block type=\"check_pin\"");
-            
-            newCode = newCode.replaceAll(
-                    "block type=\"digital_output\"",
-                    "block type=\"make_pin\"");
-            
-            newCode = newCode.replaceAll(
-                    "block type=\"scribbler_servo\"",
-                    "block type=\"servo_move\"");
-            
-            newCode = newCode.replaceAll(
-                    "field name=\"SERVO_PIN\"",
-                    "field name=\"PIN\"");
-            
-            newCode = newCode.replaceAll(
-                    "field name=\"SERVO_ANGLE\"",
-                    "field name=\"ANGLE\"");
-            
-            newCode = newCode.replaceAll(
-                    "<block type=\"serial_",
-                    "<block type=\"scribbler_serial_");
-            
-            newCode = newCode.replaceAll(
-                    "field name=\"TIMESCALE\">1000<",
-                    "field name=\"TIMESCALE\">Z1<");
-            
-            newCode = newCode.replaceAll(
-                    "field name=\"TIMESCALE\">1<",
-                    "field name=\"TIMESCALE\">Z1000<");
-            
-            newCode = newCode.replaceAll(
-                    "field name=\"TIMESCALE\">10<",
-                    "field name=\"TIMESCALE\">100<");
-            
-            newCode = newCode.replaceAll(
-                    "field name=\"TIMESCALE\">Z",
-                    "field name=\"TIMESCALE\">");
-            
-            newCode = newCode.replaceAll("Scribbler#CS","256");
-            newCode = newCode.replaceAll("Scribbler#NL","10");
-            newCode = newCode.replaceAll("Scribbler#LF","13");
-            newCode = newCode.replaceAll("Scribbler#BS","127");
-            
-            newCode = newCode.replaceAll(
-                    "block type=\"scribbler_loop\"",
-                    "block type=\"controls_repeat\"");
-            
-            newCode = newCode.replaceAll(
-                    "statement name=\"LOOP\"",
-                    "statement name=\"DO\"");
-            
-            newCode = newCode.replaceAll(
-                    "<block type=\"scribbler_limited_loop\" id=(.*)><field name=\"LOOP_COUNT\">(.*)</field><statement name=\"LOOP\">",
-                    "<block type=\"controls_repeat\" id=$1><mutation type=\"TIMES\"></mutation><field name=\"TYPE\">TIMES</field><value name=\"TIMES\"><block type=\"math_number\" id=\"" + randomString(20) + "\"><field name=\"NUM\">$2</field></block></value><statement name=\"DO\">");      
-        }
-        
-        // Replace the Robot init block with two blocks, need to generate unique 20-digit blockID:
-        if (!newCode.contains("block type=\"ab_drive_ramping\"")) {
-            newCode = newCode.replaceAll(
-                    "</field><field name=\"RAMPING\">", 
-                    "</field></block><block type=\"ab_drive_ramping\" id=\""
-                            + randomString(20) 
-                            + "\"><field name=\"RAMPING\">");
-        }
-        
-        return newCode;
+        return ProjectCodeMigrations.standard().migrate(
+                originalCode, projType, blockVersion, ProjectCodeMigration.RANDOM_BLOCK_IDS);
     }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.dao.impl;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.ProjectMigrationStatus;
+import java.sql.Timestamp;
+import org.jooq.DSLContext;
+import org.jooq.DataType;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+
+
+/**
+ * Checkpoint of the bulk migration of project code.
+ *
+ * The blocklyprop.project_migration table holds a single row with the status
+ * of the latest migration run.
+ */
+@Singleton
+public class ProjectMigrationStore {
+
+    /**
+     * The id of the single checkpoint row
+     */
+    private static final Byte CHECKPOINT = 1;
+
+    static final Table<Record> PROJECT_MIGRATION = DSL.table(DSL.name("blocklyprop", "project_migration"));
+
+    static final Field<Byte> ID = field("id", SQLDataType.TINYINT);
+    static final Field<String> STATE = field("state", SQLDataType.VARCHAR.length(16));
+    static final Field<Boolean> DRY_RUN = field("dry_run", SQLDataType.BOOLEAN);
+    static final Field<Short> BLOCK_VERSION = field("block_version", SQLDataType.SMALLINT);
+    static final Field<Long> LAST_ID = field("last_id", SQLDataType.BIGINT);
+    static final Field<Long> EXAMINED = field("examined", SQLDataType.BIGINT);
+    static final Field<Long> MIGRATED = field("migrated", SQLDataType.BIGINT);
+    static final Field<Long> UNCHANGED = field("unchanged", SQLDataType.BIGINT);
+    static final Field<Long> SKIPPED = field("skipped", SQLDataType.BIGINT);
+    static final Field<Long> FAILED = field("failed", SQLDataType.BIGINT);
+    static final Field<Timestamp> STARTED = field("started", SQLDataType.TIMESTAMP);
+    static final Field<Timestamp> UPDATED = field("updated", SQLDataType.TIMESTAMP);
+
+    private DSLContext create;
+
+
+    @Inject
+    public void setDSLContext(DSLContext dsl) {
+        this.create = dsl;
+    }
+
+    /**
+     * Read the checkpoint
+     *
+     * @return the status of the latest run, or null if there has been none
+     */
+    public ProjectMigrationStatus get() {
+        Record row = create
+                .selectFrom(PROJECT_MIGRATION)
+                .where(ID.equal(CHECKPOINT))
+                .fetchOne();
+
+        if (row == null) {
+            return null;
+        }
+
+        ProjectMigrationStatus status = new ProjectMigrationStatus();
+        status.setState(ProjectMigrationStatus.State.valueOf(row.getValue(STATE)));
+        status.setDryRun(row.getValue(DRY_RUN));
+        status.setBlockVersion(row.getValue(BLOCK_VERSION));
+        status.setLastId(row.getValue(LAST_ID));
+        status.setExamined(row.getValue(EXAMINED));
+        status.setMigrated(row.getValue(MIGRATED));
+        status.setUnchanged(row.getValue(UNCHANGED));
+        status.setSkipped(row.getValue(SKIPPED));
+        status.setFailed(row.getValue(FAILED));
+        status.setStarted(row.getValue(STARTED));
+        status.setUpdated(row.getValue(UPDATED));
+
+        return status;
+    }
+
+    /**
+     * Write the checkpoint
+     *
+     * @param status
+     */
+    public void save(ProjectMigrationStatus status) {
+        create.insertInto(PROJECT_MIGRATION)
+                .set(ID, CHECKPOINT)
+                .set(STATE, status.getState().name())
+                .set(DRY_RUN, status.isDryRun())
+                .set(BLOCK_VERSION, status.getBlockVersion())
+                .set(LAST_ID, status.getLastId())
+                .set(EXAMINED, status.getExamined())
+                .set(MIGRATED, status.getMigrated())
+                .set(UNCHANGED, status.getUnchanged())
+                .set(SKIPPED, status.getSkipped())
+                .set(FAILED, status.getFailed())
+                .set(STARTED, status.getStarted())
+                .set(UPDATED, status.getUpdated())
+                .onDuplicateKeyUpdate()
+                .set(STATE, status.getState().name())
+                .set(DRY_RUN, status.isDryRun())
+                .set(BLOCK_VERSION, status.getBlockVersion())
+                .set(LAST_ID, status.getLastId())
+                .set(EXAMINED, status.getExamined())
+                .set(MIGRATED, status.getMigrated())
+                .set(UNCHANGED, status.getUnchanged())
+                .set(SKIPPED, status.getSkipped())
+                .set(FAILED, status.getFailed())
+                .set(STARTED, status.getStarted())
+                .set(UPDATED, status.getUpdated())
+                .execute();
+    }
+
+
+    private static <T> Field<T> field(String name, DataType<T> type) {
+        return DSL.field(DSL.name("blocklyprop", "project_migration", name), type);
+    }
+
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.dao.impl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.db.generated.Tables;
+import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.configuration.Configuration;
+import org.jooq.DSLContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * In-process cache of project records, keyed by project id.
+ *
+ * The cache holds detached snapshots of the project rows as they were read
+ * from the database, before any deprecated block conversion is applied.
+ * Callers never see the snapshot itself; every hit returns a fresh copy
+ * attached to the caller's DSL context, so a caller can modify and update
+ * the record exactly as if it had been fetched from the database.
+ *
+ * The cache is bounded by the approximate number of bytes held in the text
+ * columns of the cached records, so a handful of very large projects cannot
+ * crowd the heap. Entries also expire after a short time so that a project
+ * changed through another server instance is not served stale for long.
+ *
+ * A project is changed inside a transaction, and a concurrent read can still
+ * see the old row until that transaction commits. An invalidation made
+ * within a transaction is therefore repeated when the outermost transaction
+ * of the thread completes, by the TransactionInterceptor. Every invalidation
+ * also raises the generation of the project, and a record read while the
+ * generation of its project changed is not cached.
+ */
+@Singleton
+public class ProjectRecordCache {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectRecordCache.class);
+
+    /**
+     * Approximate fixed cost of a cached record, excluding its text columns
+     */
+    private static final int RECORD_OVERHEAD_BYTES = 512;
+
+    /**
+     * Invalidations are remembered for much longer than any read takes
+     */
+    private static final long GENERATION_RETENTION_MINUTES = 10;
+
+    private final boolean enabled;
+
+    private final Cache<Long, ProjectRecord> cache;
+
+    /**
+     * Raised by every invalidation
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Generation of the last invalidation, per recently invalidated project
+     */
+    private final Cache<Long, Long> invalidated = CacheBuilder.newBuilder()
+            .expireAfterWrite(GENERATION_RETENTION_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * Transaction depth of the thread, and the projects it invalidated
+     * within the transaction
+     */
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+
+
+    @Inject
+    public ProjectRecordCache(Configuration configuration) {
+        enabled = configuration.getBoolean("project.cache.enabled", true);
+        long maxBytes = configuration.getLong("project.cache.maxbytes", 64L * 1024 * 1024);
+        long ttl = configuration.getLong("project.cache.ttl", 60);
+
+        LOG.info("Project cache enabled: {}, size: {} bytes, ttl: {} seconds",
+                enabled, maxBytes, ttl);
+
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Long, ProjectRecord>() {
+                    @Override
+                    public int weigh(Long idProject, ProjectRecord record) {
+                        return weight(record);
+                    }
+                })
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+
+        registerMetrics();
+    }
+
+
+    /**
+     * Return a copy of the cached project record
+     *
+     * @param idProject
+     * @param dsl the context the returned copy is attached to
+     *
+     * @return a ProjectRecord or null if the project is not in the cache
+     */
+    public ProjectRecord get(Long idProject, DSLContext dsl) {
+        if (!enabled || idProject == null) {
+            return null;
+        }
+
+        ProjectRecord snapshot = cache.getIfPresent(idProject);
+        if (snapshot == null) {
+            return null;
+        }
+
+        LOG.debug("Project {} served from the cache", idProject);
+
+        ProjectRecord record = copy(snapshot);
+        record.attach(dsl.configuration());
+        return record;
+    }
+
+    /**
+     * The current generation. Take it before reading a project to cache.
+     *
+     * @return
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Store a snapshot of a project record freshly read from the database,
+     * unless the project was invalidated since the read started
+     *
+     * @param record
+     * @param readGeneration the generation taken before the record was read
+     */
+    public void put(ProjectRecord record, long readGeneration) {
+        if (!enabled || record == null || record.getId() == null) {
+            return;
+        }
+
+        ProjectRecord snapshot = copy(record);
+        snapshot.detach();
+
+        // Checked after the copy, so an invalidation while copying is seen
+        Long last = invalidated.getIfPresent(snapshot.getId());
+        if (last != null && last > readGeneration) {
+            LOG.debug("Project {} changed while it was read, not cached", snapshot.getId());
+            return;
+        }
+
+        cache.put(snapshot.getId(), snapshot);
+
+        // An invalidation between the check and the put must still win
+        last = invalidated.getIfPresent(snapshot.getId());
+        if (last != null && last > readGeneration) {
+            cache.invalidate(snapshot.getId());
+        }
+    }
+
+    /**
+     * Drop a project from the cache. This must be called whenever the
+     * project row is changed or removed. Within a transaction, the project
+     * is dropped again once the transaction completes.
+     *
+     * @param idProject
+     */
+    public void invalidate(Long idProject) {
+        if (idProject == null) {
+            return;
+        }
+
+        drop(idProject);
+
+        Transaction current = transaction.get();
+        if (current != null) {
+            current.invalidated.add(idProject);
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+
+    private void drop(Long idProject) {
+        invalidated.put(idProject, generation.incrementAndGet());
+        cache.invalidate(idProject);
+    }
+
+    // Copy all values of a project record into a new, unchanged record
+    private ProjectRecord copy(ProjectRecord record) {
+        ProjectRecord copy = record.into(Tables.PROJECT);
+        copy.changed(false);
+        return copy;
+    }
+
+    // Estimate the heap used by a project record. Strings are UTF-16.
+    private static int weight(ProjectRecord record) {
+        long chars = length(record.getCode())
+                + length(record.getDescription())
+                + length(record.getDescriptionHtml())
+                + length(record.getName());
+
+        return (int) Math.min(Integer.MAX_VALUE, RECORD_OVERHEAD_BYTES + chars * 2);
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private void registerMetrics() {
+        MetricRegistry metrics = Monitor.metrics();
+
+        metrics.register(MetricRegistry.name("project", "cache", "hits"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cache.stats().hitCount();
+            }
+        });
+
+        metrics.register(MetricRegistry.name("project", "cache", "misses"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cache.stats().missCount();
+            }
+        });
+
+        metrics.register(MetricRegistry.name("project", "cache", "evictions"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cache.stats().evictionCount();
+            }
+        });
+
+        metrics.register(MetricRegistry.name("project", "cache", "size"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cache.size();
+            }
+        });
+    }
+
+
+    /**
+     * Transaction state of a thread
+     */
+    static class Transaction {
+
+        private int depth;
+
+        private final Set<Long> invalidated = new HashSet<>();
+    }
+
+
+    /**
+     * Repeats the invalidations made within a transaction once the outermost
+     * transaction has completed. It must be bound before the transaction
+     * interceptor, so it runs outside of it.
+     */
+    public static class TransactionInterceptor implements MethodInterceptor {
+
+        private ProjectRecordCache projectRecordCache;
+
+        @Inject
+        public void setProjectRecordCache(ProjectRecordCache projectRecordCache) {
+            this.projectRecordCache = projectRecordCache;
+        }
+
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            ThreadLocal<Transaction> transaction = projectRecordCache.transaction;
+
+            Transaction current = transaction.get();
+            if (current == null) {
+                current = new Transaction();
+                transaction.set(current);
+            }
+
+            current.depth++;
+            try {
+                return invocation.proceed();
+            } finally {
+                if (--current.depth == 0) {
+                    transaction.remove();
+
+                    // Committed or rolled back by now
+                    for (Long idProject : current.invalidated) {
+                        projectRecordCache.drop(idProject);
+                    }
+                }
+            }
+        }
+    }
+
+}
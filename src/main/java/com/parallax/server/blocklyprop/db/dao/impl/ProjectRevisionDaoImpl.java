@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.dao.impl;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.ProjectRevision;
+import com.parallax.server.blocklyprop.db.dao.ProjectRevisionDao;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import org.jooq.DSLContext;
+import org.jooq.DataType;
+import org.jooq.Field;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Record1;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Storage of the revision history of project code in the
+ * blocklyprop.project_revision table. The table is not part of the generated
+ * jOOQ classes.
+ */
+@Singleton
+public class ProjectRevisionDaoImpl implements ProjectRevisionDao {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectRevisionDaoImpl.class);
+
+    private static final Table<?> PROJECT_REVISION = DSL.table(DSL.name("blocklyprop", "project_revision"));
+
+    private static final Field<Long> ID_PROJECT = field("id_project", SQLDataType.BIGINT);
+    private static final Field<Integer> REVISION = field("revision", SQLDataType.INTEGER);
+    private static final Field<Boolean> SNAPSHOT = field("snapshot", SQLDataType.BOOLEAN);
+    private static final Field<Integer> DEPTH = field("depth", SQLDataType.INTEGER);
+    private static final Field<Integer> CODE_SIZE = field("code_size", SQLDataType.INTEGER);
+    private static final Field<byte[]> DATA = field("data", SQLDataType.BLOB);
+    private static final Field<Timestamp> CREATED = field("created", SQLDataType.TIMESTAMP);
+
+    /**
+     * Database connection context
+     */
+    private DSLContext create;
+
+
+    @Inject
+    public void setDSLContext(DSLContext dsl) {
+        this.create = dsl;
+    }
+
+
+    @Override
+    public void createRevisions(List<ProjectRevision> revisions) {
+        if (revisions.isEmpty()) {
+            return;
+        }
+
+        List<Query> inserts = new ArrayList<>(revisions.size());
+        for (ProjectRevision revision : revisions) {
+            // Ignore revisions of projects deleted in the meantime
+            inserts.add(create
+                    .insertInto(PROJECT_REVISION,
+                            ID_PROJECT, REVISION, SNAPSHOT, DEPTH, CODE_SIZE, DATA, CREATED)
+                    .values(
+                            revision.getIdProject(),
+                            revision.getRevision(),
+                            revision.getSnapshot(),
+                            revision.getDepth(),
+                            revision.getSize(),
+                            revision.getData(),
+                            new Timestamp(revision.getCreated().getTimeInMillis()))
+                    .onDuplicateKeyIgnore());
+        }
+
+        create.batch(inserts).execute();
+        LOG.debug("Stored {} project revisions", revisions.size());
+    }
+
+    @Override
+    public ProjectRevision getLatestRevision(Long idProject) {
+        Record record = create
+                .select(ID_PROJECT, REVISION, SNAPSHOT, DEPTH, CODE_SIZE, CREATED)
+                .from(PROJECT_REVISION)
+                .where(ID_PROJECT.equal(idProject))
+                .orderBy(REVISION.desc())
+                .limit(1)
+                .fetchOne();
+
+        return record == null ? null : toRevision(record);
+    }
+
+    @Override
+    public ProjectRevision lockLatestRevision(Long idProject) {
+        Record record = create
+                .select(ID_PROJECT, REVISION, SNAPSHOT, DEPTH, CODE_SIZE, CREATED)
+                .from(PROJECT_REVISION)
+                .where(ID_PROJECT.equal(idProject))
+                .orderBy(REVISION.desc())
+                .limit(1)
+                .forUpdate()
+                .fetchOne();
+
+        return record == null ? null : toRevision(record);
+    }
+
+    @Override
+    public List<ProjectRevision> getRevisions(Long idProject) {
+        List<ProjectRevision> revisions = new ArrayList<>();
+
+        for (Record record : create
+                .select(ID_PROJECT, REVISION, SNAPSHOT, DEPTH, CODE_SIZE, CREATED)
+                .from(PROJECT_REVISION)
+                .where(ID_PROJECT.equal(idProject))
+                .orderBy(REVISION.desc())
+                .fetch()) {
+
+            revisions.add(toRevision(record));
+        }
+
+        return revisions;
+    }
+
+    @Override
+    public List<ProjectRevision> getRevisionChain(Long idProject, Integer revision) {
+        List<ProjectRevision> chain = new ArrayList<>();
+
+        Record1<Integer> snapshot = create
+                .select(DSL.max(REVISION))
+                .from(PROJECT_REVISION)
+                .where(ID_PROJECT.equal(idProject))
+                .and(REVISION.lessOrEqual(revision))
+                .and(SNAPSHOT.isTrue())
+                .fetchOne();
+
+        if (snapshot == null || snapshot.value1() == null) {
+            return chain;
+        }
+
+        for (Record record : create
+                .select(ID_PROJECT, REVISION, SNAPSHOT, DEPTH, CODE_SIZE, CREATED, DATA)
+                .from(PROJECT_REVISION)
+                .where(ID_PROJECT.equal(idProject))
+                .and(REVISION.between(snapshot.value1(), revision))
+                .orderBy(REVISION)
+                .fetch()) {
+
+            ProjectRevision stored = toRevision(record);
+            stored.setData(record.getValue(DATA));
+            chain.add(stored);
+        }
+
+        // The requested revision itself must exist
+        if (!chain.isEmpty() && !chain.get(chain.size() - 1).getRevision().equals(revision)) {
+            chain.clear();
+        }
+
+        return chain;
+    }
+
+    @Override
+    public Integer getFirstRevisionSince(Long idProject, Timestamp since) {
+        return create
+                .select(DSL.min(REVISION))
+                .from(PROJECT_REVISION)
+                .where(ID_PROJECT.equal(idProject))
+                .and(CREATED.greaterOrEqual(since))
+                .fetchOne()
+                .value1();
+    }
+
+    @Override
+    public void replaceWithSnapshot(Long idProject, Integer revision, byte[] data) {
+        create.update(PROJECT_REVISION)
+                .set(SNAPSHOT, true)
+                .set(DEPTH, 0)
+                .set(DATA, data)
+                .where(ID_PROJECT.equal(idProject))
+                .and(REVISION.equal(revision))
+                .execute();
+    }
+
+    @Override
+    public int deleteRevisionsBefore(Long idProject, Integer revision) {
+        return create.deleteFrom(PROJECT_REVISION)
+                .where(ID_PROJECT.equal(idProject))
+                .and(REVISION.lessThan(revision))
+                .execute();
+    }
+
+    @Override
+    public List<Long> getProjectsWithRevisions(Long idAfter, int limit) {
+        return create
+                .selectDistinct(ID_PROJECT)
+                .from(PROJECT_REVISION)
+                .where(ID_PROJECT.greaterThan(idAfter))
+                .orderBy(ID_PROJECT)
+                .limit(limit)
+                .fetch(ID_PROJECT);
+    }
+
+
+    private static <T> Field<T> field(String name, DataType<T> type) {
+        return DSL.field(DSL.name("blocklyprop", "project_revision", name), type);
+    }
+
+    private static ProjectRevision toRevision(Record record) {
+        ProjectRevision revision = new ProjectRevision();
+        revision.setIdProject(record.getValue(ID_PROJECT));
+        revision.setRevision(record.getValue(REVISION));
+        revision.setSnapshot(record.getValue(SNAPSHOT));
+        revision.setDepth(record.getValue(DEPTH));
+        revision.setSize(record.getValue(CODE_SIZE));
+
+        Timestamp created = record.getValue(CREATED);
+        if (created != null) {
+            GregorianCalendar calendar = new GregorianCalendar();
+            calendar.setTimeInMillis(created.getTime());
+            revision.setCreated(calendar);
+        }
+
+        return revision;
+    }
+
+}
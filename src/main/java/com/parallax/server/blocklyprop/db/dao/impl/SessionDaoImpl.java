@@ -10,15 +10,22 @@ import com.google.inject.Singleton;
 import com.parallax.server.blocklyprop.db.dao.SessionDao;
 import com.parallax.server.blocklyprop.db.generated.Tables;
 import com.parallax.server.blocklyprop.db.generated.tables.records.SessionRecord;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
+import com.parallax.server.blocklyprop.db.utils.SessionAttributeCodec;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.apache.commons.configuration.Configuration;
+import org.jooq.Condition;
 import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Query;
+import org.jooq.UpdateSetMoreStep;
+import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +39,19 @@ public class SessionDaoImpl implements SessionDao {
     // Get a logger instance
     private static final Logger LOG = LoggerFactory.getLogger(SessionDaoImpl.class);
 
+    /**
+     * Raised by every update of a session. It is not part of the generated
+     * jOOQ classes.
+     */
+    static final Field<Integer> VERSION = DSL.field(
+            DSL.name("blocklyprop", "session", "version"), SQLDataType.INTEGER);
+
+    /**
+     * Name of the lock that keeps servers from deleting the same expired
+     * sessions
+     */
+    private static final String REAPER_LOCK = "blocklyprop.session.reaper";
+
     /**
      * 
      */
@@ -42,6 +62,14 @@ public class SessionDaoImpl implements SessionDao {
      */
     private Configuration configuration;
 
+    private SessionAttributeCodec sessionAttributeCodec;
+
+    /**
+     * Log the attributes of every session read and written. Read once, as
+     * sessions are read and written on every request.
+     */
+    private boolean debugSession;
+
     @Inject
     public void setDSLContext(DSLContext dsl) {
         this.create = dsl;
@@ -54,6 +82,12 @@ public class SessionDaoImpl implements SessionDao {
     @Inject
     public void setConfiguration(Configuration configuration) {
         this.configuration = configuration;
+        this.debugSession = configuration.getBoolean("debug.session", false);
+    }
+
+    @Inject
+    public void setSessionAttributeCodec(SessionAttributeCodec sessionAttributeCodec) {
+        this.sessionAttributeCodec = sessionAttributeCodec;
     }
 
     /**
@@ -118,38 +152,98 @@ public class SessionDaoImpl implements SessionDao {
    }
 
     /**
-     * 
+     * Update a session in a single statement, without reading it first
+     *
      * @param session
-     * @throws NullPointerException 
+     * @throws NullPointerException if the session does not exist
      */
     @Override
     public void updateSession(SessionRecord session) throws NullPointerException {
         LOG.debug("Update a session");
 
+        int rows;
         try {
-            // Get the current session record
-            SessionRecord dbRecord = readSession(session.getIdsession());
-            
-            if (dbRecord == null) {
-                throw new NullPointerException("Session not found");
-            }
-      
-            dbRecord.setStarttimestamp(session.getStarttimestamp());
-            dbRecord.setLastaccesstime(session.getLastaccesstime());
-            dbRecord.setTimeout(session.getTimeout());
-            dbRecord.setHost(session.getHost());
-            dbRecord.setAttributes(session.getAttributes());
-        
-            // Log session details if the configuration file permits it
-            printSessionInfo("update from", session);
-            printSessionInfo("update to", dbRecord);
-        
-            dbRecord.update();
+            rows = update(session)
+                    .where(Tables.SESSION.IDSESSION.eq(session.getIdsession()))
+                    .execute();
         }
         catch (org.jooq.exception.DataAccessException sqex) {
             LOG.error("Database exception {}", sqex.getMessage());
             throw new NullPointerException("Database error");
         }
+
+        if (rows == 0) {
+            throw new NullPointerException("Session not found");
+        }
+
+        // Log session details if the configuration file permits it
+        printSessionInfo("update", session);
+    }
+
+    /**
+     * Update a session, unless it was changed since the version was read
+     *
+     * @param session
+     * @param version the version the session is expected to be at
+     * @return false if the session is not at the version, or does not exist
+     */
+    @Override
+    public boolean updateSession(SessionRecord session, int version) {
+        LOG.debug("Update a session at version {}", version);
+
+        boolean updated;
+        try {
+            updated = update(session)
+                    .where(Tables.SESSION.IDSESSION.eq(session.getIdsession()))
+                    .and(VERSION.eq(version))
+                    .execute() > 0;
+        }
+        catch (org.jooq.exception.DataAccessException sqex) {
+            LOG.error("Database exception {}", sqex.getMessage());
+            return false;
+        }
+
+        if (updated) {
+            printSessionInfo("update", session);
+        }
+        return updated;
+    }
+
+    /**
+     * Read the version of a session, without its attributes
+     *
+     * @param idSession
+     * @return the version, or null if the session does not exist
+     */
+    @Override
+    public Integer getSessionVersion(String idSession) {
+        return create.select(VERSION)
+                .from(Tables.SESSION)
+                .where(Tables.SESSION.IDSESSION.eq(idSession))
+                .fetchOne(VERSION);
+    }
+
+    /**
+     * Write the last access time of sessions, and nothing else. The version
+     * is left alone, as the access time does not matter to cached copies of
+     * a session. An access time never moves back.
+     *
+     * @param lastAccessTimes per session id
+     */
+    @Override
+    public void touchSessions(Map<String, Timestamp> lastAccessTimes) {
+        List<Query> updates = new ArrayList<>(lastAccessTimes.size());
+
+        for (Map.Entry<String, Timestamp> touch : lastAccessTimes.entrySet()) {
+            updates.add(create.update(Tables.SESSION)
+                    .set(Tables.SESSION.LASTACCESSTIME,
+                            DSL.greatest(Tables.SESSION.LASTACCESSTIME, DSL.val(touch.getValue())))
+                    .where(Tables.SESSION.IDSESSION.eq(touch.getKey())));
+        }
+
+        if (!updates.isEmpty()) {
+            create.batch(updates).execute();
+        }
     }
 
     /**
@@ -162,6 +256,62 @@ public class SessionDaoImpl implements SessionDao {
         create.deleteFrom(Tables.SESSION).where(Tables.SESSION.IDSESSION.eq(idSession)).execute();
     }
 
+    /**
+     * Take the session reaper lock, a MySQL named lock held by the database
+     * connection until it is released
+     *
+     * @return false if another connection holds the lock
+     */
+    @Override
+    public boolean lockSessionReaper() {
+        Object locked = create.fetchValue("select get_lock(?, 0)", REAPER_LOCK);
+        return locked != null && ((Number) locked).intValue() == 1;
+    }
+
+    @Override
+    public void unlockSessionReaper() {
+        create.fetchValue("select release_lock(?)", REAPER_LOCK);
+    }
+
+    /**
+     * Delete the oldest expired sessions.
+     *
+     * A session has expired when it was last accessed more than its timeout
+     * before expiredBefore. Only sessions last accessed before idleBefore are
+     * considered, which lets the last access time index limit the search.
+     * Sessions without a timeout, or with a negative one, never expire.
+     *
+     * @param expiredBefore
+     * @param idleBefore
+     * @param limit the maximum number of sessions to delete
+     * @return the number of sessions deleted
+     */
+    @Override
+    public int deleteExpiredSessions(Timestamp expiredBefore, Timestamp idleBefore, int limit) {
+        Condition expired = Tables.SESSION.TIMEOUT.ge(0L)
+                .and(DSL.condition("{0} + interval ({1} div 1000) second < {2}",
+                        Tables.SESSION.LASTACCESSTIME, Tables.SESSION.TIMEOUT, DSL.val(expiredBefore)));
+
+        List<String> sessions = create
+                .select(Tables.SESSION.IDSESSION)
+                .from(Tables.SESSION)
+                .where(Tables.SESSION.LASTACCESSTIME.lessThan(idleBefore))
+                .and(expired)
+                .orderBy(Tables.SESSION.LASTACCESSTIME)
+                .limit(limit)
+                .fetch(Tables.SESSION.IDSESSION);
+
+        if (sessions.isEmpty()) {
+            return 0;
+        }
+
+        // A session accessed in the meantime is no longer expired
+        return create.deleteFrom(Tables.SESSION)
+                .where(Tables.SESSION.IDSESSION.in(sessions))
+                .and(expired)
+                .execute();
+    }
+
     /**
      * 
      * @return 
@@ -171,22 +321,35 @@ public class SessionDaoImpl implements SessionDao {
         return Arrays.asList(create.selectFrom(Tables.SESSION).fetchArray());
     }
 
-    
+
+    // Write the session values and raise the version. The attributes are
+    // left out when the session record marks them unchanged.
+    private UpdateSetMoreStep<SessionRecord> update(SessionRecord session) {
+        UpdateSetMoreStep<SessionRecord> update = create.update(Tables.SESSION)
+                .set(Tables.SESSION.STARTTIMESTAMP, session.getStarttimestamp())
+                .set(Tables.SESSION.LASTACCESSTIME, session.getLastaccesstime())
+                .set(Tables.SESSION.TIMEOUT, session.getTimeout())
+                .set(Tables.SESSION.HOST, session.getHost())
+                .set(VERSION, VERSION.add(1));
+
+        if (session.changed(Tables.SESSION.ATTRIBUTES)) {
+            update = update.set(Tables.SESSION.ATTRIBUTES, session.getAttributes());
+        }
+
+        return update;
+    }
+
     private void printSessionInfo(String action, SessionRecord session) {
-        if (configuration.getBoolean("debug.session", false)) {
+        if (debugSession) {
             try {
                 if (session == null || session.getAttributes() == null) {
                     LOG.error("No sessions available.");
                 } else {
-                    ByteArrayInputStream bis = new ByteArrayInputStream(session.getAttributes());
-                    ObjectInput in = new ObjectInputStream(bis);
-                    HashMap attributes = (HashMap) in.readObject();
+                    HashMap attributes = sessionAttributeCodec.decode(session.getAttributes());
                     LOG.info("Session info: {}:{}", action, attributes);
                 }
-            } catch (IOException ex) {
-                LOG.error("I/O error. {}",ex.getMessage());
-            } catch (ClassNotFoundException cnfe) {
-                LOG.error("Class not found. {}", cnfe.getMessage());
+            } catch (RuntimeException ex) {
+                LOG.error("Unable to decode the session attributes. {}", ex.getMessage());
             }
         }
     }
@@ -12,8 +12,11 @@ import com.parallax.server.blocklyprop.db.enums.Role;
 import com.parallax.server.blocklyprop.db.generated.Tables;
 import com.parallax.server.blocklyprop.db.generated.tables.records.SecRoleRecord;
 import com.parallax.server.blocklyprop.db.generated.tables.records.UserRecord;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import org.apache.shiro.SecurityUtils;
@@ -149,6 +152,19 @@ public class UserDaoImpl implements UserDao {
                 .and(Tables.USER.SCREENNAME.eq(screenName))
                 .fetchOne();
     }
+
+    @Override
+    public Map<Long, String> getScreenNames(Collection<Long> idUsers) {
+        if (idUsers.isEmpty()) {
+            return new HashMap<>();
+        }
+
+        return create
+                .select(Tables.USER.ID, Tables.USER.SCREENNAME)
+                .from(Tables.USER)
+                .where(Tables.USER.ID.in(idUsers))
+                .fetchMap(Tables.USER.ID, Tables.USER.SCREENNAME);
+    }
     
     @Override
     public void setRoles(Long idUser, Set<Role> roles) {
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+
+/**
+ * Replace a fixed set of literal strings in a single pass over a text.
+ *
+ * The patterns are compiled once into an Aho-Corasick automaton, so the cost
+ * of a rewrite depends on the length of the text and not on the number of
+ * patterns. Matches are replaced left to right and never overlap.
+ *
+ * All patterns are applied at the same time. The result is the same as
+ * replacing each pattern in turn as long as no replacement creates or breaks
+ * up a match of a pattern that would be replaced after it, and matches of
+ * different patterns do not overlap. Rule sets that depend on such chains
+ * have to be composed into direct rules, or split over several rewriters.
+ * No pattern may occur inside another pattern, which is checked when the
+ * rewriter is built.
+ *
+ * A rewriter is immutable and can be shared between threads.
+ */
+public final class LiteralRewriter {
+
+    private static final int ROOT = 0;
+
+    /**
+     * Transitions from the root for 7-bit characters, where most of the
+     * text fails to match
+     */
+    private static final int ASCII = 128;
+
+    private final String[] replacements;
+    private final int[] patternLengths;
+
+    private final int[] rootTransitions = new int[ASCII];
+
+    // Outgoing transitions per state, labels are sorted
+    private final char[][] labels;
+    private final int[][] targets;
+
+    private final int[] failures;
+
+    // Pattern completed in each state, or -1
+    private final int[] matches;
+
+
+    /**
+     * Compile a set of rules
+     *
+     * @param rules replacement by pattern
+     * @throws IllegalArgumentException if a pattern is empty or occurs
+     * inside another pattern
+     */
+    public LiteralRewriter(Map<String, String> rules) {
+        String[] patterns = rules.keySet().toArray(new String[rules.size()]);
+        replacements = rules.values().toArray(new String[rules.size()]);
+        patternLengths = new int[patterns.length];
+
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i].isEmpty()) {
+                throw new IllegalArgumentException("Empty rewrite pattern");
+            }
+
+            for (int j = 0; j < patterns.length; j++) {
+                if (i != j && patterns[j].contains(patterns[i])) {
+                    throw new IllegalArgumentException(
+                            "Rewrite pattern '" + patterns[i] + "' occurs in '" + patterns[j] + "'");
+                }
+            }
+
+            patternLengths[i] = patterns[i].length();
+        }
+
+        // Trie of the patterns, transitions are kept sorted by label
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<Integer> trieMatches = new ArrayList<>();
+
+        trie.add(new TreeMap<Character, Integer>());
+        trieMatches.add(-1);
+
+        for (int i = 0; i < patterns.length; i++) {
+            int state = ROOT;
+
+            for (char c : patterns[i].toCharArray()) {
+                Integer next = trie.get(state).get(c);
+
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    trieMatches.add(-1);
+                    trie.get(state).put(c, next);
+                }
+
+                state = next;
+            }
+
+            trieMatches.set(state, i);
+        }
+
+        int states = trie.size();
+        labels = new char[states][];
+        targets = new int[states][];
+        failures = new int[states];
+        matches = new int[states];
+
+        for (int state = 0; state < states; state++) {
+            TreeMap<Character, Integer> transitions = trie.get(state);
+            labels[state] = new char[transitions.size()];
+            targets[state] = new int[transitions.size()];
+
+            int i = 0;
+            for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+                labels[state][i] = transition.getKey();
+                targets[state][i] = transition.getValue();
+                i++;
+            }
+
+            matches[state] = trieMatches.get(state);
+        }
+
+        Arrays.fill(rootTransitions, ROOT);
+        for (int i = 0; i < labels[ROOT].length; i++) {
+            if (labels[ROOT][i] < ASCII) {
+                rootTransitions[labels[ROOT][i]] = targets[ROOT][i];
+            }
+        }
+
+        // Failure links, breadth first
+        Queue<Integer> queue = new LinkedList<>();
+        for (int target : targets[ROOT]) {
+            failures[target] = ROOT;
+            queue.add(target);
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+
+            for (int i = 0; i < labels[state].length; i++) {
+                char c = labels[state][i];
+                int target = targets[state][i];
+
+                int fallback = failures[state];
+                while (fallback != ROOT && transition(fallback, c) < 0) {
+                    fallback = failures[fallback];
+                }
+
+                int next = transition(fallback, c);
+                failures[target] = next < 0 || next == target ? ROOT : next;
+
+                queue.add(target);
+            }
+        }
+    }
+
+    /**
+     * Replace all occurrences of the patterns in a text
+     *
+     * @param text
+     * @param out receives the rewritten text, but only if at least one
+     * pattern occurs in the text
+     * @return the number of replacements made
+     */
+    public int rewrite(CharSequence text, StringBuilder out) {
+        int length = text.length();
+        int copied = 0;
+        int count = 0;
+        int state = ROOT;
+
+        for (int i = 0; i < length; i++) {
+            state = next(state, text.charAt(i));
+
+            // Patterns do not contain each other, so the first one completed
+            // is also the leftmost one
+            int match = matches[state];
+            if (match >= 0) {
+                if (count++ == 0) {
+                    out.ensureCapacity(out.length() + length + 16);
+                }
+
+                out.append(text, copied, i + 1 - patternLengths[match]).append(replacements[match]);
+                copied = i + 1;
+                state = ROOT;
+            }
+        }
+
+        if (count > 0) {
+            out.append(text, copied, length);
+        }
+
+        return count;
+    }
+
+
+    private int next(int state, char c) {
+        while (state != ROOT) {
+            int next = transition(state, c);
+            if (next >= 0) {
+                return next;
+            }
+            state = failures[state];
+        }
+
+        if (c < ASCII) {
+            return rootTransitions[c];
+        }
+
+        int next = transition(ROOT, c);
+        return next < 0 ? ROOT : next;
+    }
+
+    private int transition(int state, char c) {
+        char[] stateLabels = labels[state];
+
+        // Most states have a single transition
+        if (stateLabels.length == 1) {
+            return stateLabels[0] == c ? targets[state][0] : -1;
+        }
+
+        int index = Arrays.binarySearch(stateLabels, c);
+        return index < 0 ? -1 : targets[state][index];
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.utils;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Encode project code for storage in the project code store.
+ *
+ * The first byte of an encoded value identifies the codec used for the rest
+ * of the value. This allows the codec to change later on without having to
+ * convert the projects that are already stored.
+ *
+ * Codecs:
+ *  0   Plain UTF-8 text. Used for code that is too small to be worth
+ *      compressing.
+ *  1   UTF-8 text compressed with DEFLATE (zlib format).
+ *
+ * Compression ratio and encoding time are recorded per project size bucket
+ * in the application metrics registry.
+ */
+@Singleton
+public class ProjectCodeCodec {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectCodeCodec.class);
+
+    public static final byte CODEC_PLAIN = 0;
+    public static final byte CODEC_DEFLATE = 1;
+
+    /**
+     * Upper bounds of the project size buckets, in bytes of UTF-8 code
+     */
+    private static final int[] BUCKET_LIMITS = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024};
+    private static final String[] BUCKET_NAMES = {"4k", "16k", "64k", "256k", "large"};
+
+    private final boolean enabled;
+    private final int minimumSize;
+    private final int level;
+
+    private final Histogram[] ratios = new Histogram[BUCKET_NAMES.length];
+    private final Timer[] encodeTimers = new Timer[BUCKET_NAMES.length];
+    private final Timer[] decodeTimers = new Timer[BUCKET_NAMES.length];
+
+
+    @Inject
+    public ProjectCodeCodec(Configuration configuration) {
+        enabled = configuration.getBoolean("project.code.compression.enabled", true);
+        minimumSize = configuration.getInt("project.code.compression.minsize", 256);
+        level = configuration.getInt("project.code.compression.level", Deflater.DEFAULT_COMPRESSION);
+
+        LOG.info("Project code compression enabled: {}, minimum size: {}, level: {}",
+                enabled, minimumSize, level);
+
+        MetricRegistry metrics = Monitor.metrics();
+        for (int i = 0; i < BUCKET_NAMES.length; i++) {
+            String bucket = BUCKET_NAMES[i];
+            ratios[i] = metrics.histogram(MetricRegistry.name("project", "code", "compression", bucket, "ratio"));
+            encodeTimers[i] = metrics.timer(MetricRegistry.name("project", "code", "compression", bucket, "encode"));
+            decodeTimers[i] = metrics.timer(MetricRegistry.name("project", "code", "compression", bucket, "decode"));
+        }
+    }
+
+    /**
+     * Is project code compressed when it is encoded
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Encode project code
+     *
+     * @param code
+     * @return the encoded code, or null if the code is null
+     */
+    public byte[] encode(String code) {
+        if (code == null) {
+            return null;
+        }
+
+        byte[] text = code.getBytes(StandardCharsets.UTF_8);
+        int bucket = bucket(text.length);
+
+        Timer.Context timer = encodeTimers[bucket].time();
+        try {
+            byte[] encoded = null;
+            if (enabled && text.length >= minimumSize) {
+                encoded = deflate(text);
+            }
+
+            if (encoded == null) {
+                encoded = plain(text);
+            }
+
+            // Stored size as a percentage of the original size
+            ratios[bucket].update(text.length == 0 ? 100 : (encoded.length * 100L) / text.length);
+
+            return encoded;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Decode project code created by encode()
+     *
+     * @param encoded
+     * @return the project code, or null if the encoded value is null
+     * @throws IllegalArgumentException if the value is not a valid encoding
+     */
+    public String decode(byte[] encoded) {
+        if (encoded == null) {
+            return null;
+        }
+
+        if (encoded.length == 0) {
+            throw new IllegalArgumentException("Empty project code encoding");
+        }
+
+        switch (encoded[0]) {
+            case CODEC_PLAIN:
+                return new String(encoded, 1, encoded.length - 1, StandardCharsets.UTF_8);
+
+            case CODEC_DEFLATE:
+                return inflate(encoded);
+
+            default:
+                throw new IllegalArgumentException("Unknown project code codec " + encoded[0]);
+        }
+    }
+
+    /**
+     * Summarize the compression ratio and cost per project size bucket
+     *
+     * @return a multi line report
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder("Project code compression by size bucket");
+
+        for (int i = 0; i < BUCKET_NAMES.length; i++) {
+            Snapshot ratio = ratios[i].getSnapshot();
+            Snapshot encode = encodeTimers[i].getSnapshot();
+            Snapshot decode = decodeTimers[i].getSnapshot();
+
+            report.append(String.format(
+                    "%n  %-6s projects: %d, size: %d%% median / %d%% p95, "
+                            + "encode: %.3f ms mean / %.3f ms p95, decode: %.3f ms mean",
+                    BUCKET_NAMES[i],
+                    ratios[i].getCount(),
+                    (long) ratio.getMedian(),
+                    (long) ratio.get95thPercentile(),
+                    toMillis(encode.getMean()),
+                    toMillis(encode.get95thPercentile()),
+                    toMillis(decode.getMean())));
+        }
+
+        return report.toString();
+    }
+
+
+    private byte[] plain(byte[] text) {
+        byte[] encoded = new byte[text.length + 1];
+        encoded[0] = CODEC_PLAIN;
+        System.arraycopy(text, 0, encoded, 1, text.length);
+        return encoded;
+    }
+
+    // Return null if the compressed form is not smaller than the text
+    private byte[] deflate(byte[] text) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(text);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(text.length / 4 + 16);
+            out.write(CODEC_DEFLATE);
+
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+
+                if (out.size() > text.length) {
+                    return null;
+                }
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private String inflate(byte[] encoded) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, 1, encoded.length - 1);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length * 4);
+            byte[] buffer = new byte[8192];
+            long start = System.nanoTime();
+
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated project code encoding");
+                }
+                out.write(buffer, 0, count);
+            }
+
+            decodeTimers[bucket(out.size())].update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException ex) {
+            throw new IllegalArgumentException("Corrupt project code encoding", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int bucket(int size) {
+        int bucket = Arrays.binarySearch(BUCKET_LIMITS, size);
+        return bucket >= 0 ? bucket + 1 : -bucket - 1;
+    }
+
+    private static double toMillis(double nanos) {
+        return nanos / 1000000.0;
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Compact difference between two versions of project code.
+ *
+ * A delta rebuilds the new version of the code from the previous version. It
+ * is a sequence of instructions that either copy a range of characters from
+ * the previous version or insert new text. Copies are found by indexing the
+ * previous version in fixed size blocks and looking up each position of the
+ * new version with a rolling hash, so a delta is built in a single pass over
+ * both versions.
+ *
+ * Encoding, all numbers are unsigned variable length integers:
+ *  length of the new version, in characters
+ *  followed by any number of
+ *   1 offset length      copy characters from the previous version
+ *   2 length characters  insert characters, each char as 1 to 3 bytes
+ */
+public final class ProjectCodeDelta {
+
+    private static final int OP_COPY = 1;
+    private static final int OP_INSERT = 2;
+
+    /**
+     * Shortest run of characters that is copied from the previous version
+     */
+    private static final int BLOCK = 16;
+
+    private static final int HASH_BASE = 31;
+
+    private ProjectCodeDelta() {
+    }
+
+    /**
+     * Create the delta that turns the base code into the target code
+     *
+     * @param base the previous version of the code
+     * @param target the new version of the code
+     * @return the encoded delta
+     */
+    public static byte[] encode(String base, String target) {
+        int length = target.length();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeNumber(out, length);
+
+        // Start of target text not covered by an instruction yet
+        int pending = 0;
+
+        if (length >= BLOCK && base.length() >= BLOCK) {
+            Map<Integer, Integer> index = index(base);
+            int power = power();
+            int position = 0;
+            int hash = hash(target, 0);
+
+            while (position + BLOCK <= length) {
+                Integer offset = index.get(hash);
+
+                if (offset != null && base.regionMatches(offset, target, position, BLOCK)) {
+                    int start = position;
+                    int from = offset;
+
+                    // Grow the match backwards over text not copied yet
+                    while (start > pending && from > 0
+                            && base.charAt(from - 1) == target.charAt(start - 1)) {
+                        start--;
+                        from--;
+                    }
+
+                    int end = position + BLOCK;
+                    int to = offset + BLOCK;
+                    while (end < length && to < base.length()
+                            && base.charAt(to) == target.charAt(end)) {
+                        end++;
+                        to++;
+                    }
+
+                    writeInsert(out, target, pending, start);
+                    writeCopy(out, from, end - start);
+
+                    pending = end;
+                    position = end;
+                    if (position + BLOCK <= length) {
+                        hash = hash(target, position);
+                    }
+                    continue;
+                }
+
+                if (position + BLOCK < length) {
+                    hash = (hash - target.charAt(position) * power) * HASH_BASE
+                            + target.charAt(position + BLOCK);
+                }
+                position++;
+            }
+        }
+
+        writeInsert(out, target, pending, length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Rebuild code from a delta created by encode()
+     *
+     * @param base the code the delta was created against
+     * @param delta the encoded delta
+     * @return the new version of the code
+     * @throws IllegalArgumentException if the delta is not valid for the base
+     */
+    public static String apply(String base, byte[] delta) {
+        int[] position = {0};
+        int length = readNumber(delta, position);
+        StringBuilder code = new StringBuilder(length);
+
+        while (position[0] < delta.length) {
+            int op = delta[position[0]++];
+
+            if (op == OP_COPY) {
+                int offset = readNumber(delta, position);
+                int count = readNumber(delta, position);
+                if (offset < 0 || count < 0 || offset + count > base.length()) {
+                    throw new IllegalArgumentException("Project code delta does not match its base");
+                }
+                code.append(base, offset, offset + count);
+            } else if (op == OP_INSERT) {
+                int count = readNumber(delta, position);
+                for (int i = 0; i < count; i++) {
+                    code.append(readChar(delta, position));
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown project code delta instruction " + op);
+            }
+        }
+
+        if (code.length() != length) {
+            throw new IllegalArgumentException("Project code delta does not match its base");
+        }
+
+        return code.toString();
+    }
+
+
+    // Hash of every block of the base at a block boundary
+    private static Map<Integer, Integer> index(String base) {
+        Map<Integer, Integer> index = new HashMap<>(base.length() / BLOCK * 2);
+        for (int offset = 0; offset + BLOCK <= base.length(); offset += BLOCK) {
+            Integer hash = hash(base, offset);
+            if (!index.containsKey(hash)) {
+                index.put(hash, offset);
+            }
+        }
+        return index;
+    }
+
+    private static int hash(String text, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            hash = hash * HASH_BASE + text.charAt(i);
+        }
+        return hash;
+    }
+
+    // Weight of the first character of a block in its hash
+    private static int power() {
+        int power = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            power *= HASH_BASE;
+        }
+        return power;
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, int offset, int count) {
+        out.write(OP_COPY);
+        writeNumber(out, offset);
+        writeNumber(out, count);
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, String text, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+
+        out.write(OP_INSERT);
+        writeNumber(out, end - start);
+
+        // Characters are written one at a time, so a block boundary that
+        // splits a surrogate pair does not corrupt the text
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xC0 | (c >> 6));
+                out.write(0x80 | (c & 0x3F));
+            } else {
+                out.write(0xE0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3F));
+                out.write(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static char readChar(byte[] delta, int[] position) {
+        int b = next(delta, position);
+        if (b < 0x80) {
+            return (char) b;
+        }
+        if ((b & 0xE0) == 0xC0) {
+            return (char) (((b & 0x1F) << 6) | (next(delta, position) & 0x3F));
+        }
+        int b2 = next(delta, position);
+        int b3 = next(delta, position);
+        return (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+    }
+
+    private static void writeNumber(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readNumber(byte[] delta, int[] position) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = next(delta, position);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed project code delta");
+    }
+
+    private static int next(byte[] delta, int[] position) {
+        if (position[0] >= delta.length) {
+            throw new IllegalArgumentException("Truncated project code delta");
+        }
+        return delta[position[0]++] & 0xFF;
+    }
+
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.utils;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.parallax.server.blocklyprop.db.enums.ProjectType;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+
+/**
+ * Replace deprecated blocks in project code.
+ *
+ * The replacements are made in at most three passes over the code:
+ *
+ *  1   Blocks and fields renamed in PropC projects, applied to all projects.
+ *  2   Spin blocks replaced by their PropC counterparts. Only for Spin
+ *      projects that do not use a math_number block after the first pass.
+ *  3   The RAMPING field of the Activity Board robot init block moves into
+ *      an ab_drive_ramping block of its own, unless the project already
+ *      has one.
+ *
+ * Each pass is a single LiteralRewriter, compiled once. For well formed
+ * project code the result is the same as replacing each deprecated block in
+ * turn, which is verified against a corpus of project code in the tests.
+ *
+ * Most projects have none of the deprecated blocks. mayChange() screens the
+ * code for the tokens of all passes in a single scan, so those projects are
+ * skipped without running any pass. The share of projects skipped is
+ * recorded in the project.code.migration.skiprate metric.
+ */
+public final class ProjectCodeMigration {
+
+    /**
+     * Buffers larger than this are not kept for the next migration
+     */
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+    private static final String MATH_NUMBER_BLOCK = "block type=\"math_number\"";
+
+    private static final String RAMPING_BLOCK = "block type=\"ab_drive_ramping\"";
+
+    private static final String RAMPING_FIELD = "</field><field name=\"RAMPING\">";
+
+    /**
+     * Characters of generated block ids
+     */
+    private static final String BLOCK_ID_CHARACTERS
+            = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz!#()*-+./:;=@[]^_`{|}~";
+
+    private static final int BLOCK_ID_LENGTH = 20;
+
+    /**
+     * Random 20 character block ids, as created by Blockly
+     */
+    public static final Supplier<String> RANDOM_BLOCK_IDS = new Supplier<String>() {
+        @Override
+        public String get() {
+            Random random = ThreadLocalRandom.current();
+
+            StringBuilder id = new StringBuilder(BLOCK_ID_LENGTH);
+            for (int i = 0; i < BLOCK_ID_LENGTH; i++) {
+                id.append(BLOCK_ID_CHARACTERS.charAt(random.nextInt(BLOCK_ID_CHARACTERS.length())));
+            }
+            return id.toString();
+        }
+    };
+
+    private static final LiteralRewriter PROPC_RULES = new LiteralRewriter(propcRules());
+
+    private static final LiteralRewriter SPIN_RULES = new LiteralRewriter(spinRules());
+
+    private static final TokenFilter PROPC_TOKENS = new TokenFilter(tokens(false));
+
+    private static final TokenFilter SPIN_TOKENS = new TokenFilter(tokens(true));
+
+    private static final Meter SCANNED = Monitor.metrics().meter(
+            MetricRegistry.name("project", "code", "migration", "scanned"));
+
+    private static final Meter SKIPPED = Monitor.metrics().meter(
+            MetricRegistry.name("project", "code", "migration", "skipped"));
+
+    static {
+        Monitor.metrics().register(MetricRegistry.name("project", "code", "migration", "skiprate"), new RatioGauge() {
+            @Override
+            protected RatioGauge.Ratio getRatio() {
+                return RatioGauge.Ratio.of(SKIPPED.getCount(), SCANNED.getCount());
+            }
+        });
+    }
+
+    // Output of the first and second pass
+    private static final ThreadLocal<StringBuilder[]> BUFFERS = new ThreadLocal<StringBuilder[]>() {
+        @Override
+        protected StringBuilder[] initialValue() {
+            return new StringBuilder[] {new StringBuilder(), new StringBuilder()};
+        }
+    };
+
+
+    private ProjectCodeMigration() {
+    }
+
+    /**
+     * Quick check whether project code has anything to migrate
+     *
+     * @param code the project code
+     * @param type the project type
+     * @return false if migrate() would return the code as is
+     */
+    public static boolean mayChange(String code, ProjectType type) {
+        SCANNED.mark();
+
+        boolean found = (type == ProjectType.SPIN ? SPIN_TOKENS : PROPC_TOKENS).foundIn(code);
+        if (!found) {
+            SKIPPED.mark();
+        }
+
+        return found;
+    }
+
+    /**
+     * Replace the deprecated blocks in project code
+     *
+     * @param code the project code
+     * @param type the project type
+     * @param blockIds creates the id of blocks added to the code
+     * @return the migrated code, or the same string if nothing was replaced
+     */
+    public static String migrate(String code, ProjectType type, Supplier<String> blockIds) {
+        StringBuilder[] buffers = BUFFERS.get();
+        CharSequence current = code;
+
+        try {
+            StringBuilder propc = buffers[0];
+            if (PROPC_RULES.rewrite(current, propc) > 0) {
+                current = propc;
+            }
+
+            // Decided on the output of the first pass, where spin_integer
+            // blocks have become math_number blocks
+            if (type == ProjectType.SPIN && indexOf(current, MATH_NUMBER_BLOCK) < 0) {
+                StringBuilder spin = buffers[1];
+                if (SPIN_RULES.rewrite(current, spin) > 0) {
+                    current = spin;
+                }
+            }
+
+            if (indexOf(current, RAMPING_BLOCK) < 0 && indexOf(current, RAMPING_FIELD) >= 0) {
+                StringBuilder ramping = current == buffers[0] ? buffers[1] : buffers[0];
+                ramping.setLength(0);
+
+                String replacement = "</field></block><block type=\"ab_drive_ramping\" id=\""
+                        + blockIds.get()
+                        + "\"><field name=\"RAMPING\">";
+
+                replace(current, RAMPING_FIELD, replacement, ramping);
+                current = ramping;
+            }
+
+            return current == code ? code : current.toString();
+        } finally {
+            for (int i = 0; i < buffers.length; i++) {
+                if (buffers[i].capacity() > MAX_RETAINED_BUFFER) {
+                    buffers[i] = new StringBuilder();
+                } else {
+                    buffers[i].setLength(0);
+                }
+            }
+        }
+    }
+
+
+    // Code without any of these is not changed by any pass. Replacements only
+    // happen when a pattern is found, so the ramping field, which only moves
+    // when present, is the sole token not taken from the rules.
+    private static List<String> tokens(boolean spin) {
+        List<String> tokens = new ArrayList<>(propcRules().keySet());
+        if (spin) {
+            tokens.addAll(spinRules().keySet());
+        }
+        tokens.add(RAMPING_FIELD);
+
+        return tokens;
+    }
+
+    private static Map<String, String> propcRules() {
+        Map<String, String> rules = new LinkedHashMap<>();
+
+        rules.put("field name=\"OP\">ADD</field", "field name=\"OP\"> + </field");
+        rules.put("field name=\"OP\">MINUS</field", "field name=\"OP\"> - </field");
+        rules.put("field name=\"OP\">MULTIPLY</field", "field name=\"OP\"> * </field");
+        rules.put("field name=\"OP\">DIVIDE</field", "field name=\"OP\"> / </field");
+        rules.put("field name=\"OP\">MODULUS</field", "field name=\"OP\"> % </field");
+        rules.put("field name=\"OP\">AND</field", "field name=\"OP\"> &amp;&amp; </field");
+        rules.put("field name=\"OP\">AND_NOT</field", "field name=\"OP\"> &amp;&amp; !</field");
+        rules.put("field name=\"OP\">LT</field", "field name=\"OP\">&lt;</field");
+        rules.put("field name=\"OP\">GT</field", "field name=\"OP\">&gt;</field");
+        rules.put("field name=\"OP\">LTE</field", "field name=\"OP\">&lt;=</field");
+        rules.put("field name=\"OP\">GTE</field", "field name=\"OP\">&gt;=</field");
+        rules.put("field name=\"OP\">EQ</field", "field name=\"OP\">==</field");
+        rules.put("field name=\"OP\">NEQ</field", "field name=\"OP\">!=</field");
+
+        rules.put("field name=\"UNIT\">INCHES</field", "field name=\"UNIT\">_inches</field");
+        rules.put("field name=\"UNIT\">CM</field", "field name=\"UNIT\">_cm</field");
+
+        rules.put("block type=\"spin_comment\"", "block type=\"comment\"");
+        rules.put("field name=\"COMMENT\">", "field name=\"COMMENT_TEXT\">");
+
+        rules.put("block type=\"controls_boolean_if\"", "block type=\"controls_if\"");
+        rules.put("block type=\"logic_boolean_compare\"", "block type=\"logic_compare\"");
+        rules.put("block type=\"logic_boolean_operation\"", "block type=\"logic_operation\"");
+        rules.put("block type=\"logic_boolean_negate\"", "block type=\"logic_negate\"");
+
+        rules.put("_000 / ", "000 / ");
+
+        // Fix a small issue with calling the wrong project type
+        rules.put("block type=\"spin_integer\"", MATH_NUMBER_BLOCK);
+
+        return rules;
+    }
+
+    private static Map<String, String> spinRules() {
+        Map<String, String> rules = new LinkedHashMap<>();
+
+        // Change all math number blocks to the same kind
+        rules.put("block type=\"math_int_angle\"", MATH_NUMBER_BLOCK);
+        rules.put("block type=\"math_integer\"", MATH_NUMBER_BLOCK);
+        rules.put("block type=\"scribbler_random_number\"", "block type=\"math_random\"");
+        rules.put("field name=\"INT_VALUE\"", "field name=\"NUM\"");
+        rules.put("field name=\"ANGLE_VALUE\"", "field name=\"NUM\"");
+
+        rules.put("block type=\"digital_input\"", "block type=\"check_pin\"");
+        rules.put("block type=\"digital_output\"", "block type=\"make_pin\"");
+        rules.put("block type=\"scribbler_servo\"", "block type=\"servo_move\"");
+        rules.put("field name=\"SERVO_PIN\"", "field name=\"PIN\"");
+        rules.put("field name=\"SERVO_ANGLE\"", "field name=\"ANGLE\"");
+        rules.put("<block type=\"serial_", "<block type=\"scribbler_serial_");
+
+        // Time scales 1 and 1000 swap places. A Z marked a value that was
+        // already swapped, so a stray Z is dropped as well.
+        rules.put("field name=\"TIMESCALE\">1000<", "field name=\"TIMESCALE\">1<");
+        rules.put("field name=\"TIMESCALE\">1<", "field name=\"TIMESCALE\">1000<");
+        rules.put("field name=\"TIMESCALE\">10<", "field name=\"TIMESCALE\">100<");
+        rules.put("field name=\"TIMESCALE\">Z", "field name=\"TIMESCALE\">");
+
+        rules.put("Scribbler#CS", "256");
+        rules.put("Scribbler#NL", "10");
+        rules.put("Scribbler#LF", "13");
+        rules.put("Scribbler#BS", "127");
+
+        // Limited loops lost their LOOP statement here as well, so they were
+        // never converted to a controls_repeat block with a count
+        rules.put("block type=\"scribbler_loop\"", "block type=\"controls_repeat\"");
+        rules.put("statement name=\"LOOP\"", "statement name=\"DO\"");
+
+        return rules;
+    }
+
+    private static int indexOf(CharSequence text, String target) {
+        return indexOf(text, target, 0);
+    }
+
+    private static int indexOf(CharSequence text, String target, int from) {
+        return text instanceof String
+                ? ((String) text).indexOf(target, from)
+                : ((StringBuilder) text).indexOf(target, from);
+    }
+
+    private static void replace(CharSequence text, String target, String replacement, StringBuilder out) {
+        int copied = 0;
+
+        for (int index = indexOf(text, target); index >= 0; index = indexOf(text, target, copied)) {
+            out.append(text, copied, index).append(replacement);
+            copied = index + target.length();
+        }
+
+        out.append(text, copied, text.length());
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.utils;
+
+import com.parallax.server.blocklyprop.db.enums.ProjectType;
+import java.util.function.Supplier;
+import javax.xml.stream.XMLEventReader;
+
+
+/**
+ * A step from one block version to the next.
+ *
+ * A step migrates project code saved with any block version below its own
+ * version. Steps either rewrite the code as text, or take part in a streaming
+ * transformation of the block XML. See ProjectCodeMigrations.
+ */
+public abstract class ProjectCodeMigrationStep {
+
+    private final short version;
+
+
+    /**
+     * @param version the block version of the code produced by this step
+     */
+    protected ProjectCodeMigrationStep(short version) {
+        this.version = version;
+    }
+
+    public short getVersion() {
+        return version;
+    }
+
+    /**
+     * Quick check whether the step can change the code at all, typically by
+     * looking for the block types it replaces. A step that does not apply is
+     * skipped, so it must leave code it does not apply to unchanged.
+     *
+     * @param code
+     * @param type the project type
+     * @return
+     */
+    public boolean appliesTo(String code, ProjectType type) {
+        return true;
+    }
+
+
+    /**
+     * A step that rewrites the code as text
+     */
+    public abstract static class Text extends ProjectCodeMigrationStep {
+
+        protected Text(short version) {
+            super(version);
+        }
+
+        /**
+         * @param code
+         * @param type the project type
+         * @param blockIds creates the id of blocks added to the code
+         * @return the migrated code, or the same string if nothing changed
+         */
+        public abstract String migrate(String code, ProjectType type, Supplier<String> blockIds);
+    }
+
+
+    /**
+     * A step that transforms the block XML as a stream of StAX events.
+     * Consecutive XML steps are chained, so the code is parsed and written
+     * only once for all of them. The code written is equivalent to the code
+     * read, but attribute order and escaping are not preserved.
+     */
+    public abstract static class Xml extends ProjectCodeMigrationStep {
+
+        protected Xml(short version) {
+            super(version);
+        }
+
+        /**
+         * Wrap the events of the code, typically in an EventReaderDelegate
+         * that replaces, adds or drops events
+         *
+         * @param events the events of the code
+         * @param type the project type
+         * @param blockIds creates the id of blocks added to the code
+         * @return the events of the migrated code
+         */
+        public abstract XMLEventReader filter(XMLEventReader events, ProjectType type, Supplier<String> blockIds);
+    }
+
+}
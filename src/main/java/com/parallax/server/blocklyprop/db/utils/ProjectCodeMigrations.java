@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.utils;
+
+import com.parallax.server.blocklyprop.db.enums.ProjectType;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+
+/**
+ * Registry of the steps that migrate project code between block versions.
+ *
+ * Code saved with block version n is migrated by every step with a version
+ * above n, in version order. The current block version is the version of the
+ * last step. Adding a step for a new version of the block library is all it
+ * takes to have the projects saved before it migrated, when they are read or
+ * by the bulk migration.
+ *
+ * Steps that do not apply to the code are skipped. Runs of consecutive XML
+ * steps are applied in a single streaming pass, so the cost of a migration
+ * grows with the size of the code and not with the number of steps. Code
+ * that no step applies to is returned as is, without being copied.
+ */
+public final class ProjectCodeMigrations {
+
+    private static final ProjectCodeMigrations STANDARD = new ProjectCodeMigrations(
+            Arrays.<ProjectCodeMigrationStep>asList(
+                    new DeprecatedBlocks()));
+
+    /**
+     * The block version of code migrated by the standard steps
+     */
+    public static final short CURRENT_VERSION = STANDARD.getCurrentVersion();
+
+    private static final XMLInputFactory INPUT_FACTORY = inputFactory();
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final List<ProjectCodeMigrationStep> steps;
+
+
+    /**
+     * @param steps one step per block version, in any order
+     * @throws IllegalArgumentException if two steps have the same version
+     */
+    public ProjectCodeMigrations(List<ProjectCodeMigrationStep> steps) {
+        List<ProjectCodeMigrationStep> sorted = new ArrayList<>(steps);
+        Collections.sort(sorted, new Comparator<ProjectCodeMigrationStep>() {
+            @Override
+            public int compare(ProjectCodeMigrationStep a, ProjectCodeMigrationStep b) {
+                return Short.compare(a.getVersion(), b.getVersion());
+            }
+        });
+
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).getVersion() == sorted.get(i - 1).getVersion()) {
+                throw new IllegalArgumentException("Two migration steps to block version "
+                        + sorted.get(i).getVersion());
+            }
+        }
+
+        this.steps = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * The standard migration steps
+     *
+     * @return
+     */
+    public static ProjectCodeMigrations standard() {
+        return STANDARD;
+    }
+
+    /**
+     * The block version of migrated code
+     *
+     * @return the version of the last step, or 0 if there are no steps
+     */
+    public short getCurrentVersion() {
+        return steps.isEmpty() ? 0 : steps.get(steps.size() - 1).getVersion();
+    }
+
+    /**
+     * Migrate project code to the current block version
+     *
+     * @param code the project code
+     * @param type the project type
+     * @param fromVersion the block version the code was saved with
+     * @param blockIds creates the id of blocks added to the code
+     * @return the migrated code, or the same string if nothing changed
+     * @throws IllegalArgumentException if an XML step applies and the code
+     * is not well formed
+     */
+    public String migrate(String code, ProjectType type, short fromVersion, Supplier<String> blockIds) {
+        String current = code;
+        int next = 0;
+
+        while (next < steps.size() && steps.get(next).getVersion() <= fromVersion) {
+            next++;
+        }
+
+        while (next < steps.size()) {
+            ProjectCodeMigrationStep step = steps.get(next);
+
+            if (step instanceof ProjectCodeMigrationStep.Text) {
+                if (step.appliesTo(current, type)) {
+                    current = ((ProjectCodeMigrationStep.Text) step).migrate(current, type, blockIds);
+                }
+                next++;
+                continue;
+            }
+
+            // A step that does not apply leaves the code unchanged, so the
+            // run of XML steps is needed if any of them applies to its input
+            List<ProjectCodeMigrationStep.Xml> run = new ArrayList<>();
+            boolean applies = false;
+
+            while (next < steps.size() && steps.get(next) instanceof ProjectCodeMigrationStep.Xml) {
+                ProjectCodeMigrationStep.Xml xmlStep = (ProjectCodeMigrationStep.Xml) steps.get(next);
+                applies |= xmlStep.appliesTo(current, type);
+                run.add(xmlStep);
+                next++;
+            }
+
+            if (applies) {
+                current = transform(current, type, run, blockIds);
+            }
+        }
+
+        return current;
+    }
+
+
+    // Stream the code through a chain of XML steps
+    private static String transform(
+            String code, ProjectType type, List<ProjectCodeMigrationStep.Xml> run, Supplier<String> blockIds) {
+
+        StringWriter out = new StringWriter(code.length() + 256);
+
+        try {
+            XMLEventReader events = INPUT_FACTORY.createXMLEventReader(new StringReader(code));
+            for (ProjectCodeMigrationStep.Xml step : run) {
+                events = step.filter(events, type, blockIds);
+            }
+
+            // Block XML has no declaration and should not gain one
+            boolean declared = code.startsWith("<?xml");
+
+            XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out);
+            while (events.hasNext()) {
+                XMLEvent event = events.nextEvent();
+                if ((event.isStartDocument() || event.isEndDocument()) && !declared) {
+                    continue;
+                }
+                writer.add(event);
+            }
+
+            writer.flush();
+            writer.close();
+            events.close();
+        } catch (XMLStreamException ex) {
+            throw new IllegalArgumentException("Malformed project code: " + ex.getMessage(), ex);
+        }
+
+        return out.toString();
+    }
+
+    private static XMLInputFactory inputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+
+        // Project code comes from users
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        return factory;
+    }
+
+
+    /**
+     * Block version 1: blocks and fields renamed when Spin projects moved to
+     * the PropC block set. See ProjectCodeMigration.
+     */
+    static class DeprecatedBlocks extends ProjectCodeMigrationStep.Text {
+
+        DeprecatedBlocks() {
+            super((short) 1);
+        }
+
+        @Override
+        public boolean appliesTo(String code, ProjectType type) {
+            return ProjectCodeMigration.mayChange(code, type);
+        }
+
+        @Override
+        public String migrate(String code, ProjectType type, Supplier<String> blockIds) {
+            return ProjectCodeMigration.migrate(code, type, blockIds);
+        }
+    }
+
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.parallax.server.blocklyprop.db.utils;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.inject.Inject;
+import com.google.inject.Key;
+import com.google.inject.Singleton;
+import com.parallax.client.cloudsession.objects.User;
+import com.parallax.server.blocklyprop.SessionData;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+import org.apache.shiro.web.util.WebUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Encode session attributes for storage in the session table.
+ *
+ * The first byte of an encoded value identifies the codec used for the rest
+ * of the value, as for project code.
+ *
+ * Codecs:
+ *  0xAC    Java serialization of the attribute map. Every session written
+ *          before the compact codec was introduced starts with this byte,
+ *          the first byte of the Java serialization stream header.
+ *  1       Compact binary encoding, described below.
+ *
+ * The compact codec writes the number of attributes followed by each key and
+ * value. Each value starts with a tag for its type. Strings, booleans and
+ * numbers, Shiro principal collections and the session data of the
+ * application, including the cloud session user, are written without any
+ * class descriptions. Names that occur in every session, such as the Shiro
+ * session keys, are written as an index into a table of known strings. Any
+ * other value is written with Java serialization.
+ *
+ * Objects such as the session data are written field by field, after a hash
+ * of the names and types of their fields. A session written before a field
+ * was added or removed cannot be decoded, as with Java serialization.
+ *
+ * The codec used to encode attributes is set by session.attributes.codec.
+ * Both codecs are always decoded. Java serialization stays the default until
+ * every server runs a release that can decode the compact codec, so that
+ * servers sharing the session table can read each other's sessions.
+ */
+@Singleton
+public class SessionAttributeCodec {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SessionAttributeCodec.class);
+
+    public static final byte CODEC_JAVA = (byte) 0xAC;
+    public static final byte CODEC_COMPACT = 1;
+
+    // Value tags of the compact codec
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_KNOWN_STRING = 2;
+    private static final int TAG_TRUE = 3;
+    private static final int TAG_FALSE = 4;
+    private static final int TAG_INTEGER = 5;
+    private static final int TAG_LONG = 6;
+    private static final int TAG_PRINCIPALS = 7;
+    private static final int TAG_OBJECT = 8;
+    private static final int TAG_SERIALIZED = 9;
+
+    /**
+     * Strings written by their index. Strings may only be added at the end,
+     * as stored sessions refer to the strings by index.
+     */
+    private static final String[] KNOWN_STRINGS = {
+        DefaultSubjectContext.PRINCIPALS_SESSION_KEY,
+        DefaultSubjectContext.AUTHENTICATED_SESSION_KEY,
+        WebUtils.SAVED_REQUEST_KEY,
+        // Session scoped objects are stored under their Guice key
+        Key.get(SessionData.class).toString(),
+        "CloudSession",
+        "oauth-email",
+        "oauth-authenticator"
+    };
+
+    /**
+     * Types written field by field. Types may only be added at the end.
+     */
+    private static final Class<?>[] OBJECT_TYPES = {
+        SessionData.class,
+        User.class
+    };
+
+    // The attribute codec used by the Shiro session DAO, which is not created
+    // by Guice
+    private static SessionAttributeCodec sessionAttributeCodec;
+
+    private static final Map<String, Integer> KNOWN_STRING_INDEXES = new HashMap<>();
+    private static final Map<Class<?>, ObjectType> OBJECT_TYPE_INDEXES = new HashMap<>();
+    private static final ObjectType[] OBJECT_TYPE_LIST = new ObjectType[OBJECT_TYPES.length];
+
+    static {
+        for (int i = 0; i < KNOWN_STRINGS.length; i++) {
+            KNOWN_STRING_INDEXES.put(KNOWN_STRINGS[i], i);
+        }
+
+        for (int i = 0; i < OBJECT_TYPES.length; i++) {
+            OBJECT_TYPE_LIST[i] = ObjectType.of(i, OBJECT_TYPES[i]);
+            if (OBJECT_TYPE_LIST[i] != null) {
+                OBJECT_TYPE_INDEXES.put(OBJECT_TYPES[i], OBJECT_TYPE_LIST[i]);
+            }
+        }
+    }
+
+    private final byte codec;
+
+    private final Histogram sizes;
+    private final Timer encodeTimer;
+    private final Timer decodeTimer;
+
+
+    @Inject
+    public SessionAttributeCodec(Configuration configuration) {
+        String name = configuration.getString("session.attributes.codec", "java");
+        codec = "compact".equalsIgnoreCase(name) ? CODEC_COMPACT : CODEC_JAVA;
+
+        LOG.info("Session attribute codec: {}", codec == CODEC_JAVA ? "java" : "compact");
+
+        MetricRegistry metrics = Monitor.metrics();
+        sizes = metrics.histogram(MetricRegistry.name("session", "attributes", "size"));
+        encodeTimer = metrics.timer(MetricRegistry.name("session", "attributes", "encode"));
+        decodeTimer = metrics.timer(MetricRegistry.name("session", "attributes", "decode"));
+
+        sessionAttributeCodec = this;
+    }
+
+    /**
+     * The attribute codec, or null before the application is configured
+     *
+     * @return
+     */
+    public static SessionAttributeCodec getSessionAttributeCodec() {
+        return sessionAttributeCodec;
+    }
+
+    /**
+     * Encode session attributes
+     *
+     * @param attributes
+     * @return the encoded attributes, or null if the attributes are null
+     */
+    public byte[] encode(Map<Object, Object> attributes) {
+        if (attributes == null) {
+            return null;
+        }
+
+        Timer.Context timer = encodeTimer.time();
+        try {
+            byte[] encoded;
+            if (codec == CODEC_JAVA) {
+                encoded = SerializationUtils.serialize(new HashMap<>(attributes));
+            } else {
+                Output out = new Output();
+                out.write(CODEC_COMPACT);
+                out.writeVarInt(attributes.size());
+                for (Map.Entry<Object, Object> attribute : attributes.entrySet()) {
+                    writeValue(out, attribute.getKey());
+                    writeValue(out, attribute.getValue());
+                }
+                encoded = out.toByteArray();
+            }
+
+            sizes.update(encoded.length);
+            return encoded;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Decode session attributes created by encode()
+     *
+     * @param encoded
+     * @return the attributes, or null if the encoded value is null
+     * @throws IllegalArgumentException if the value is not a valid encoding
+     */
+    public HashMap<Object, Object> decode(byte[] encoded) {
+        if (encoded == null) {
+            return null;
+        }
+
+        if (encoded.length == 0) {
+            throw new IllegalArgumentException("Empty session attribute encoding");
+        }
+
+        Timer.Context timer = decodeTimer.time();
+        try {
+            switch (encoded[0]) {
+                case CODEC_JAVA:
+                    Object serialized = SerializationUtils.deserialize(encoded);
+                    if (!(serialized instanceof Map)) {
+                        throw new IllegalArgumentException("Serialized session attributes are not a map");
+                    }
+                    return new HashMap<Object, Object>((Map<?, ?>) serialized);
+
+                case CODEC_COMPACT:
+                    Input in = new Input(encoded);
+                    in.position = 1;
+
+                    int count = in.readVarInt();
+                    HashMap<Object, Object> attributes = new HashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        Object key = readValue(in);
+                        attributes.put(key, readValue(in));
+                    }
+
+                    if (in.position != encoded.length) {
+                        throw new IllegalArgumentException("Trailing data after session attributes");
+                    }
+                    return attributes;
+
+                default:
+                    throw new IllegalArgumentException("Unknown session attribute codec " + encoded[0]);
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated session attribute encoding", ex);
+        } finally {
+            timer.stop();
+        }
+    }
+
+
+    private static void writeValue(Output out, Object value) {
+        if (value == null) {
+            out.writeVarInt(TAG_NULL);
+
+        } else if (value instanceof String) {
+            Integer known = KNOWN_STRING_INDEXES.get(value);
+            if (known != null) {
+                out.writeVarInt(TAG_KNOWN_STRING);
+                out.writeVarInt(known);
+            } else {
+                out.writeVarInt(TAG_STRING);
+                out.writeString((String) value);
+            }
+
+        } else if (value instanceof Boolean) {
+            out.writeVarInt((Boolean) value ? TAG_TRUE : TAG_FALSE);
+
+        } else if (value instanceof Integer) {
+            out.writeVarInt(TAG_INTEGER);
+            out.writeVarLong(zigZag((Integer) value));
+
+        } else if (value instanceof Long) {
+            out.writeVarInt(TAG_LONG);
+            out.writeVarLong(zigZag((Long) value));
+
+        } else if (value.getClass() == SimplePrincipalCollection.class) {
+            SimplePrincipalCollection principals = (SimplePrincipalCollection) value;
+            out.writeVarInt(TAG_PRINCIPALS);
+            out.writeVarInt(principals.getRealmNames().size());
+            for (String realm : principals.getRealmNames()) {
+                Collection<?> realmPrincipals = principals.fromRealm(realm);
+                writeValue(out, realm);
+                out.writeVarInt(realmPrincipals.size());
+                for (Object principal : realmPrincipals) {
+                    writeValue(out, principal);
+                }
+            }
+
+        } else if (OBJECT_TYPE_INDEXES.containsKey(value.getClass())) {
+            ObjectType type = OBJECT_TYPE_INDEXES.get(value.getClass());
+            out.writeVarInt(TAG_OBJECT);
+            out.writeVarInt(type.index);
+            out.writeInt(type.schema);
+            for (Field field : type.fields) {
+                writeValue(out, type.get(field, value));
+            }
+
+        } else {
+            byte[] serialized = SerializationUtils.serialize((Serializable) value);
+            out.writeVarInt(TAG_SERIALIZED);
+            out.writeVarInt(serialized.length);
+            out.write(serialized, 0, serialized.length);
+        }
+    }
+
+    private static Object readValue(Input in) {
+        int tag = in.readVarInt();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+
+            case TAG_STRING:
+                return in.readString();
+
+            case TAG_KNOWN_STRING:
+                int index = in.readVarInt();
+                if (index >= KNOWN_STRINGS.length) {
+                    throw new IllegalArgumentException("Unknown session attribute string " + index);
+                }
+                return KNOWN_STRINGS[index];
+
+            case TAG_TRUE:
+                return Boolean.TRUE;
+
+            case TAG_FALSE:
+                return Boolean.FALSE;
+
+            case TAG_INTEGER:
+                return (int) unZigZag(in.readVarLong());
+
+            case TAG_LONG:
+                return unZigZag(in.readVarLong());
+
+            case TAG_PRINCIPALS:
+                SimplePrincipalCollection principals = new SimplePrincipalCollection();
+                int realms = in.readVarInt();
+                for (int i = 0; i < realms; i++) {
+                    String realm = (String) readValue(in);
+                    int count = in.readVarInt();
+                    for (int j = 0; j < count; j++) {
+                        principals.add(readValue(in), realm);
+                    }
+                }
+                return principals;
+
+            case TAG_OBJECT:
+                int typeIndex = in.readVarInt();
+                ObjectType type = typeIndex < OBJECT_TYPE_LIST.length ? OBJECT_TYPE_LIST[typeIndex] : null;
+                if (type == null) {
+                    throw new IllegalArgumentException("Unknown session attribute type " + typeIndex);
+                }
+                if (in.readInt() != type.schema) {
+                    throw new IllegalArgumentException("Session attribute type " + type.type.getName() + " has changed");
+                }
+
+                Object object = type.newInstance();
+                for (Field field : type.fields) {
+                    type.set(field, object, readValue(in));
+                }
+                return object;
+
+            case TAG_SERIALIZED:
+                int length = in.readVarInt();
+                if (length > in.data.length - in.position) {
+                    throw new IllegalArgumentException("Truncated session attribute encoding");
+                }
+                Object value = SerializationUtils.deserialize(
+                        Arrays.copyOfRange(in.data, in.position, in.position + length));
+                in.position += length;
+                return value;
+
+            default:
+                throw new IllegalArgumentException("Unknown session attribute tag " + tag);
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+
+    /**
+     * A type written field by field
+     */
+    static class ObjectType {
+
+        private final int index;
+        private final Class<?> type;
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final int schema;
+
+        private ObjectType(int index, Class<?> type, Constructor<?> constructor, Field[] fields, int schema) {
+            this.index = index;
+            this.type = type;
+            this.constructor = constructor;
+            this.fields = fields;
+            this.schema = schema;
+        }
+
+        // Types that customize their serialization are left to Java
+        // serialization, as are types that cannot be instantiated
+        static ObjectType of(int index, Class<?> type) {
+            try {
+                for (Method method : type.getDeclaredMethods()) {
+                    String name = method.getName();
+                    if (name.equals("writeObject") || name.equals("readObject")
+                            || name.equals("writeReplace") || name.equals("readResolve")) {
+                        LOG.info("Session attributes of type {} use Java serialization", type.getName());
+                        return null;
+                    }
+                }
+
+                Constructor<?> constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+
+                List<Field> fields = new ArrayList<>();
+                for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        int modifiers = field.getModifiers();
+                        if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                            field.setAccessible(true);
+                            fields.add(field);
+                        }
+                    }
+                }
+
+                Collections.sort(fields, new Comparator<Field>() {
+                    @Override
+                    public int compare(Field first, Field second) {
+                        return first.getName().compareTo(second.getName());
+                    }
+                });
+
+                StringBuilder schema = new StringBuilder();
+                for (Field field : fields) {
+                    schema.append(field.getName()).append(':').append(field.getType().getName()).append(';');
+                }
+
+                return new ObjectType(index, type, constructor,
+                        fields.toArray(new Field[fields.size()]), schema.toString().hashCode());
+            } catch (NoSuchMethodException | SecurityException ex) {
+                LOG.info("Session attributes of type {} use Java serialization. {}", type.getName(), ex.getMessage());
+                return null;
+            }
+        }
+
+        Object newInstance() {
+            try {
+                return constructor.newInstance();
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException("Unable to create " + type.getName(), ex);
+            }
+        }
+
+        Object get(Field field, Object object) {
+            try {
+                return field.get(object);
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException("Unable to read " + field, ex);
+            }
+        }
+
+        void set(Field field, Object object, Object value) {
+            try {
+                field.set(object, value);
+            } catch (IllegalAccessException | IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Unable to set " + field, ex);
+            }
+        }
+    }
+
+
+    /**
+     * Growable output buffer
+     */
+    static class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(256);
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+
+    /**
+     * Input position in an encoded value
+     */
+    static class Input {
+
+        private final byte[] data;
+        private int position;
+
+        Input(byte[] data) {
+            this.data = data;
+        }
+
+        int readVarInt() {
+            long value = readVarLong();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Malformed session attribute encoding");
+            }
+            return (int) value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed session attribute encoding");
+        }
+
+        int readInt() {
+            return (data[position++] & 0xFF) << 24
+                    | (data[position++] & 0xFF) << 16
+                    | (data[position++] & 0xFF) << 8
+                    | (data[position++] & 0xFF);
+        }
+
+        String readString() {
+            int length = readVarInt();
+            if (length > data.length - position) {
+                throw new IllegalArgumentException("Truncated session attribute encoding");
+            }
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+
+}
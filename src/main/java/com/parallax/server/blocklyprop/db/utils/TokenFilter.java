@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.db.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Quick test whether text contains any of a set of tokens.
+ *
+ * Each token is screened on one of its bigrams, preferably one that is rare
+ * in project code: uppercase letters, digits and punctuation other than the
+ * characters of the XML markup itself. The text is scanned once, looking at
+ * every other character: a bigram can only start at a character that begins
+ * a screened bigram, or end at one that ends it, and every bigram has one of
+ * its characters at an odd index. Only where a screened bigram occurs are the
+ * tokens compared in full. No objects are allocated during a scan.
+ */
+public final class TokenFilter {
+
+    /**
+     * Characters starting a screened bigram, one bit per character
+     */
+    private final long[] firsts = new long[(Character.MAX_VALUE + 1) / 64];
+
+    /**
+     * Characters ending a screened bigram, one bit per character
+     */
+    private final long[] seconds = new long[(Character.MAX_VALUE + 1) / 64];
+
+    /**
+     * Screened bigrams, sorted
+     */
+    private final int[] bigrams;
+
+    /**
+     * Tokens per screened bigram, in the order of bigrams
+     */
+    private final String[][] tokens;
+
+    /**
+     * Offset of the screened bigram in each token, in the order of tokens
+     */
+    private final int[][] offsets;
+
+
+    /**
+     * @param tokens at least two characters each
+     * @throws IllegalArgumentException if a token is shorter
+     */
+    public TokenFilter(Collection<String> tokens) {
+        Map<Integer, List<String>> byBigram = new TreeMap<>();
+        Map<Integer, List<Integer>> offsetsByBigram = new TreeMap<>();
+
+        for (String token : tokens) {
+            if (token.length() < 2) {
+                throw new IllegalArgumentException("Token too short to screen: " + token);
+            }
+
+            int offset = rarestBigram(token);
+            char first = token.charAt(offset);
+            char second = token.charAt(offset + 1);
+            int bigram = bigram(first, second);
+
+            if (!byBigram.containsKey(bigram)) {
+                byBigram.put(bigram, new ArrayList<String>());
+                offsetsByBigram.put(bigram, new ArrayList<Integer>());
+            }
+            byBigram.get(bigram).add(token);
+            offsetsByBigram.get(bigram).add(offset);
+
+            firsts[first >>> 6] |= 1L << first;
+            seconds[second >>> 6] |= 1L << second;
+        }
+
+        this.bigrams = new int[byBigram.size()];
+        this.tokens = new String[byBigram.size()][];
+        this.offsets = new int[byBigram.size()][];
+
+        int index = 0;
+        for (Map.Entry<Integer, List<String>> entry : byBigram.entrySet()) {
+            List<Integer> tokenOffsets = offsetsByBigram.get(entry.getKey());
+
+            bigrams[index] = entry.getKey();
+            this.tokens[index] = entry.getValue().toArray(new String[entry.getValue().size()]);
+            offsets[index] = new int[tokenOffsets.size()];
+            for (int i = 0; i < tokenOffsets.size(); i++) {
+                offsets[index][i] = tokenOffsets.get(i);
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Does the text contain any of the tokens
+     *
+     * @param text
+     * @return
+     */
+    public boolean foundIn(String text) {
+        int length = text.length();
+
+        for (int i = 1; i < length; i += 2) {
+            char c = text.charAt(i);
+
+            if ((seconds[c >>> 6] & (1L << c)) != 0 && isFirst(text.charAt(i - 1)) && matchAt(text, i - 1)) {
+                return true;
+            }
+
+            if ((firsts[c >>> 6] & (1L << c)) != 0 && i + 1 < length && matchAt(text, i)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private boolean isFirst(char c) {
+        return (firsts[c >>> 6] & (1L << c)) != 0;
+    }
+
+    // Is there a token whose screened bigram starts at the position
+    private boolean matchAt(String text, int position) {
+        int index = Arrays.binarySearch(bigrams, bigram(text.charAt(position), text.charAt(position + 1)));
+        if (index < 0) {
+            return false;
+        }
+
+        for (int t = 0; t < tokens[index].length; t++) {
+            int start = position - offsets[index][t];
+            if (start >= 0 && text.startsWith(tokens[index][t], start)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Prefer the bigram with the fewest markup characters, and the last of
+    // those, which is usually past the shared prefix of similar tokens
+    private static int rarestBigram(String token) {
+        int best = 0;
+        int bestScore = Integer.MAX_VALUE;
+
+        for (int i = 0; i < token.length() - 1; i++) {
+            int score = commonness(token.charAt(i)) + commonness(token.charAt(i + 1));
+            if (score <= bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+
+        return best;
+    }
+
+    private static int commonness(char c) {
+        if ((c >= 'a' && c <= 'z') || c == ' ' || c == '"' || c == '=' || c == '<' || c == '>' || c == '/') {
+            return 1;
+        }
+
+        return 0;
+    }
+
+    private static int bigram(char first, char second) {
+        return (first << 16) | second;
+    }
+
+}
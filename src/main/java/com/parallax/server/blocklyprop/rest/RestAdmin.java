@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.rest;
+
+import com.cuubez.visualizer.annotation.Detail;
+import com.cuubez.visualizer.annotation.Group;
+import com.cuubez.visualizer.annotation.HttpCode;
+import com.cuubez.visualizer.annotation.Name;
+import com.cuubez.visualizer.annotation.ParameterDetail;
+import com.google.gson.JsonObject;
+import com.google.inject.Inject;
+import com.parallax.server.blocklyprop.ProjectMigrationStatus;
+import com.parallax.server.blocklyprop.db.enums.Role;
+import com.parallax.server.blocklyprop.utils.ProjectCodeMigrator;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import org.apache.shiro.SecurityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Administrative operations. Only available to users with the admin role.
+ */
+@Path("/admin")
+@Group(name = "/admin", title = "Administration")
+@HttpCode("500>Internal Server Error,200>Success Response,403>Forbidden,409>Conflict")
+public class RestAdmin {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(RestAdmin.class);
+
+    private ProjectCodeMigrator projectCodeMigrator;
+
+
+    @Inject
+    public void setProjectCodeMigrator(ProjectCodeMigrator projectCodeMigrator) {
+        this.projectCodeMigrator = projectCodeMigrator;
+    }
+
+
+    @GET
+    @Path("/migration")
+    @Detail("Get the status of the project code migration")
+    @Name("GetProjectMigration")
+    @Produces("application/json")
+    public Response getMigration() {
+        LOG.info("REST:/rest/admin/migration/ Get request received");
+
+        if (!isAdmin()) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        try {
+            return Response.ok(toJson(projectCodeMigrator.getStatus()).toString()).build();
+        } catch (Exception ex) {
+            LOG.error("Unable to read the project migration status. {}", ex.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @POST
+    @Path("/migration/start")
+    @Detail("Start migrating all projects to the current block version")
+    @Name("StartProjectMigration")
+    @Produces("application/json")
+    public Response startMigration(
+            @QueryParam("dryrun") @ParameterDetail("Migrate without writing the projects") Boolean dryRun) {
+
+        LOG.info("REST:/rest/admin/migration/start/ Post request received");
+
+        if (!isAdmin()) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        try {
+            if (!projectCodeMigrator.start(dryRun != null && dryRun)) {
+                return Response.status(Response.Status.CONFLICT).build();
+            }
+
+            return Response.ok(toJson(projectCodeMigrator.getStatus()).toString()).build();
+        } catch (Exception ex) {
+            LOG.error("Unable to start the project migration. {}", ex.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @POST
+    @Path("/migration/stop")
+    @Detail("Stop the project migration after the current chunk")
+    @Name("StopProjectMigration")
+    @Produces("application/json")
+    public Response stopMigration() {
+        LOG.info("REST:/rest/admin/migration/stop/ Post request received");
+
+        if (!isAdmin()) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        if (!projectCodeMigrator.stop()) {
+            return Response.status(Response.Status.CONFLICT).build();
+        }
+
+        JsonObject result = new JsonObject();
+        result.addProperty("success", true);
+        return Response.ok(result.toString()).build();
+    }
+
+
+    private boolean isAdmin() {
+        if (SecurityUtils.getSubject().hasRole(Role.ADMIN.name())) {
+            return true;
+        }
+
+        LOG.warn("Administrative request denied");
+        return false;
+    }
+
+    private JsonObject toJson(ProjectMigrationStatus status) {
+        JsonObject result = new JsonObject();
+        if (status == null) {
+            return result;
+        }
+
+        result.addProperty("state", status.getState().name());
+        result.addProperty("dryRun", status.isDryRun());
+        result.addProperty("blockVersion", status.getBlockVersion());
+        result.addProperty("lastId", status.getLastId());
+        result.addProperty("examined", status.getExamined());
+        result.addProperty("migrated", status.getMigrated());
+        result.addProperty("unchanged", status.getUnchanged());
+        result.addProperty("skipped", status.getSkipped());
+        result.addProperty("failed", status.getFailed());
+        result.addProperty("started", status.getStarted() == null ? null : status.getStarted().getTime());
+        result.addProperty("updated", status.getUpdated() == null ? null : status.getUpdated().getTime());
+
+        return result;
+    }
+
+}
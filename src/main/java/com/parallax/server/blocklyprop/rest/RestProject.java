@@ -14,22 +14,36 @@ import com.cuubez.visualizer.annotation.ParameterDetail;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.inject.Inject;
+import com.parallax.server.blocklyprop.ProjectCursor;
+import com.parallax.server.blocklyprop.ProjectList;
+import com.parallax.server.blocklyprop.ProjectRevision;
+import com.parallax.server.blocklyprop.ProjectSummary;
 import com.parallax.server.blocklyprop.TableOrder;
 import com.parallax.server.blocklyprop.TableSort;
 import com.parallax.server.blocklyprop.converter.ProjectConverter;
 import com.parallax.server.blocklyprop.db.enums.ProjectType;
 import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
 import com.parallax.server.blocklyprop.security.BlocklyPropSecurityUtils;
+import com.parallax.server.blocklyprop.services.ProjectListService;
+import com.parallax.server.blocklyprop.services.ProjectRevisionService;
 import com.parallax.server.blocklyprop.services.ProjectService;
+import com.parallax.server.blocklyprop.utils.ProjectArchiveReader;
+import com.parallax.server.blocklyprop.utils.ProjectImporter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import org.apache.shiro.authz.AuthorizationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +68,15 @@ public class RestProject {
     // Connector to project converter object
     private ProjectConverter projectConverter;
 
+    // Connector to project revision services object
+    private ProjectRevisionService projectRevisionService;
+
+    // Connector to project listing services object
+    private ProjectListService projectListService;
+
+    // Connector to project import object
+    private ProjectImporter projectImporter;
+
     /**
      * Connect to the project service object
      * @param projectService 
@@ -72,6 +95,33 @@ public class RestProject {
         this.projectConverter = projectConverter;
     }
 
+    /**
+     * Connect to the project revision service object
+     * @param projectRevisionService 
+     */
+    @Inject
+    public void setProjectRevisionService(ProjectRevisionService projectRevisionService) {
+        this.projectRevisionService = projectRevisionService;
+    }
+
+    /**
+     * Connect to the project listing service object
+     * @param projectListService 
+     */
+    @Inject
+    public void setProjectListService(ProjectListService projectListService) {
+        this.projectListService = projectListService;
+    }
+
+    /**
+     * Connect to the project import object
+     * @param projectImporter 
+     */
+    @Inject
+    public void setProjectImporter(ProjectImporter projectImporter) {
+        this.projectImporter = projectImporter;
+    }
+
     /**
      * Return a list of projects owned by the currently authenticated user.
      * 
@@ -79,6 +129,7 @@ public class RestProject {
      * @param order
      * @param limit
      * @param offset
+     * @param cursor 'next' token returned with the previous page
      * 
      * @return JSON formatted list of project details
      */
@@ -91,7 +142,8 @@ public class RestProject {
             @QueryParam("sort") @ParameterDetail("Sort detail") @M() TableSort sort, 
             @QueryParam("order") @ParameterDetail("Sort order") @M() TableOrder order, 
             @QueryParam("limit") @ParameterDetail("Number of rows to return") @M() Integer limit, 
-            @QueryParam("offset") @ParameterDetail("Offset to next row returned") @M() Integer offset) {
+            @QueryParam("offset") @ParameterDetail("Offset to next row returned") @M() Integer offset,
+            @QueryParam("cursor") @ParameterDetail("Token of the next page") String cursor) {
         
         LOG.info("REST:/rest/project/list/ Get request received");
         
@@ -117,23 +169,47 @@ public class RestProject {
             if (offset == null)
                 offset = 0;
 
-            List<ProjectRecord> userProjects = 
-                    projectService.getUserProjects(idUser, sort, order, limit, offset);
-        
-            int projectCount = projectService.countUserProjects(idUser);
+            // User projects are always listed by name
+            ProjectCursor after = ProjectCursor.decode(cursor);
+            if (after != null && after.getSort() != TableSort.name) {
+                return Response.status(Response.Status.NOT_ACCEPTABLE).build();
+            }
+
+            if (after != null) {
+                order = after.getOrder();
+            }
+
+            // The page and the total are read in parallel
+            ProjectList list = projectListService
+                    .getUserProjects(idUser, sort, order, limit, offset, after)
+                    .join();
+
+            List<ProjectSummary> userProjects = list.getProjects();
+            int projectCount = list.getTotal();
 
             JsonObject result = new JsonObject();
             JsonArray jsonProjects = new JsonArray();
-            for (ProjectRecord project : userProjects) {
+            for (ProjectSummary project : userProjects) {
                 jsonProjects.add(projectConverter.toListJson(project));
             }
 
             result.add("rows", jsonProjects);
             result.addProperty("total", projectCount);
 
+            if (!userProjects.isEmpty() && userProjects.size() >= limit) {
+                ProjectSummary last = userProjects.get(userProjects.size() - 1);
+                result.addProperty("next", 
+                        ProjectCursor.after(last, TableSort.name, order).encode());
+            }
+
             return Response.ok(result.toString()).build();
             }
         
+        catch(IllegalArgumentException ex) {
+            LOG.warn("Cursor parameter failed. {}", ex.getMessage());
+            return Response.status(Response.Status.NOT_ACCEPTABLE).build();
+        }
+        
         catch(Exception ex) {
             LOG.warn("Unable to process REST request.");
             LOG.warn("Error is {}", ex.getMessage());
@@ -217,6 +293,199 @@ public class RestProject {
         }
     }
 
+    /**
+     * Export all projects owned by the currently authenticated user as a ZIP
+     * archive.
+     * 
+     * The archive is streamed to the client while the projects are read from
+     * the database.
+     * 
+     * @return ZIP archive with a manifest and the code of each project
+     */
+    @GET
+    @Path("/export")
+    @Detail("Export all projects of the authenticated user")
+    @Name("ExportProjects")
+    @Produces("application/zip")
+    public Response export() {
+
+        LOG.info("REST:/rest/project/export/ Get request received");
+
+        final Long idUser = BlocklyPropSecurityUtils.getCurrentUserId();
+        if (idUser == null || idUser == 0) {
+            // Current session is not logged in.
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        StreamingOutput archive = new StreamingOutput() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                try {
+                    projectService.exportUserProjects(idUser, out);
+                } catch (IOException ex) {
+                    LOG.warn("Project export for user {} aborted. {}", idUser, ex.getMessage());
+                    throw ex;
+                }
+            }
+        };
+
+        return Response.ok(archive)
+                .header("Content-Disposition", "attachment; filename=\"blocklyprop-projects.zip\"")
+                .build();
+    }
+
+    /**
+     * Import projects into the account of the currently authenticated user.
+     * 
+     * Accepts a ZIP archive as created by the export, or newline delimited
+     * JSON with one project per line. Projects that cannot be read or created
+     * are reported and skipped, the others are imported.
+     * 
+     * @param contentType
+     * @param body
+     * @return JSON formatted outcome of each project
+     */
+    @POST
+    @Path("/import")
+    @Detail("Import projects for the authenticated user")
+    @Name("ImportProjects")
+    @Consumes({ProjectArchiveReader.ZIP, ProjectArchiveReader.NDJSON})
+    @Produces("application/json")
+    public Response importProjects(
+            @HeaderParam("Content-Type") String contentType,
+            InputStream body) {
+
+        LOG.info("REST:/rest/project/import/ Post request received");
+
+        Long idUser = BlocklyPropSecurityUtils.getCurrentUserId();
+        if (idUser == null || idUser == 0) {
+            // Current session is not logged in.
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        Long idCloudUser = BlocklyPropSecurityUtils.getCurrentSessionUserId();
+
+        List<ProjectArchiveReader.Item> items;
+        try {
+            items = projectImporter.importProjects(
+                    ProjectArchiveReader.open(contentType, body), idUser, idCloudUser);
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Response.Status.UNSUPPORTED_MEDIA_TYPE).build();
+        } catch (IOException ex) {
+            LOG.warn("Project import for user {} aborted. {}", idUser, ex.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        JsonObject result = new JsonObject();
+        JsonArray rows = new JsonArray();
+        int imported = 0;
+
+        for (ProjectArchiveReader.Item item : items) {
+            JsonObject row = new JsonObject();
+            row.addProperty("item", item.getIndex());
+            row.addProperty("source", item.getSource());
+
+            if (item.getId() != null) {
+                row.addProperty("id", item.getId());
+                row.addProperty("success", true);
+                imported++;
+            } else {
+                row.addProperty("error", item.getError());
+                row.addProperty("success", false);
+            }
+
+            rows.add(row);
+        }
+
+        result.add("rows", rows);
+        result.addProperty("imported", imported);
+        result.addProperty("failed", items.size() - imported);
+
+        return Response.ok(result.toString()).build();
+    }
+
+    /**
+     * Return the revisions of a project owned by the currently authenticated
+     * user, most recent first.
+     * 
+     * @param idProject
+     * @return JSON formatted list of revision details
+     */
+    @GET
+    @Path("/revisions/{id}")
+    @Detail("Get the revisions of a project")
+    @Name("ListProjectRevisions")
+    @Produces("application/json")
+    public Response getRevisions(@PathParam("id") @ParameterDetail("Project identifier") Long idProject) {
+
+        LOG.info("REST:/rest/project/revisions/ Get request received for project '{}'", idProject);
+
+        try {
+            List<ProjectRevision> revisions = projectRevisionService.getProjectRevisions(idProject);
+            if (revisions == null) {
+                LOG.info("Project {} was not found", idProject);
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+
+            JsonObject result = new JsonObject();
+            JsonArray jsonRevisions = new JsonArray();
+            for (ProjectRevision revision : revisions) {
+                jsonRevisions.add(projectConverter.toJson(revision));
+            }
+
+            result.add("rows", jsonRevisions);
+            result.addProperty("total", revisions.size());
+
+            return Response.ok(result.toString()).build();
+        } catch (AuthorizationException ae) {
+            LOG.warn("Project revisions not listed. Not Authorized");
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        catch (Exception ex) {
+            LOG.error("General exception encountered. Message is: ", ex.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Replace the code of a project with the code of one of its revisions.
+     * 
+     * @param idProject
+     * @param revision
+     * @return 
+     */
+    @POST
+    @Path("/revisions/restore")
+    @Detail("Restore a revision of the project code")
+    @Name("RestoreProjectRevision")
+    @Produces("application/json")
+    public Response restoreRevision(
+            @FormParam("id") @ParameterDetail("Project identifier") @M() Long idProject, 
+            @FormParam("revision") @ParameterDetail("Revision number") @M() Integer revision) {
+
+        LOG.info("REST:/rest/project/revisions/restore/ POST request received for project '{}'", idProject);
+
+        try {
+            ProjectRecord savedProject = projectService.restoreProjectRevision(idProject, revision);
+            if (savedProject == null) {
+                LOG.info("Revision {} of project {} was not found", revision, idProject);
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+
+            JsonObject result = projectConverter.toJson(savedProject,false);
+            result.addProperty("success", true);
+
+            return Response.ok(result.toString()).build();
+        } catch (AuthorizationException ae) {
+            LOG.warn("Project revision not restored. Not Authorized");
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        catch (Exception ex) {
+            LOG.error("General exception encountered. Message is: ", ex.getMessage());
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
     @POST
     @Path("/code-as")
     @Detail("Save project code")
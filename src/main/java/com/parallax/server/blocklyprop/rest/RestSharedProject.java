@@ -28,11 +28,17 @@ import com.cuubez.visualizer.annotation.Name;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.inject.Inject;
+import com.parallax.server.blocklyprop.ProjectCursor;
+import com.parallax.server.blocklyprop.ProjectList;
+import com.parallax.server.blocklyprop.ProjectSummary;
 import com.parallax.server.blocklyprop.TableOrder;
 import com.parallax.server.blocklyprop.TableSort;
 import com.parallax.server.blocklyprop.converter.ProjectConverter;
 import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import com.parallax.server.blocklyprop.security.BlocklyPropSecurityUtils;
+import com.parallax.server.blocklyprop.services.ProjectListService;
 import com.parallax.server.blocklyprop.services.ProjectService;
+import com.parallax.server.blocklyprop.utils.CommunityFeed;
 import java.util.List;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
@@ -61,6 +67,10 @@ public class RestSharedProject {
 
     private ProjectConverter projectConverter;
 
+    private CommunityFeed communityFeed;
+
+    private ProjectListService projectListService;
+
     @Inject
     public void setProjectService(ProjectService projectService) {
         this.projectService = projectService;
@@ -71,6 +81,16 @@ public class RestSharedProject {
         this.projectConverter = projectConverter;
     }
 
+    @Inject
+    public void setCommunityFeed(CommunityFeed communityFeed) {
+        this.communityFeed = communityFeed;
+    }
+
+    @Inject
+    public void setProjectListService(ProjectListService projectListService) {
+        this.projectListService = projectListService;
+    }
+
     /**
      * Return a list of community projects.
      * 
@@ -86,6 +106,10 @@ public class RestSharedProject {
      * @param offset
      * Specify the beginning row to return
      *
+     * @param cursor
+     * The 'next' token returned with the previous page. When supplied, the
+     * sort, order and offset parameters are ignored.
+     *
      * @return
      * Return a response object that contains either the data requested
      * or a JSON string containing the error details
@@ -99,7 +123,8 @@ public class RestSharedProject {
             @QueryParam("sort") TableSort sort, 
             @QueryParam("order") TableOrder order, 
             @QueryParam("limit") Integer limit, 
-            @QueryParam("offset") Integer offset) {
+            @QueryParam("offset") Integer offset,
+            @QueryParam("cursor") String cursor) {
 
         LOG.info("REST:/shared/project/list/ endpoint activated");
         LOG.debug("REST:/shared/project/list/ Sort parameter is '{}'", sort);
@@ -152,21 +177,47 @@ public class RestSharedProject {
             offset = 0;
         }
         
-        List<ProjectRecord> projects
-                = projectService.getSharedProjects(sort, order, limit, offset);
-        
-        // Obtain a count of the total number of community projects available
-        int projectCount = projectService.countSharedProjects();
+        ProjectCursor after;
+        try {
+            after = ProjectCursor.decode(cursor);
+        } catch (IllegalArgumentException ex) {
+            LOG.warn("REST:/shared/project/list/ Cursor parameter failed");
+            return Response.status(Response.Status.NOT_ACCEPTABLE).build();
+        }
+
+        // Anonymous visitors mostly browse the first pages, which are
+        // precomputed
+        if (after == null && BlocklyPropSecurityUtils.getCurrentUserId() == null) {
+            byte[] page = communityFeed.getPage(sort, order, limit, offset);
+            if (page != null) {
+                return Response.ok(page).build();
+            }
+        }
+
+        if (after != null) {
+            sort = after.getSort();
+            order = after.getOrder();
+        }
+
+        // The page and the total number of community projects are read in
+        // parallel
+        ProjectList list = projectListService
+                .getSharedProjects(sort, order, limit, offset, after)
+                .join();
+
+        List<ProjectSummary> projects = list.getProjects();
+        int projectCount = list.getTotal();
 
         JsonObject result = new JsonObject();
         JsonArray jsonProjects = new JsonArray();
         
-        for (ProjectRecord project : projects) {
+        for (ProjectSummary project : projects) {
             jsonProjects.add(projectConverter.toListJson(project));
         }
 
         result.add("rows", jsonProjects);
         result.addProperty("total", projectCount);
+        addNextCursor(result, projects, limit, sort, order);
 
         return Response.ok(result.toString()).build();
     }
@@ -181,26 +232,57 @@ public class RestSharedProject {
             @QueryParam("order") TableOrder order, 
             @QueryParam("limit") Integer limit, 
             @QueryParam("offset") Integer offset, 
+            @QueryParam("cursor") String cursor, 
             @PathParam("id") Long idUser) {
 
         LOG.info("REST:/shared/project/list/user/ Get request received for user '{}'", idUser);
 
-        List<ProjectRecord> projects = projectService.getSharedProjectsByUser(sort, order, limit, offset, idUser);
-        int projectCount = projectService.countSharedProjectsByUser(idUser);
+        ProjectCursor after;
+        try {
+            after = ProjectCursor.decode(cursor);
+        } catch (IllegalArgumentException ex) {
+            LOG.warn("REST:/shared/project/list/user/ Cursor parameter failed");
+            return Response.status(Response.Status.NOT_ACCEPTABLE).build();
+        }
+
+        if (after != null) {
+            sort = after.getSort();
+            order = after.getOrder();
+        }
+
+        ProjectList list = projectListService
+                .getSharedProjectsByUser(sort, order, limit, offset, after, idUser)
+                .join();
+
+        List<ProjectSummary> projects = list.getProjects();
+        int projectCount = list.getTotal();
 
         JsonObject result = new JsonObject();
         JsonArray jsonProjects = new JsonArray();
         
-        for (ProjectRecord project : projects) {
+        for (ProjectSummary project : projects) {
             jsonProjects.add(projectConverter.toListJson(project));
         }
 
         result.add("rows", jsonProjects);
         result.addProperty("total", projectCount);
+        addNextCursor(result, projects, limit, sort, order);
 
         return Response.ok(result.toString()).build();
     }
 
+    // A full page may be followed by more projects. Hand the client a token
+    // to continue the listing from the last project on this page.
+    private void addNextCursor(
+            JsonObject result, List<ProjectSummary> projects, 
+            Integer limit, TableSort sort, TableOrder order) {
+
+        if (limit != null && !projects.isEmpty() && projects.size() >= limit) {
+            ProjectSummary last = projects.get(projects.size() - 1);
+            result.addProperty("next", ProjectCursor.after(last, sort, order).encode());
+        }
+    }
+
 
     @GET
     @Path("/get/{id}")
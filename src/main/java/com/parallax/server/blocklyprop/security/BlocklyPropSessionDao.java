@@ -5,8 +5,11 @@
  */
 package com.parallax.server.blocklyprop.security;
 
+import com.parallax.server.blocklyprop.db.generated.Tables;
 import com.parallax.server.blocklyprop.db.generated.tables.records.SessionRecord;
+import com.parallax.server.blocklyprop.db.utils.SessionAttributeCodec;
 import com.parallax.server.blocklyprop.services.impl.SessionServiceImpl;
+import com.parallax.server.blocklyprop.utils.SessionTouchWriter;
 import java.io.Serializable;
 import java.sql.Timestamp;
 import java.util.ArrayList;
@@ -31,6 +34,11 @@ public class BlocklyPropSessionDao implements SessionDAO {
     // Get a logger instance
     private static final Logger LOG = LoggerFactory.getLogger(SessionServiceImpl.class);
 
+    /**
+     * Timeout of every session, 8 hours
+     */
+    public static final long SESSION_TIMEOUT = 28800000;
+
     /**
      * 
      * @param session
@@ -41,13 +49,25 @@ public class BlocklyPropSessionDao implements SessionDAO {
         LOG.debug("Create BlocklyProp session");
         
         // Set session timeout for 8 hours
-        session.setTimeout(28800000);
+        session.setTimeout(SESSION_TIMEOUT);
         
         SimpleSession simpleSession = (SimpleSession) session;
         String uuid = UUID.randomUUID().toString();
         
         simpleSession.setId(uuid);
-        SessionServiceImpl.getSessionService().create(convert(simpleSession));
+        SessionRecord sessionRecord = convert(simpleSession);
+        SessionServiceImpl.getSessionService().create(sessionRecord);
+
+        SessionTouchWriter touches = SessionTouchWriter.getSessionTouchWriter();
+        if (touches != null) {
+            touches.written(sessionRecord);
+        }
+
+        // New sessions start at version 0
+        SessionCache cache = SessionCache.getSessionCache();
+        if (cache != null) {
+            cache.put(simpleSession, 0);
+        }
         LOG.debug("Session timeout is: {}", simpleSession.getTimeout());
         LOG.info("Creating session: {}", simpleSession.getId());
 
@@ -64,22 +84,60 @@ public class BlocklyPropSessionDao implements SessionDAO {
     public Session readSession(Serializable sessionId) throws UnknownSessionException {
         LOG.debug("Reading session: {}", sessionId);
 
+        SessionCache cache = SessionCache.getSessionCache();
+        String idSession = sessionId.toString();
+
         try {
+            Integer version = null;
+
+            if (cache != null) {
+                SessionCache.Entry entry = cache.get(idSession);
+
+                if (entry != null && !cache.isCoherent()) {
+                    return entry.getSession();
+                }
+
+                if (entry != null || cache.isCoherent()) {
+                    version = SessionServiceImpl.getSessionService().getSessionVersion(idSession);
+
+                    if (entry != null && version != null && version.equals(entry.getVersion())) {
+                        return entry.getSession();
+                    }
+                }
+            }
+
             // Obtain an existing session object
             SessionRecord sessionRecord 
                     = SessionServiceImpl
                             .getSessionService()
-                            .readSession(sessionId.toString());
+                            .readSession(idSession);
  
             if (sessionRecord != null) {
-                return convert(sessionRecord);
+                Session session = convert(sessionRecord);
+                if (cache != null) {
+                    cache.put((SimpleSession) session, version);
+                }
+
+                SessionTouchWriter touches = SessionTouchWriter.getSessionTouchWriter();
+                if (touches != null) {
+                    touches.written(sessionRecord);
+                }
+                return session;
             } else {
+                if (cache != null) {
+                    cache.invalidate(idSession);
+                }
                 LOG.warn("Unable to find session: {}", sessionId);
                 throw new UnknownSessionException();
             }
         } catch (NullPointerException npe) {
             LOG.error("Unable to obtain session details. {}", npe.getMessage());
             throw new UnknownSessionException();
+        } catch (IllegalArgumentException iae) {
+            // The attributes were written by a version of the application
+            // that stored different session data
+            LOG.warn("Unable to decode session {}. {}", sessionId, iae.getMessage());
+            throw new UnknownSessionException();
         }
     }
 
@@ -91,11 +149,60 @@ public class BlocklyPropSessionDao implements SessionDAO {
     @Override
     public void update(Session session) throws UnknownSessionException {
         LOG.debug("Update session: {}", session.getId());
+
+        SessionCache cache = SessionCache.getSessionCache();
+        SessionTouchWriter touches = SessionTouchWriter.getSessionTouchWriter();
+        String idSession = session.getId().toString();
+
         try {
-            // updateSession() can throw a NullPointerException if something goes wrong
-            SessionServiceImpl.getSessionService().updateSession(convert(session));
+            SessionRecord sessionRecord = convert(session);
+
+            // Most updates only record the time of the request
+            if (touches != null && touches.touch(sessionRecord)) {
+                if (cache != null) {
+                    cache.touch((SimpleSession) session);
+                }
+                return;
+            }
+
+            if (touches != null) {
+                // Most of the session is its attributes, which rarely change
+                touches.skipUnchangedAttributes(sessionRecord);
+                touches.removed(idSession);
+            }
+
+            if (cache != null && cache.isCoherent()) {
+                // Only a session known to be unchanged since it was read
+                // stays cached
+                SessionCache.Entry entry = cache.get(idSession);
+                if (entry != null && entry.getVersion() != null
+                        && SessionServiceImpl.getSessionService().updateSession(sessionRecord, entry.getVersion())) {
+                    cache.put((SimpleSession) session, entry.getVersion() + 1);
+                } else {
+                    // The session may have been changed elsewhere, so all of
+                    // it is written
+                    cache.invalidate(idSession);
+                    sessionRecord.changed(Tables.SESSION.ATTRIBUTES, true);
+                    SessionServiceImpl.getSessionService().updateSession(sessionRecord);
+                }
+            } else {
+                // updateSession() can throw a NullPointerException if something goes wrong
+                SessionServiceImpl.getSessionService().updateSession(sessionRecord);
+
+                if (cache != null) {
+                    cache.put((SimpleSession) session, null);
+                }
+            }
+
+            if (touches != null) {
+                touches.written(sessionRecord);
+            }
         }
         catch (NullPointerException npe) {
+            if (cache != null) {
+                cache.invalidate(idSession);
+            }
+
             LOG.error("Unable to update the session. Error message: {}", npe.getMessage());
             throw new UnknownSessionException("Unable to update the session");
         }
@@ -109,6 +216,16 @@ public class BlocklyPropSessionDao implements SessionDAO {
     public void delete(Session session) {
         LOG.debug("Removing session {}", session.getId());
         SessionServiceImpl.getSessionService().deleteSession(session.getId().toString());
+
+        SessionCache cache = SessionCache.getSessionCache();
+        if (cache != null) {
+            cache.invalidate(session.getId().toString());
+        }
+
+        SessionTouchWriter touches = SessionTouchWriter.getSessionTouchWriter();
+        if (touches != null) {
+            touches.removed(session.getId().toString());
+        }
     }
 
     /**
@@ -138,8 +255,17 @@ public class BlocklyPropSessionDao implements SessionDAO {
         sessionRecord.setTimeout(session.getTimeout());
         sessionRecord.setHost(session.getHost());
         if (ssession.getAttributes() != null) {
-            HashMap<Object, Object> attributes = (HashMap<Object, Object>) ssession.getAttributes();
-            sessionRecord.setAttributes(SerializationUtils.serialize(attributes));
+            // Serialized from a new map, so equal attributes give equal
+            // bytes and an update of the access time alone can be detected
+            HashMap<Object, Object> attributes = new HashMap<>();
+            attributes.putAll(ssession.getAttributes());
+
+            SessionAttributeCodec codec = SessionAttributeCodec.getSessionAttributeCodec();
+            sessionRecord.setAttributes(codec == null
+                    ? SerializationUtils.serialize(attributes)
+                    : codec.encode(attributes));
+        } else {
+            sessionRecord.setAttributes(null);
         }
         return sessionRecord;
     }
@@ -160,9 +286,10 @@ public class BlocklyPropSessionDao implements SessionDAO {
         ssession.setHost(sessionRecord.getHost());
         
         if (sessionRecord.getAttributes() != null) {
-            HashMap<Object, Object> attributes 
-                    = (HashMap<Object, Object>)
-                        SerializationUtils.deserialize(sessionRecord.getAttributes());
+            SessionAttributeCodec codec = SessionAttributeCodec.getSessionAttributeCodec();
+            HashMap<Object, Object> attributes = codec == null
+                    ? (HashMap<Object, Object>) SerializationUtils.deserialize(sessionRecord.getAttributes())
+                    : codec.decode(sessionRecord.getAttributes());
             
             ssession.setAttributes(attributes);
         }
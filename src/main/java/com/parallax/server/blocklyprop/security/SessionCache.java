@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.security;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.Configuration;
+import org.apache.shiro.session.mgt.SimpleSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * In-process cache of sessions, keyed by session id.
+ *
+ * Shiro reads the session of every request. The cache holds the sessions as
+ * they were last read or written by this server, with their attributes
+ * already deserialized, so the session of an active user is read from the
+ * session table only once. Sessions are written through to the session table
+ * as before.
+ *
+ * A cached session expires when it times out. Each hit returns a copy of
+ * the session, so concurrent requests of a session do not share its
+ * attribute map.
+ *
+ * The session table is shared by every server. In coherent mode, the
+ * default, each hit first reads the version of the session from the session
+ * table, which is cheap compared to reading its attributes, and the session
+ * is read again if its version changed or it was deleted. A session then
+ * stays cached until it is unused for session.cache.ttl seconds.
+ *
+ * Without the version check, a session changed, stopped or deleted through
+ * another server is served stale from the cache. Sessions are then read
+ * again session.cache.stale seconds after they were read, however often
+ * they are used, which bounds how long a stale session is served.
+ */
+@Singleton
+public class SessionCache {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SessionCache.class);
+
+    // The session cache used by the Shiro session DAO, which is not created
+    // by Guice
+    private static SessionCache sessionCache;
+
+    private final boolean enabled;
+
+    private final boolean coherent;
+
+    private final long staleMillis;
+
+    private final Cache<String, Entry> cache;
+
+
+    @Inject
+    public SessionCache(Configuration configuration) {
+        enabled = configuration.getBoolean("session.cache.enabled", true);
+        coherent = configuration.getBoolean("session.cache.coherent", true);
+        long size = configuration.getLong("session.cache.size", 10000);
+        long ttl = configuration.getLong("session.cache.ttl", 28800);
+        long stale = configuration.getLong("session.cache.stale", 30);
+        staleMillis = TimeUnit.SECONDS.toMillis(stale);
+
+        LOG.info("Session cache enabled: {}, coherent: {}, size: {}, ttl: {} seconds, stale: {} seconds",
+                enabled, coherent, size, ttl, stale);
+
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .recordStats();
+        if (coherent) {
+            builder.expireAfterAccess(ttl, TimeUnit.SECONDS);
+        } else {
+            builder.expireAfterWrite(stale, TimeUnit.SECONDS);
+        }
+        cache = builder.build();
+
+        registerMetrics();
+
+        sessionCache = this;
+    }
+
+    /**
+     * The session cache, or null before the application is configured
+     *
+     * @return
+     */
+    public static SessionCache getSessionCache() {
+        return sessionCache;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Must the version of a cached session be checked before it is used
+     *
+     * @return false if the cache is disabled
+     */
+    public boolean isCoherent() {
+        return enabled && coherent;
+    }
+
+    /**
+     * Return the cached entry of a session
+     *
+     * @param idSession
+     * @return the entry, or null if the session is not cached or has timed
+     * out
+     */
+    public Entry get(String idSession) {
+        if (!enabled || idSession == null) {
+            return null;
+        }
+
+        Entry entry = cache.getIfPresent(idSession);
+        if (entry == null) {
+            return null;
+        }
+
+        // Timed out sessions are left to the session validation. Without the
+        // version check, a session read too long ago may have changed.
+        if (isTimedOut(entry.session)
+                || (!coherent && entry.loaded + staleMillis < System.currentTimeMillis())) {
+            cache.invalidate(idSession);
+            return null;
+        }
+
+        LOG.debug("Session {} served from the cache", idSession);
+        return entry;
+    }
+
+    /**
+     * Store a copy of a session as read from or written to the session table
+     *
+     * @param session
+     * @param version the version of the session in the session table, or null
+     * if it is not known
+     */
+    public void put(SimpleSession session, Integer version) {
+        if (!enabled || session == null || session.getId() == null) {
+            return;
+        }
+
+        cache.put(session.getId().toString(),
+                new Entry(copy(session), version, System.currentTimeMillis()));
+    }
+
+    /**
+     * Replace a cached session whose last access time alone changed. It keeps
+     * its version, as the access time is not versioned, and the time it was
+     * read.
+     *
+     * @param session
+     */
+    public void touch(SimpleSession session) {
+        if (!enabled || session == null || session.getId() == null) {
+            return;
+        }
+
+        String idSession = session.getId().toString();
+        Entry entry = cache.getIfPresent(idSession);
+        if (entry != null) {
+            cache.put(idSession, new Entry(copy(session), entry.version, entry.loaded));
+        }
+    }
+
+    /**
+     * Drop a session from the cache
+     *
+     * @param idSession
+     */
+    public void invalidate(String idSession) {
+        if (idSession != null) {
+            cache.invalidate(idSession);
+        }
+    }
+
+
+    /**
+     * Copy a session. Attribute values are shared with the original.
+     *
+     * @param session
+     * @return
+     */
+    static SimpleSession copy(SimpleSession session) {
+        SimpleSession copy = new SimpleSession();
+        copy.setId(session.getId());
+        copy.setStartTimestamp(session.getStartTimestamp());
+        copy.setStopTimestamp(session.getStopTimestamp());
+        copy.setLastAccessTime(session.getLastAccessTime());
+        copy.setTimeout(session.getTimeout());
+        copy.setExpired(session.isExpired());
+        copy.setHost(session.getHost());
+
+        Map<Object, Object> attributes = session.getAttributes();
+        if (attributes != null) {
+            copy.setAttributes(new HashMap<>(attributes));
+        }
+
+        return copy;
+    }
+
+    private static boolean isTimedOut(SimpleSession session) {
+        if (session.isExpired()) {
+            return true;
+        }
+
+        long timeout = session.getTimeout();
+        return timeout >= 0 && session.getLastAccessTime() != null
+                && session.getLastAccessTime().getTime() + timeout < System.currentTimeMillis();
+    }
+
+    private void registerMetrics() {
+        MetricRegistry metrics = Monitor.metrics();
+
+        metrics.register(MetricRegistry.name("session", "cache", "hits"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cache.stats().hitCount();
+            }
+        });
+
+        metrics.register(MetricRegistry.name("session", "cache", "misses"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cache.stats().missCount();
+            }
+        });
+
+        metrics.register(MetricRegistry.name("session", "cache", "size"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cache.size();
+            }
+        });
+    }
+
+
+    /**
+     * A cached session, its version and when it was read or written
+     */
+    public static class Entry {
+
+        private final SimpleSession session;
+
+        private final Integer version;
+
+        private final long loaded;
+
+        Entry(SimpleSession session, Integer version, long loaded) {
+            this.session = session;
+            this.version = version;
+            this.loaded = loaded;
+        }
+
+        /**
+         * A copy of the cached session
+         *
+         * @return
+         */
+        public SimpleSession getSession() {
+            return copy(session);
+        }
+
+        /**
+         * The version of the session in the session table, null if unknown
+         *
+         * @return
+         */
+        public Integer getVersion() {
+            return version;
+        }
+    }
+
+}
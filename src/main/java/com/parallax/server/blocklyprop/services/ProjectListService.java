@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.services;
+
+import com.parallax.server.blocklyprop.ProjectCursor;
+import com.parallax.server.blocklyprop.ProjectList;
+import com.parallax.server.blocklyprop.TableOrder;
+import com.parallax.server.blocklyprop.TableSort;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Project listings with their totals, read with parallel queries.
+ *
+ * A listing is read with a cursor when one is supplied, otherwise with the
+ * sort, order and offset.
+ */
+public interface ProjectListService {
+
+    CompletableFuture<ProjectList> getUserProjects(
+            Long idUser, TableSort sort, TableOrder order, Integer limit, Integer offset, ProjectCursor cursor);
+
+    CompletableFuture<ProjectList> getSharedProjects(
+            TableSort sort, TableOrder order, Integer limit, Integer offset, ProjectCursor cursor);
+
+    CompletableFuture<ProjectList> getSharedProjectsByUser(
+            TableSort sort, TableOrder order, Integer limit, Integer offset, ProjectCursor cursor, Long idUser);
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.services;
+
+import com.parallax.server.blocklyprop.ProjectRevision;
+import java.util.List;
+
+
+/**
+ * Revision history of project code
+ */
+public interface ProjectRevisionService {
+
+    /**
+     * Store saved project code as new revisions, in a single transaction.
+     * Code identical to the latest revision of its project is skipped.
+     *
+     * @param revisions the project, code and time of each save, in the order
+     * the saves were made
+     */
+    void recordRevisions(List<ProjectRevision> revisions);
+
+    /**
+     * List the revisions of a project owned by the current user
+     *
+     * @param idProject
+     * @return the revisions, most recent first, or null if the project does
+     * not exist
+     */
+    List<ProjectRevision> getProjectRevisions(Long idProject);
+
+    /**
+     * Rebuild the code of a revision of a project owned by the current user
+     *
+     * @param idProject
+     * @param revision
+     * @return the code or null if the revision does not exist
+     */
+    String getProjectRevisionCode(Long idProject, Integer revision);
+
+    /**
+     * Apply the retention policy to a chunk of projects
+     *
+     * @param idAfter
+     * @param limit
+     * @return the id of the last project examined or null when done
+     */
+    Long compactProjectRevisions(Long idAfter, int limit);
+
+}
@@ -5,10 +5,17 @@
  */
 package com.parallax.server.blocklyprop.services;
 
+import com.parallax.server.blocklyprop.ProjectCodeSave;
+import com.parallax.server.blocklyprop.ProjectCodeUpgrade;
+import com.parallax.server.blocklyprop.ProjectCursor;
+import com.parallax.server.blocklyprop.ProjectMigrationStatus;
+import com.parallax.server.blocklyprop.ProjectSummary;
 import com.parallax.server.blocklyprop.TableOrder;
 import com.parallax.server.blocklyprop.TableSort;
 import com.parallax.server.blocklyprop.db.enums.ProjectType;
 import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 /**
@@ -22,11 +29,17 @@ public interface ProjectService {
     // Return a project
     ProjectRecord getProject(Long idProject);
 
-    List<ProjectRecord> getUserProjects(Long idUser, TableSort tablesSort, TableOrder order, Integer limit, Integer offset);
+    List<ProjectSummary> getUserProjects(Long idUser, TableSort tablesSort, TableOrder order, Integer limit, Integer offset);
 
-    List<ProjectRecord> getSharedProjects(TableSort tablesSort, TableOrder order, Integer limit, Integer offset);
+    List<ProjectSummary> getUserProjects(Long idUser, Integer limit, ProjectCursor cursor);
 
-    List<ProjectRecord> getSharedProjectsByUser(TableSort tablesSort, TableOrder order, Integer limit, Integer offset, Long idUser);
+    List<ProjectSummary> getSharedProjects(TableSort tablesSort, TableOrder order, Integer limit, Integer offset);
+
+    List<ProjectSummary> getSharedProjects(Integer limit, ProjectCursor cursor);
+
+    List<ProjectSummary> getSharedProjectsByUser(TableSort tablesSort, TableOrder order, Integer limit, Integer offset, Long idUser);
+
+    List<ProjectSummary> getSharedProjectsByUser(Integer limit, ProjectCursor cursor, Long idUser);
 
     int countUserProjects(Long idUser);
 
@@ -46,4 +59,24 @@ public interface ProjectService {
 
     public ProjectRecord saveProjectCodeAs(Long idProject, String code, String newName, String newBoard);
 
+    ProjectRecord restoreProjectRevision(Long idProject, Integer revision);
+
+    List<ProjectCodeSave> saveProjectCode(List<ProjectCodeSave> saves);
+
+    void exportUserProjects(Long idUser, OutputStream out) throws IOException;
+
+    List<Long> importProjects(Long idUser, Long idCloudUser, List<ProjectRecord> projects);
+
+    Long compressProjectCode(Long idAfter, int limit);
+
+    Long reconcileProjectCounters(Long idAfter, int limit);
+
+    List<ProjectRecord> getLegacyProjectCode(Long idAfter, int limit);
+
+    int upgradeProjectCode(List<ProjectCodeUpgrade> upgrades);
+
+    ProjectMigrationStatus getProjectMigration();
+
+    void saveProjectMigration(ProjectMigrationStatus status);
+
 }
@@ -6,7 +6,9 @@
 package com.parallax.server.blocklyprop.services;
 
 import com.parallax.server.blocklyprop.db.generated.tables.records.SessionRecord;
+import java.sql.Timestamp;
 import java.util.Collection;
+import java.util.Map;
 
 /**
  *
@@ -20,8 +22,16 @@ public interface SessionService {
 
     void updateSession(SessionRecord session) throws NullPointerException;
 
+    boolean updateSession(SessionRecord session, int version);
+
+    Integer getSessionVersion(String idSession);
+
+    void touchSessions(Map<String, Timestamp> lastAccessTimes);
+
     void deleteSession(String idSession);
 
+    Integer reapExpiredSessions(Timestamp expiredBefore, Timestamp idleBefore, int limit);
+
     Collection<SessionRecord> getActiveSessions();
 
 }
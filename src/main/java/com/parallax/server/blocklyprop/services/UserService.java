@@ -7,7 +7,9 @@ package com.parallax.server.blocklyprop.services;
 
 import com.parallax.server.blocklyprop.db.generated.tables.pojos.User;
 import com.parallax.server.blocklyprop.db.generated.tables.records.UserRecord;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -23,6 +25,8 @@ public interface UserService {
 
     public String getUserScreenName(Long idUser);
 
+    Map<Long, String> getUserScreenNames(Collection<Long> idUsers);
+
     void setLocale(String locale);
 
 }
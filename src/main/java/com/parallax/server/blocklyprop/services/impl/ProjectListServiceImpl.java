@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.services.impl;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.ProjectCursor;
+import com.parallax.server.blocklyprop.ProjectList;
+import com.parallax.server.blocklyprop.ProjectSummary;
+import com.parallax.server.blocklyprop.TableOrder;
+import com.parallax.server.blocklyprop.TableSort;
+import com.parallax.server.blocklyprop.services.ProjectListService;
+import com.parallax.server.blocklyprop.services.ProjectService;
+import com.parallax.server.blocklyprop.services.UserService;
+import com.parallax.server.blocklyprop.utils.DatabaseExecutor;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+
+/**
+ * Project listings with their totals.
+ *
+ * The page of projects is read on the calling thread, which keeps the access
+ * checks of the project service, while the total is counted on the database
+ * executor at the same time. The screen names of the project owners are
+ * looked up with a single query as soon as the page is read, still in
+ * parallel with the count. A listing takes about as long as its slowest
+ * query rather than the sum of its queries.
+ *
+ * This service is not transactional. Each query runs in a transaction of its
+ * own, on its own connection.
+ */
+@Singleton
+public class ProjectListServiceImpl implements ProjectListService {
+
+    private ProjectService projectService;
+    private UserService userService;
+    private DatabaseExecutor databaseExecutor;
+
+
+    @Inject
+    public void setProjectService(ProjectService projectService) {
+        this.projectService = projectService;
+    }
+
+    @Inject
+    public void setUserService(UserService userService) {
+        this.userService = userService;
+    }
+
+    @Inject
+    public void setDatabaseExecutor(DatabaseExecutor databaseExecutor) {
+        this.databaseExecutor = databaseExecutor;
+    }
+
+
+    @Override
+    public CompletableFuture<ProjectList> getUserProjects(
+            final Long idUser, TableSort sort, TableOrder order, Integer limit, Integer offset, ProjectCursor cursor) {
+
+        CompletableFuture<Integer> total = databaseExecutor.submit(new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return projectService.countUserProjects(idUser);
+            }
+        });
+
+        try {
+            return toList(cursor != null
+                    ? projectService.getUserProjects(idUser, limit, cursor)
+                    : projectService.getUserProjects(idUser, sort, order, limit, offset), total);
+        } catch (RuntimeException ex) {
+            total.cancel(false);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletableFuture<ProjectList> getSharedProjects(
+            TableSort sort, TableOrder order, Integer limit, Integer offset, ProjectCursor cursor) {
+
+        CompletableFuture<Integer> total = databaseExecutor.submit(new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return projectService.countSharedProjectsByUser(null);
+            }
+        });
+
+        try {
+            return toList(cursor != null
+                    ? projectService.getSharedProjects(limit, cursor)
+                    : projectService.getSharedProjects(sort, order, limit, offset), total);
+        } catch (RuntimeException ex) {
+            total.cancel(false);
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletableFuture<ProjectList> getSharedProjectsByUser(
+            TableSort sort, TableOrder order, Integer limit, Integer offset, ProjectCursor cursor, final Long idUser) {
+
+        CompletableFuture<Integer> total = databaseExecutor.submit(new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return projectService.countSharedProjectsByUser(idUser);
+            }
+        });
+
+        try {
+            return toList(cursor != null
+                    ? projectService.getSharedProjectsByUser(limit, cursor, idUser)
+                    : projectService.getSharedProjectsByUser(sort, order, limit, offset, idUser), total);
+        } catch (RuntimeException ex) {
+            total.cancel(false);
+            throw ex;
+        }
+    }
+
+
+    // Look up the owners of the projects, then combine the page with its total
+    private CompletableFuture<ProjectList> toList(
+            final List<ProjectSummary> projects, CompletableFuture<Integer> total) {
+
+        CompletableFuture<List<ProjectSummary>> named;
+        if (projects.isEmpty()) {
+            named = CompletableFuture.completedFuture(projects);
+        } else {
+            named = databaseExecutor.submit(new Supplier<List<ProjectSummary>>() {
+                @Override
+                public List<ProjectSummary> get() {
+                    return withOwnerNames(projects);
+                }
+            });
+        }
+
+        return named.thenCombine(total, new BiFunction<List<ProjectSummary>, Integer, ProjectList>() {
+            @Override
+            public ProjectList apply(List<ProjectSummary> page, Integer count) {
+                return new ProjectList(page, count);
+            }
+        });
+    }
+
+    private List<ProjectSummary> withOwnerNames(List<ProjectSummary> projects) {
+        Set<Long> owners = new HashSet<>();
+        for (ProjectSummary project : projects) {
+            owners.add(project.getIdUser());
+        }
+
+        Map<Long, String> names = userService.getUserScreenNames(owners);
+        for (ProjectSummary project : projects) {
+            String name = names.get(project.getIdUser());
+            project.setOwnerName(name == null ? "" : name);
+        }
+
+        return projects;
+    }
+
+}
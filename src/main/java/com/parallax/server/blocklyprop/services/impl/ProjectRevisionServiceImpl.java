@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.services.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.persist.Transactional;
+import com.parallax.server.blocklyprop.ProjectRevision;
+import com.parallax.server.blocklyprop.db.dao.ProjectDao;
+import com.parallax.server.blocklyprop.db.dao.ProjectRevisionDao;
+import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeCodec;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeDelta;
+import com.parallax.server.blocklyprop.security.BlocklyPropSecurityUtils;
+import com.parallax.server.blocklyprop.services.ProjectRevisionService;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.Configuration;
+import org.apache.shiro.authz.UnauthorizedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Revision history of project code.
+ *
+ * Each revision is stored as a delta against the revision before it, unless
+ * the delta would not save much space or the revision is the first after
+ * project.revision.snapshot.interval - 1 deltas. Those revisions are stored
+ * as snapshots of the complete code.
+ *
+ * Revisions are numbered from the latest revision in the database, which is
+ * locked until the new revisions are written, so servers recording
+ * revisions of the same project take turns. The code of the latest revision
+ * of recently saved projects is kept in memory, so recording a revision
+ * normally does not need to rebuild the previous one from the database.
+ */
+@Singleton
+@Transactional
+public class ProjectRevisionServiceImpl implements ProjectRevisionService {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectRevisionServiceImpl.class);
+
+    private ProjectDao projectDao;
+    private ProjectRevisionDao projectRevisionDao;
+    private ProjectCodeCodec projectCodeCodec;
+
+    private int snapshotInterval;
+    private int keep;
+    private int keepDays;
+
+    /**
+     * Latest revision, including its code, per project
+     */
+    private final Cache<Long, ProjectRevision> latestRevisions = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .build();
+
+
+    @Inject
+    public void setProjectDao(ProjectDao projectDao) {
+        this.projectDao = projectDao;
+    }
+
+    @Inject
+    public void setProjectRevisionDao(ProjectRevisionDao projectRevisionDao) {
+        this.projectRevisionDao = projectRevisionDao;
+    }
+
+    @Inject
+    public void setProjectCodeCodec(ProjectCodeCodec projectCodeCodec) {
+        this.projectCodeCodec = projectCodeCodec;
+    }
+
+    @Inject
+    public void setConfiguration(Configuration configuration) {
+        snapshotInterval = Math.max(1, configuration.getInt("project.revision.snapshot.interval", 20));
+        keep = Math.max(1, configuration.getInt("project.revision.keep", 100));
+        keepDays = configuration.getInt("project.revision.keep.days", 90);
+    }
+
+
+    @Override
+    public void recordRevisions(List<ProjectRevision> revisions) {
+        // Lock the latest revisions in project order, so that batches
+        // recorded at the same time cannot deadlock
+        Set<Long> projects = new TreeSet<>();
+        for (ProjectRevision saved : revisions) {
+            projects.add(saved.getIdProject());
+        }
+
+        Map<Long, ProjectRevision> latest = new HashMap<>();
+        for (Long idProject : projects) {
+            latest.put(idProject, getLatestRevision(idProject));
+        }
+
+        List<ProjectRevision> created = new ArrayList<>(revisions.size());
+
+        for (ProjectRevision saved : revisions) {
+            Long idProject = saved.getIdProject();
+            ProjectRevision previous = latest.get(idProject);
+
+            if (previous != null && saved.getCode().equals(previous.getCode())) {
+                continue;
+            }
+
+            ProjectRevision revision = createRevision(previous, saved);
+            created.add(revision);
+            latest.put(idProject, revision);
+        }
+
+        projectRevisionDao.createRevisions(created);
+
+        for (ProjectRevision revision : latest.values()) {
+            if (revision.getCode() != null) {
+                revision.setData(null);
+                latestRevisions.put(revision.getIdProject(), revision);
+            }
+        }
+    }
+
+    @Override
+    public List<ProjectRevision> getProjectRevisions(Long idProject) {
+        if (!isProjectOwnedByThisUser(idProject)) {
+            return null;
+        }
+
+        return projectRevisionDao.getRevisions(idProject);
+    }
+
+    @Override
+    public String getProjectRevisionCode(Long idProject, Integer revision) {
+        if (!isProjectOwnedByThisUser(idProject)) {
+            return null;
+        }
+
+        return rebuild(idProject, revision);
+    }
+
+    /**
+     * Keep at most project.revision.keep revisions of each project, and only
+     * those saved in the last project.revision.keep.days days. The latest
+     * revision is always kept. The oldest revision kept becomes a snapshot if
+     * it was a delta.
+     *
+     * @param idAfter
+     * @param limit
+     * @return the id of the last project examined or null when done
+     */
+    @Override
+    public Long compactProjectRevisions(Long idAfter, int limit) {
+        List<Long> projects = projectRevisionDao.getProjectsWithRevisions(idAfter, limit);
+        if (projects.isEmpty()) {
+            return null;
+        }
+
+        Timestamp since = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(keepDays));
+        int removed = 0;
+
+        for (Long idProject : projects) {
+            ProjectRevision latest = projectRevisionDao.getLatestRevision(idProject);
+            if (latest == null) {
+                continue;
+            }
+
+            int oldest = latest.getRevision() - keep + 1;
+            if (keepDays > 0) {
+                Integer recent = projectRevisionDao.getFirstRevisionSince(idProject, since);
+                oldest = Math.max(oldest, recent == null ? latest.getRevision() : recent);
+            }
+
+            // Nothing to remove when the oldest revision to keep is gone
+            List<ProjectRevision> chain = projectRevisionDao.getRevisionChain(idProject, oldest);
+            if (chain.isEmpty()) {
+                continue;
+            }
+
+            if (chain.size() > 1) {
+                projectRevisionDao.replaceWithSnapshot(
+                        idProject, oldest, projectCodeCodec.encode(apply(chain)));
+            }
+
+            removed += projectRevisionDao.deleteRevisionsBefore(idProject, oldest);
+        }
+
+        LOG.debug("Removed {} project revisions", removed);
+        return projects.get(projects.size() - 1);
+    }
+
+
+    private boolean isProjectOwnedByThisUser(Long idProject) {
+        ProjectRecord project = projectDao.getProject(idProject);
+        if (project == null) {
+            return false;
+        }
+
+        if (!project.getIdUser().equals(BlocklyPropSecurityUtils.getCurrentUserId())) {
+            LOG.error("User {} attempted to read the revisions of project {} without authorization.",
+                    BlocklyPropSecurityUtils.getCurrentUserId(), idProject);
+            throw new UnauthorizedException("Not the current user's project");
+        }
+
+        return true;
+    }
+
+    // Latest revision of a project, including its code, locked for update.
+    // The code is null if the revision could not be rebuilt.
+    private ProjectRevision getLatestRevision(Long idProject) {
+        ProjectRevision latest = projectRevisionDao.lockLatestRevision(idProject);
+        if (latest == null) {
+            return null;
+        }
+
+        // The cached code is only used for the revision as it is stored
+        ProjectRevision cached = latestRevisions.getIfPresent(idProject);
+        if (cached != null
+                && cached.getRevision().equals(latest.getRevision())
+                && cached.getSize().equals(latest.getSize())) {
+            return cached;
+        }
+
+        latest.setCode(rebuild(idProject, latest.getRevision()));
+        if (latest.getCode() == null) {
+            LOG.warn("Unable to rebuild revision {} of project {}", latest.getRevision(), idProject);
+        }
+
+        return latest;
+    }
+
+    // Create the revision following the previous one. A revision following
+    // one that could not be rebuilt is a snapshot.
+    private ProjectRevision createRevision(ProjectRevision previous, ProjectRevision saved) {
+        String code = saved.getCode();
+
+        ProjectRevision revision = new ProjectRevision();
+        revision.setIdProject(saved.getIdProject());
+        revision.setRevision(previous == null ? 1 : previous.getRevision() + 1);
+        revision.setCreated(saved.getCreated());
+        revision.setSize(code.length());
+        revision.setCode(code);
+
+        if (previous != null && previous.getCode() != null
+                && previous.getDepth() + 1 < snapshotInterval) {
+            byte[] delta = ProjectCodeDelta.encode(previous.getCode(), code);
+
+            if (delta.length < code.length() / 2) {
+                revision.setSnapshot(false);
+                revision.setDepth(previous.getDepth() + 1);
+                revision.setData(delta);
+                return revision;
+            }
+        }
+
+        revision.setSnapshot(true);
+        revision.setDepth(0);
+        revision.setData(projectCodeCodec.encode(code));
+        return revision;
+    }
+
+    private String rebuild(Long idProject, Integer revision) {
+        List<ProjectRevision> chain = projectRevisionDao.getRevisionChain(idProject, revision);
+        if (chain.isEmpty()) {
+            return null;
+        }
+
+        return apply(chain);
+    }
+
+    // Apply the deltas of a chain to its leading snapshot
+    private String apply(List<ProjectRevision> chain) {
+        String code = projectCodeCodec.decode(chain.get(0).getData());
+        for (int i = 1; i < chain.size(); i++) {
+            code = ProjectCodeDelta.apply(code, chain.get(i).getData());
+        }
+
+        return code;
+    }
+
+}
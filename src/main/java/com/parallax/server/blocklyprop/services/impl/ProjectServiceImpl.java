@@ -8,6 +8,11 @@ package com.parallax.server.blocklyprop.services.impl;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.persist.Transactional;
+import com.parallax.server.blocklyprop.ProjectCodeSave;
+import com.parallax.server.blocklyprop.ProjectCodeUpgrade;
+import com.parallax.server.blocklyprop.ProjectCursor;
+import com.parallax.server.blocklyprop.ProjectMigrationStatus;
+import com.parallax.server.blocklyprop.ProjectSummary;
 import com.parallax.server.blocklyprop.TableOrder;
 import com.parallax.server.blocklyprop.TableSort;
 import com.parallax.server.blocklyprop.db.dao.ProjectDao;
@@ -15,7 +20,16 @@ import com.parallax.server.blocklyprop.db.enums.ProjectType;
 import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
 import com.parallax.server.blocklyprop.security.BlocklyPropSecurityUtils;
 import com.parallax.server.blocklyprop.services.ProjectService;
+import com.parallax.server.blocklyprop.services.ProjectRevisionService;
 import com.parallax.server.blocklyprop.services.ProjectSharingService;
+import com.parallax.server.blocklyprop.utils.CommunityFeed;
+import com.parallax.server.blocklyprop.utils.ProjectArchiveWriter;
+import com.parallax.server.blocklyprop.utils.ProjectCodeWriteBehind;
+import com.parallax.server.blocklyprop.utils.ProjectRevisionRecorder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.GregorianCalendar;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +45,10 @@ public class ProjectServiceImpl implements ProjectService {
 
     private ProjectDao projectDao;
     private ProjectSharingService projectSharingService;
+    private ProjectRevisionService projectRevisionService;
+    private ProjectRevisionRecorder projectRevisionRecorder;
+    private ProjectCodeWriteBehind projectCodeWriteBehind;
+    private CommunityFeed communityFeed;
 
         
     /**
@@ -48,6 +66,26 @@ public class ProjectServiceImpl implements ProjectService {
         this.projectSharingService = projectSharingService;
     }
 
+    @Inject
+    public void setProjectRevisionService(ProjectRevisionService projectRevisionService) {
+        this.projectRevisionService = projectRevisionService;
+    }
+
+    @Inject
+    public void setProjectRevisionRecorder(ProjectRevisionRecorder projectRevisionRecorder) {
+        this.projectRevisionRecorder = projectRevisionRecorder;
+    }
+
+    @Inject
+    public void setProjectCodeWriteBehind(ProjectCodeWriteBehind projectCodeWriteBehind) {
+        this.projectCodeWriteBehind = projectCodeWriteBehind;
+    }
+
+    @Inject
+    public void setCommunityFeed(CommunityFeed communityFeed) {
+        this.communityFeed = communityFeed;
+    }
+
     
     /**
      * Create a new project record
@@ -100,22 +138,30 @@ public class ProjectServiceImpl implements ProjectService {
             boolean sharedProject, ProjectType type, String board) {
         
         // Check if project is from the current user, if not, unset idProject and create new
+        ProjectRecord project;
         if (idProject != null) {
-            return projectDao.updateProject(
+            project = projectDao.updateProject(
                     idProject, name, description, descriptionHtml, 
                     privateProject, sharedProject);
         } else {
-            return projectDao.createProject(
+            project = projectDao.createProject(
                     name, description, descriptionHtml, type, board, 
                     privateProject, sharedProject);
         }
+
+        // The project may have been shared or unshared
+        if (project != null && (idProject != null || sharedProject)) {
+            communityFeed.projectChanged(project.getId(), null, TableSort.values());
+        }
+
+        return project;
     }
 
 
     
     @Override
     public ProjectRecord getProjectOwnedByThisUser(Long idProject) {
-        ProjectRecord projectRecord = projectDao.getProject(idProject);
+        ProjectRecord projectRecord = withBufferedCode(projectDao.getProject(idProject));
         if (projectRecord != null) {
             if (projectRecord.getIdUser().equals(BlocklyPropSecurityUtils.getCurrentUserId())) {
                 return projectRecord;
@@ -133,7 +179,7 @@ public class ProjectServiceImpl implements ProjectService {
         LOG.info("Retrieving project record #{}", idProject);
         
         // Retrieve the project record
-        ProjectRecord projectRecord = projectDao.getProject(idProject);
+        ProjectRecord projectRecord = withBufferedCode(projectDao.getProject(idProject));
         
         if (projectRecord != null) {
             LOG.info("Project {} found", projectRecord.getId());
@@ -167,7 +213,7 @@ public class ProjectServiceImpl implements ProjectService {
      * @return 
      */
     @Override
-    public List<ProjectRecord> getUserProjects(
+    public List<ProjectSummary> getUserProjects(
             Long idUser, 
             TableSort sort, 
             TableOrder order, 
@@ -187,6 +233,29 @@ public class ProjectServiceImpl implements ProjectService {
         }
     }
 
+    /**
+     * Return the page of the user's projects that follows the cursor.
+     * 
+     * @param idUser
+     * @param limit
+     * @param cursor
+     * @return 
+     */
+    @Override
+    public List<ProjectSummary> getUserProjects(
+            Long idUser, 
+            Integer limit, 
+            ProjectCursor cursor) {
+        
+        Long idCurrentUser = BlocklyPropSecurityUtils.getCurrentUserId();
+
+        if (idCurrentUser == null || !idCurrentUser.equals(idUser)) {
+            throw new UnauthorizedException();
+        }
+
+        return projectDao.getUserProjects(idUser, limit, cursor);
+    }
+
     
     /**
      * Obtain a list of community projects
@@ -198,7 +267,7 @@ public class ProjectServiceImpl implements ProjectService {
      * @return 
      */
     @Override
-    public List<ProjectRecord> getSharedProjects(
+    public List<ProjectSummary> getSharedProjects(
             TableSort sort, 
             TableOrder order, 
             Integer limit, 
@@ -207,11 +276,28 @@ public class ProjectServiceImpl implements ProjectService {
         return projectDao.getSharedProjects(sort, order, limit, offset);
     }
 
+    /**
+     * Obtain the page of community projects that follows the cursor
+     * 
+     * @param limit
+     * @param cursor
+     * @return 
+     */
+    @Override
+    public List<ProjectSummary> getSharedProjects(Integer limit, ProjectCursor cursor) {
+        return projectDao.getSharedProjects(limit, cursor);
+    }
+
     @Override
-    public List<ProjectRecord> getSharedProjectsByUser(TableSort sort, TableOrder order, Integer limit, Integer offset, Long idUser) {
+    public List<ProjectSummary> getSharedProjectsByUser(TableSort sort, TableOrder order, Integer limit, Integer offset, Long idUser) {
         return projectDao.getSharedProjectsByUser(sort, order, limit, offset, idUser);
     }
 
+    @Override
+    public List<ProjectSummary> getSharedProjectsByUser(Integer limit, ProjectCursor cursor, Long idUser) {
+        return projectDao.getSharedProjectsByUser(limit, cursor, idUser);
+    }
+
     @Override
     public int countUserProjects(Long idUser) {
         return projectDao.countUserProjects(idUser);
@@ -229,7 +315,18 @@ public class ProjectServiceImpl implements ProjectService {
 
     @Override
     public ProjectRecord cloneProject(Long idProject) {
-        return projectDao.cloneProject(idProject);
+        // Clone the latest saved code
+        ProjectCodeSave save = projectCodeWriteBehind.remove(idProject);
+        if (save != null) {
+            saveProjectCode(Collections.singletonList(save));
+        }
+
+        ProjectRecord cloned = projectDao.cloneProject(idProject);
+        if (cloned != null) {
+            communityFeed.projectChanged(cloned.getId(), cloned.getShared(), TableSort.values());
+        }
+
+        return cloned;
     }
 
     
@@ -249,17 +346,255 @@ public class ProjectServiceImpl implements ProjectService {
         // Remove the project shared key if it exists.
         projectSharingService.deleteSharedProject(idProject);
 
-        return projectDao.deleteProject(idProject);
+        // Drop code saved but not written yet
+        projectCodeWriteBehind.remove(idProject);
+
+        boolean deleted = projectDao.deleteProject(idProject);
+        if (deleted) {
+            communityFeed.projectChanged(idProject, null, TableSort.values());
+        }
+
+        return deleted;
     }
 
+    /**
+     * Save the project code. The saved code is recorded as a new revision of
+     * the project in the background.
+     * 
+     * When write-behind is enabled, the code of a project owned by the
+     * current user is buffered and written later on. The owner is checked
+     * with a cached key-only read, and the project returned is read without
+     * its code.
+     * 
+     * @param idProject
+     * @param code
+     * @return 
+     */
     @Override
     public ProjectRecord saveProjectCode(Long idProject, String code) {
-        return projectDao.updateProjectCode(idProject, code);
+        if (projectCodeWriteBehind.isEnabled()) {
+            Long idUser = BlocklyPropSecurityUtils.getCurrentUserId();
+
+            if (idUser != null && idUser.equals(projectDao.getProjectOwnerId(idProject))) {
+                GregorianCalendar saved = new GregorianCalendar();
+
+                if (projectCodeWriteBehind.save(new ProjectCodeSave(idProject, idUser, code, saved))) {
+                    ProjectRecord project = projectDao.getProjectInfo(idProject);
+                    if (project != null) {
+                        project.setCode(code);
+                        project.setModified(saved);
+                        project.changed(false);
+                    }
+
+                    return project;
+                }
+            }
+        }
+
+        ProjectRecord project = projectDao.updateProjectCode(idProject, code);
+        if (project != null) {
+            projectRevisionRecorder.record(project.getId(), code);
+            communityFeed.projectChanged(project.getId(), project.getShared(), TableSort.modified);
+        }
+
+        return project;
     }
 
     @Override
     public ProjectRecord saveProjectCodeAs(Long idProject, String code, String newName, String newBoard) {
-        return projectDao.saveProjectCodeAs(idProject, code, newName, newBoard);
+        ProjectRecord project = projectDao.saveProjectCodeAs(idProject, code, newName, newBoard);
+        if (project != null) {
+            projectRevisionRecorder.record(project.getId(), code);
+        }
+
+        return project;
+    }
+
+    /**
+     * Write buffered project code. Each project written is recorded as a new
+     * revision.
+     * 
+     * @param saves at most one save per project
+     * @return the saves that were written
+     */
+    @Override
+    public List<ProjectCodeSave> saveProjectCode(List<ProjectCodeSave> saves) {
+        List<ProjectCodeSave> written = projectDao.saveCode(saves);
+        for (ProjectCodeSave save : written) {
+            projectRevisionRecorder.record(save.getIdProject(), save.getCode());
+            communityFeed.projectChanged(save.getIdProject(), null, TableSort.modified);
+        }
+
+        return written;
+    }
+
+    /**
+     * Replace the project code with the code of an earlier revision. The
+     * restored code is saved as a new revision, so the restore itself can be
+     * undone.
+     * 
+     * @param idProject
+     * @param revision
+     * @return the updated project or null if the revision does not exist
+     */
+    @Override
+    public ProjectRecord restoreProjectRevision(Long idProject, Integer revision) {
+        String code = projectRevisionService.getProjectRevisionCode(idProject, revision);
+        if (code == null) {
+            return null;
+        }
+
+        LOG.info("Restoring revision {} of project {}", revision, idProject);
+        return saveProjectCode(idProject, code);
+    }
+
+    /**
+     * Write all projects of the current user to a ZIP archive.
+     * 
+     * The projects are streamed from the database into the archive one at a
+     * time, so the memory used does not depend on the number of projects.
+     * 
+     * @param idUser
+     * @param out the stream the archive is written to
+     * @throws IOException 
+     */
+    @Override
+    public void exportUserProjects(Long idUser, OutputStream out) throws IOException {
+        Long idCurrentUser = BlocklyPropSecurityUtils.getCurrentUserId();
+
+        if (idCurrentUser == null || !idCurrentUser.equals(idUser)) {
+            throw new UnauthorizedException();
+        }
+
+        LOG.info("Exporting the projects of user {}", idUser);
+
+        final ProjectArchiveWriter archive = new ProjectArchiveWriter(out);
+
+        archive.startManifest();
+        projectDao.forEachUserProjectSummary(idUser, new ProjectDao.Visitor<ProjectSummary>() {
+            @Override
+            public void visit(ProjectSummary project) throws IOException {
+                archive.addToManifest(project);
+            }
+        });
+        archive.endManifest();
+
+        projectDao.forEachUserProject(idUser, new ProjectDao.Visitor<ProjectRecord>() {
+            @Override
+            public void visit(ProjectRecord project) throws IOException {
+                archive.addProject(withBufferedCode(project));
+            }
+        });
+
+        archive.finish();
+    }
+
+    /**
+     * Create a chunk of imported projects owned by the current user.
+     * 
+     * The projects are created in a single transaction with a few batched
+     * statements, so a chunk is either imported completely or not at all.
+     * 
+     * @param idUser the id of the current user
+     * @param idCloudUser the cloud session id of the current user
+     * @param projects
+     * @return the ids of the new projects, in the same order
+     */
+    @Override
+    public List<Long> importProjects(Long idUser, Long idCloudUser, List<ProjectRecord> projects) {
+        Long idCurrentUser = BlocklyPropSecurityUtils.getCurrentUserId();
+
+        if (idCurrentUser == null || !idCurrentUser.equals(idUser)) {
+            throw new UnauthorizedException();
+        }
+
+        List<Long> ids = projectDao.createProjects(idUser, idCloudUser, projects);
+
+        boolean shared = false;
+        for (int i = 0; i < ids.size(); i++) {
+            projectRevisionRecorder.record(ids.get(i), projects.get(i).getCode());
+            shared |= Boolean.TRUE.equals(projects.get(i).getShared());
+        }
+
+        if (shared) {
+            communityFeed.invalidate();
+        }
+
+        return ids;
+    }
+
+    /**
+     * Move the code of a chunk of existing projects to the project code store.
+     * Each chunk is converted in its own transaction.
+     * 
+     * @param idAfter
+     * @param limit
+     * @return the id of the last project examined or null when done
+     */
+    @Override
+    public Long compressProjectCode(Long idAfter, int limit) {
+        return projectDao.compressProjectCode(idAfter, limit);
+    }
+
+    /**
+     * Correct the project counts of a chunk of users. Each chunk is
+     * reconciled in its own transaction.
+     * 
+     * @param idAfter
+     * @param limit
+     * @return the id of the last user reconciled or null when done
+     */
+    @Override
+    public Long reconcileProjectCounters(Long idAfter, int limit) {
+        return projectDao.reconcileProjectCounters(idAfter, limit);
+    }
+
+    /**
+     * Read the code of a chunk of projects with an old block version.
+     * 
+     * @param idAfter
+     * @param limit
+     * @return the projects, in id order
+     */
+    @Override
+    public List<ProjectRecord> getLegacyProjectCode(Long idAfter, int limit) {
+        return projectDao.getLegacyProjectCode(idAfter, limit);
+    }
+
+    /**
+     * Store the code of migrated projects. Each batch is written in its own
+     * transaction.
+     * 
+     * @param upgrades
+     * @return the number of projects upgraded
+     */
+    @Override
+    public int upgradeProjectCode(List<ProjectCodeUpgrade> upgrades) {
+        return projectDao.upgradeProjectCode(upgrades);
+    }
+
+    @Override
+    public ProjectMigrationStatus getProjectMigration() {
+        return projectDao.getProjectMigration();
+    }
+
+    @Override
+    public void saveProjectMigration(ProjectMigrationStatus status) {
+        projectDao.saveProjectMigration(status);
+    }
+
+    // Replace the project code with code that has been saved but is not
+    // written yet
+    private ProjectRecord withBufferedCode(ProjectRecord project) {
+        if (project != null) {
+            String code = projectCodeWriteBehind.getCode(project.getId());
+            if (code != null) {
+                project.setCode(code);
+                project.changed(false);
+            }
+        }
+
+        return project;
     }
 
 }
@@ -12,7 +12,9 @@ import com.parallax.server.blocklyprop.db.dao.SessionDao;
 import com.parallax.server.blocklyprop.db.generated.tables.records.SessionRecord;
 import com.parallax.server.blocklyprop.services.SessionService;
 //import java.util.Arrays;
+import java.sql.Timestamp;
 import java.util.Collection;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,6 +65,32 @@ public class SessionServiceImpl implements SessionService {
         sessionDao.updateSession(session);
     }
 
+    /**
+     * Update a session, unless it was changed since the version was read
+     *
+     * @param session
+     * @param version
+     * @return false if the session is not at the version
+     */
+    @Override
+    public boolean updateSession(SessionRecord session, int version) {
+        log.debug("Updating user session: {} at version {}", session.getIdsession(), version);
+
+        return sessionDao.updateSession(session, version);
+    }
+
+    @Override
+    public Integer getSessionVersion(String idSession) {
+        return sessionDao.getSessionVersion(idSession);
+    }
+
+    @Override
+    public void touchSessions(Map<String, Timestamp> lastAccessTimes) {
+        log.debug("Writing the access time of {} sessions", lastAccessTimes.size());
+
+        sessionDao.touchSessions(lastAccessTimes);
+    }
+
     @Override
     public void deleteSession(String idSession) {
         log.info("Deleting session {}", idSession);
@@ -70,6 +98,30 @@ public class SessionServiceImpl implements SessionService {
         sessionDao.deleteSession(idSession);
     }
 
+    /**
+     * Delete a batch of expired sessions, unless another server is deleting
+     * expired sessions at the same time
+     *
+     * @param expiredBefore
+     * @param idleBefore
+     * @param limit
+     * @return the number of sessions deleted, or null if another server holds
+     * the session reaper lock
+     */
+    @Override
+    public Integer reapExpiredSessions(Timestamp expiredBefore, Timestamp idleBefore, int limit) {
+        // The lock belongs to the connection of this transaction
+        if (!sessionDao.lockSessionReaper()) {
+            return null;
+        }
+
+        try {
+            return sessionDao.deleteExpiredSessions(expiredBefore, idleBefore, limit);
+        } finally {
+            sessionDao.unlockSessionReaper();
+        }
+    }
+
     @Override
     public Collection<SessionRecord> getActiveSessions() {
         log.info("Getting all active sessions");
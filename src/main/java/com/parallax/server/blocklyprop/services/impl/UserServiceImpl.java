@@ -16,7 +16,9 @@ import com.parallax.server.blocklyprop.db.generated.tables.pojos.User;
 import com.parallax.server.blocklyprop.db.generated.tables.records.UserRecord;
 import com.parallax.server.blocklyprop.security.BlocklyPropSecurityUtils;
 import com.parallax.server.blocklyprop.services.UserService;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.configuration.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -106,6 +108,17 @@ public class UserServiceImpl implements UserService {
         return name;
     }
 
+    /**
+     * Look up the screen names of several users at once
+     * 
+     * @param idUsers
+     * @return screen names by user id. Unknown users are left out.
+     */
+    @Override
+    public Map<Long, String> getUserScreenNames(Collection<Long> idUsers) {
+        return userDao.getScreenNames(idUsers);
+    }
+
     @Override
     public void setLocale(String locale) {
         if (SecurityServiceImpl.getSessionData() != null) {
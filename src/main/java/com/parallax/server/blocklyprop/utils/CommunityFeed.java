@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.ProjectCursor;
+import com.parallax.server.blocklyprop.ProjectSummary;
+import com.parallax.server.blocklyprop.TableOrder;
+import com.parallax.server.blocklyprop.TableSort;
+import com.parallax.server.blocklyprop.converter.ProjectConverter;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import com.parallax.server.blocklyprop.services.ProjectService;
+import com.parallax.server.blocklyprop.services.UserService;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Precomputed first pages of the community project listing.
+ *
+ * For every sort and sort order, the first community.feed.pages pages of
+ * community.feed.pagesize projects are rendered to JSON in the background,
+ * exactly as the listing endpoint would return them to an anonymous visitor.
+ * Matching requests are answered from these bytes without a database query.
+ *
+ * The pages are rebuilt every community.feed.refresh milliseconds. A change
+ * to a project that is, or may become, part of a listing rebuilds the
+ * affected listings after community.feed.rebuild.delay milliseconds. Changes
+ * made by other servers are only picked up by the periodic rebuild. Pages
+ * older than community.feed.maxage milliseconds are not served.
+ */
+@Singleton
+public class CommunityFeed {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(CommunityFeed.class);
+
+    private final Provider<ProjectService> projectService;
+    private final ProjectConverter projectConverter;
+    private final UserService userService;
+
+    private final boolean enabled;
+    private final int pageSize;
+    private final int pages;
+    private final long refreshInterval;
+    private final long rebuildDelay;
+    private final long maxAge;
+
+    /**
+     * Current pages per sort and sort order. Listings are immutable and
+     * replaced as a whole.
+     */
+    private final ConcurrentMap<String, Listing> listings = new ConcurrentHashMap<>();
+
+    /**
+     * Listings to rebuild before the next periodic rebuild
+     */
+    private final Set<String> dirty = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile long refreshed;
+
+    private final Meter hits;
+    private final Meter misses;
+
+    private ScheduledExecutorService executor;
+
+
+    @Inject
+    public CommunityFeed(
+            Configuration configuration,
+            Provider<ProjectService> projectService,
+            ProjectConverter projectConverter,
+            UserService userService) {
+
+        // The project service notifies this class of changes, so it is
+        // looked up when the pages are built
+        this.projectService = projectService;
+        this.projectConverter = projectConverter;
+        this.userService = userService;
+
+        enabled = configuration.getBoolean("community.feed.enabled", true);
+        pageSize = Math.max(1, configuration.getInt("community.feed.pagesize", 10));
+        pages = Math.max(1, configuration.getInt("community.feed.pages", 5));
+        refreshInterval = configuration.getLong("community.feed.refresh", 60000);
+        rebuildDelay = Math.max(100, configuration.getLong("community.feed.rebuild.delay", 1000));
+        maxAge = configuration.getLong("community.feed.maxage", 300000);
+
+        MetricRegistry metrics = Monitor.metrics();
+        hits = metrics.meter(MetricRegistry.name("community", "feed", "hits"));
+        misses = metrics.meter(MetricRegistry.name("community", "feed", "misses"));
+
+        if (enabled) {
+            LOG.info("Community feed enabled: {} pages of {} projects per sort", pages, pageSize);
+
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "community-feed");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            executor.scheduleWithFixedDelay(new Rebuild(), 0, rebuildDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop rebuilding the listings
+     */
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Obtain a precomputed page of the community project listing
+     *
+     * @param sort
+     * @param order
+     * @param limit
+     * @param offset
+     * @return the JSON response or null if the page is not available
+     */
+    public byte[] getPage(TableSort sort, TableOrder order, Integer limit, Integer offset) {
+        if (!enabled) {
+            return null;
+        }
+
+        int start = offset == null ? 0 : offset;
+        if (limit == null || limit != pageSize || start < 0 || start % pageSize != 0) {
+            misses.mark();
+            return null;
+        }
+
+        Listing listing = listings.get(key(sort, order));
+        int page = start / pageSize;
+
+        if (listing == null || page >= listing.pages.length
+                || System.currentTimeMillis() - listing.built > maxAge) {
+            misses.mark();
+            return null;
+        }
+
+        hits.mark();
+        return listing.pages[page];
+    }
+
+    /**
+     * Note a change to a project. Listings that include the project are
+     * rebuilt. If the project is shared, the listings sorted on a changed
+     * field are rebuilt as well, since the project may move into them.
+     *
+     * @param idProject
+     * @param shared is the project shared, or null if not known
+     * @param changed the sort fields that changed. Pass all sort fields when
+     * the shared flag may have changed, since that changes the totals.
+     */
+    public void projectChanged(Long idProject, Boolean shared, TableSort... changed) {
+        if (!enabled) {
+            return;
+        }
+
+        Set<TableSort> sorts = new HashSet<>(Arrays.asList(changed));
+        boolean mayBeListed = !Boolean.FALSE.equals(shared);
+
+        for (Listing listing : listings.values()) {
+            if (listing.ids.contains(idProject) || (mayBeListed && sorts.contains(listing.sort))) {
+                dirty.add(listing.key);
+            }
+        }
+    }
+
+    /**
+     * Rebuild all listings after the rebuild delay
+     */
+    public void invalidate() {
+        if (enabled) {
+            dirty.addAll(listings.keySet());
+        }
+    }
+
+
+    class Rebuild implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                boolean full = System.currentTimeMillis() - refreshed >= refreshInterval;
+                if (full) {
+                    refreshed = System.currentTimeMillis();
+                }
+
+                // Totals are shared by all listings, so count only once
+                int total = -1;
+
+                for (TableSort sort : TableSort.values()) {
+                    for (TableOrder order : TableOrder.values()) {
+                        String key = key(sort, order);
+
+                        if (dirty.remove(key) || full || !listings.containsKey(key)) {
+                            if (total < 0) {
+                                total = projectService.get().countSharedProjectsByUser(null);
+                            }
+                            listings.put(key, build(sort, order, total));
+                        }
+                    }
+                }
+            } catch (Exception ex) {
+                LOG.error("Unable to build the community feed. {}", ex.getMessage());
+            }
+        }
+
+        private Listing build(TableSort sort, TableOrder order, int total) {
+            List<ProjectSummary> projects = projectService.get()
+                    .getSharedProjects(sort, order, pageSize * pages, 0);
+            resolveOwnerNames(projects);
+
+            int count = (projects.size() + pageSize - 1) / pageSize;
+            byte[][] rendered = new byte[Math.max(1, count)][];
+            Set<Long> ids = new HashSet<>();
+
+            for (int page = 0; page < rendered.length; page++) {
+                int from = Math.min(page * pageSize, projects.size());
+                List<ProjectSummary> rows = projects.subList(from, Math.min(from + pageSize, projects.size()));
+
+                JsonArray jsonProjects = new JsonArray();
+                for (ProjectSummary project : rows) {
+                    jsonProjects.add(projectConverter.toListJson(project, null));
+                    ids.add(project.getId());
+                }
+
+                JsonObject result = new JsonObject();
+                result.add("rows", jsonProjects);
+                result.addProperty("total", total);
+
+                // Same continuation token as the listing endpoint
+                if (rows.size() >= pageSize) {
+                    ProjectSummary last = rows.get(rows.size() - 1);
+                    result.addProperty("next", ProjectCursor.after(last, sort, order).encode());
+                }
+
+                rendered[page] = result.toString().getBytes(StandardCharsets.UTF_8);
+            }
+
+            return new Listing(key(sort, order), sort, rendered, ids);
+        }
+
+        // Look up the screen names of all owners at once, instead of one
+        // owner per rendered project
+        private void resolveOwnerNames(List<ProjectSummary> projects) {
+            Set<Long> owners = new HashSet<>();
+            for (ProjectSummary project : projects) {
+                owners.add(project.getIdUser());
+            }
+
+            Map<Long, String> names = userService.getUserScreenNames(owners);
+            for (ProjectSummary project : projects) {
+                String name = names.get(project.getIdUser());
+                project.setOwnerName(name == null ? "" : name);
+            }
+        }
+    }
+
+    // The listing endpoint sorts by name, in ascending order, by default
+    private static String key(TableSort sort, TableOrder order) {
+        return (sort == null ? TableSort.name : sort).name()
+                + ":" + (order == null ? TableOrder.asc : order).name();
+    }
+
+
+    /**
+     * The rendered pages of one sort and sort order
+     */
+    private static class Listing {
+
+        private final String key;
+        private final TableSort sort;
+        private final byte[][] pages;
+        private final Set<Long> ids;
+        private final long built = System.currentTimeMillis();
+
+        Listing(String key, TableSort sort, byte[][] pages, Set<Long> ids) {
+            this.key = key;
+            this.sort = sort;
+            this.pages = pages;
+            this.ids = ids;
+        }
+    }
+
+}
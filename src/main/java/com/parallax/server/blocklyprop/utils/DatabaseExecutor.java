@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A small, bounded pool of threads for database queries that a request runs
+ * in parallel.
+ *
+ * Each task holds its own database connection for as long as it runs, so the
+ * pool should stay well below the size of the connection pool. When all
+ * threads are busy and the queue is full, a task runs on the thread that
+ * submitted it instead of being rejected.
+ *
+ * Tasks have no access to the session of the request that submitted them.
+ * Anything taken from the session, such as the current user, must be read
+ * before the task is submitted.
+ */
+@Singleton
+public class DatabaseExecutor {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(DatabaseExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+
+
+    @Inject
+    public DatabaseExecutor(Configuration configuration) {
+        int threads = Math.max(1, configuration.getInt("database.executor.threads", 8));
+        int queueSize = Math.max(1, configuration.getInt("database.executor.queue", 100));
+
+        executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "database-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    // Run on the submitting thread, also once the pool is
+                    // stopped, so the future of a task is always completed
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor pool) {
+                        task.run();
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+
+        Monitor.metrics().register(MetricRegistry.name("database", "executor", "queued"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return executor.getQueue().size();
+            }
+        });
+
+        LOG.info("Database executor threads: {}, queue: {}", threads, queueSize);
+    }
+
+    /**
+     * Run a query on a pool thread
+     *
+     * @param <T>
+     * @param query
+     * @return the future result of the query
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> query) {
+        return CompletableFuture.supplyAsync(query, executor);
+    }
+
+    /**
+     * Stop the pool threads once the queued queries have run. Queries
+     * submitted after that run on the submitting thread.
+     */
+    public void stop() {
+        executor.shutdown();
+    }
+
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.parallax.server.blocklyprop.db.enums.ProjectType;
+import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+
+/**
+ * Read projects to import from a stream, one project at a time.
+ *
+ * Two formats are read:
+ *  application/zip         an archive as written by ProjectArchiveWriter. The
+ *                          manifest must come before the project files.
+ *  application/x-ndjson    one JSON object per line, with the same fields as
+ *                          a manifest entry plus the project code in "code".
+ *
+ * A project that cannot be read is returned as an item with an error, and
+ * reading continues with the next project.
+ */
+public abstract class ProjectArchiveReader {
+
+    public static final String ZIP = "application/zip";
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    /**
+     * Largest project code accepted, in bytes
+     */
+    private static final int MAX_CODE_SIZE = 16 * 1024 * 1024;
+
+    private int index;
+
+
+    /**
+     * Create a reader for a stream
+     *
+     * @param contentType the media type of the stream
+     * @param in
+     * @return
+     * @throws IllegalArgumentException if the media type is not supported
+     */
+    public static ProjectArchiveReader open(String contentType, InputStream in) {
+        String mediaType = contentType == null ? "" : contentType.split(";")[0].trim();
+
+        if (ZIP.equalsIgnoreCase(mediaType)) {
+            return new Zip(in);
+        }
+
+        if (NDJSON.equalsIgnoreCase(mediaType)) {
+            return new Ndjson(in);
+        }
+
+        throw new IllegalArgumentException("Unsupported import format " + contentType);
+    }
+
+    /**
+     * Read the next project
+     *
+     * @return the next item or null at the end of the stream
+     * @throws IOException
+     */
+    public abstract Item next() throws IOException;
+
+
+    // Build the item for a project from its details and code
+    protected Item item(String source, JsonObject details, String code) {
+        Item item = new Item(++index, source);
+
+        if (details == null) {
+            item.setError("No project details");
+            return item;
+        }
+
+        try {
+            item.setProject(project(details, code));
+        } catch (IllegalArgumentException ex) {
+            item.setError(ex.getMessage());
+        }
+
+        return item;
+    }
+
+    // Build a project from its details, or throw IllegalArgumentException
+    // with the error reported for the item
+    private static ProjectRecord project(JsonObject details, String code) {
+        String name = getString(details, "name");
+        if (name == null || name.trim().isEmpty() || name.length() > 255) {
+            throw new IllegalArgumentException("Missing or invalid project name");
+        }
+
+        String board = getString(details, "board");
+        if (board == null || board.isEmpty() || board.length() > 45) {
+            throw new IllegalArgumentException("Missing or invalid board");
+        }
+
+        ProjectType type;
+        try {
+            type = ProjectType.valueOf(getString(details, "type"));
+        } catch (IllegalArgumentException | NullPointerException ex) {
+            throw new IllegalArgumentException("Missing or invalid project type");
+        }
+
+        ProjectRecord project = new ProjectRecord();
+        project.setName(name);
+        project.setDescription(getString(details, "description"));
+        project.setDescriptionHtml(getString(details, "description-html"));
+        project.setType(type);
+        project.setBoard(board);
+        project.setPrivate(getBoolean(details, "private"));
+        project.setShared(getBoolean(details, "shared"));
+        project.setCode(code == null ? "" : code);
+
+        return project;
+    }
+
+    protected Item error(String source, String error) {
+        Item item = new Item(++index, source);
+        item.setError(error);
+        return item;
+    }
+
+    // Read a field of the project details. Objects and arrays are rejected
+    // with an IllegalArgumentException.
+    private static String getString(JsonObject details, String name) {
+        JsonElement value = getPrimitive(details, name);
+        return value == null ? null : value.getAsString();
+    }
+
+    private static boolean getBoolean(JsonObject details, String name) {
+        JsonElement value = getPrimitive(details, name);
+        return value != null && value.getAsBoolean();
+    }
+
+    private static JsonElement getPrimitive(JsonObject details, String name) {
+        JsonElement value = details.get(name);
+        if (value == null || value.isJsonNull()) {
+            return null;
+        }
+
+        if (!value.isJsonPrimitive()) {
+            throw new IllegalArgumentException("Invalid project " + name);
+        }
+
+        return value;
+    }
+
+
+    /**
+     * A project read from the stream, and the outcome of its import
+     */
+    public static class Item {
+
+        private final int index;
+        private final String source;
+        private ProjectRecord project;
+        private Long id;
+        private String error;
+
+        public Item(int index, String source) {
+            this.index = index;
+            this.source = source;
+        }
+
+        /**
+         * Obtain the position of the project in the stream, starting at 1
+         *
+         * @return
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Obtain the archive file name or line number of the project
+         *
+         * @return
+         */
+        public String getSource() {
+            return source;
+        }
+
+        public ProjectRecord getProject() {
+            return project;
+        }
+
+        public void setProject(ProjectRecord project) {
+            this.project = project;
+        }
+
+        /**
+         * Obtain the id of the imported project
+         *
+         * @return the id or null if the project was not imported
+         */
+        public Long getId() {
+            return id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void setError(String error) {
+            this.error = error;
+        }
+
+    }
+
+
+    static class Zip extends ProjectArchiveReader {
+
+        private final ZipInputStream zip;
+
+        /**
+         * Manifest entries by file name
+         */
+        private Map<String, JsonObject> manifest;
+
+        Zip(InputStream in) {
+            zip = new ZipInputStream(in, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Item next() throws IOException {
+            ZipEntry entry;
+
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName();
+
+                if (ProjectArchiveWriter.MANIFEST.equals(name)) {
+                    manifest = readManifest();
+                    continue;
+                }
+
+                if (entry.isDirectory()
+                        || !name.startsWith(ProjectArchiveWriter.PROJECT_DIRECTORY)
+                        || !name.endsWith(".xml")) {
+                    continue;
+                }
+
+                byte[] code = readEntry();
+                if (code == null) {
+                    return error(name, "Project code is too large");
+                }
+
+                if (manifest == null || !manifest.containsKey(name)) {
+                    return error(name, "Project is not listed in " + ProjectArchiveWriter.MANIFEST);
+                }
+
+                return item(name, manifest.get(name), new String(code, StandardCharsets.UTF_8));
+            }
+
+            return null;
+        }
+
+        private Map<String, JsonObject> readManifest() throws IOException {
+            Map<String, JsonObject> entries = new HashMap<>();
+
+            try {
+                JsonObject root = new JsonParser()
+                        .parse(new InputStreamReader(zip, StandardCharsets.UTF_8))
+                        .getAsJsonObject();
+
+                for (JsonElement element : root.getAsJsonArray("projects")) {
+                    JsonObject details = element.getAsJsonObject();
+                    JsonElement file = details.get("file");
+
+                    // A project without a valid file name is reported as not listed
+                    if (file != null && file.isJsonPrimitive()) {
+                        entries.put(file.getAsString(), details);
+                    }
+                }
+            } catch (JsonParseException | IllegalStateException | ClassCastException | NullPointerException ex) {
+                throw new IOException("Invalid " + ProjectArchiveWriter.MANIFEST, ex);
+            }
+
+            return entries;
+        }
+
+        // Read the current entry, or return null if it is too large
+        private byte[] readEntry() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+
+            while ((count = zip.read(buffer)) > 0) {
+                if (out.size() + count > MAX_CODE_SIZE) {
+                    return null;
+                }
+                out.write(buffer, 0, count);
+            }
+
+            return out.toByteArray();
+        }
+    }
+
+
+    static class Ndjson extends ProjectArchiveReader {
+
+        private final BufferedReader reader;
+        private int line;
+
+        // Set when the last line read was longer than MAX_CODE_SIZE
+        private boolean tooLong;
+
+        Ndjson(InputStream in) {
+            reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public Item next() throws IOException {
+            String text;
+
+            while ((text = readLine()) != null) {
+                line++;
+
+                String source = "line " + line;
+                if (tooLong) {
+                    return error(source, "Project code is too large");
+                }
+
+                if (text.trim().isEmpty()) {
+                    continue;
+                }
+
+                JsonObject details;
+                try {
+                    details = new JsonParser().parse(text).getAsJsonObject();
+                } catch (JsonParseException | IllegalStateException ex) {
+                    return error(source, "Invalid JSON");
+                }
+
+                String code;
+                try {
+                    code = getString(details, "code");
+                } catch (IllegalArgumentException ex) {
+                    return error(source, ex.getMessage());
+                }
+
+                return item(source, details, code);
+            }
+
+            return null;
+        }
+
+        // Read a line of at most MAX_CODE_SIZE characters. The rest of a
+        // longer line is skipped instead of being held in memory.
+        private String readLine() throws IOException {
+            StringBuilder text = new StringBuilder();
+            tooLong = false;
+
+            int c = reader.read();
+            if (c == -1) {
+                return null;
+            }
+
+            while (c != -1 && c != '\n') {
+                if (!tooLong) {
+                    if (text.length() < MAX_CODE_SIZE) {
+                        text.append((char) c);
+                    } else {
+                        tooLong = true;
+                        text = new StringBuilder();
+                    }
+                }
+
+                c = reader.read();
+            }
+
+            return text.toString();
+        }
+    }
+
+}
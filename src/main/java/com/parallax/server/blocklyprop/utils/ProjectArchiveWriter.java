@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.google.gson.stream.JsonWriter;
+import com.parallax.server.blocklyprop.ProjectSummary;
+import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+
+/**
+ * Write projects to a ZIP archive.
+ *
+ * The archive holds a manifest.json file that describes the projects,
+ * followed by one XML file with the Blockly code of each project. Everything
+ * is written straight to the underlying stream as it is supplied.
+ */
+public class ProjectArchiveWriter {
+
+    public static final String MANIFEST = "manifest.json";
+
+    public static final String PROJECT_DIRECTORY = "projects/";
+
+    public static final int VERSION = 1;
+
+    /**
+     * Longest project name used in a file name
+     */
+    private static final int MAX_NAME_LENGTH = 60;
+
+    private final ZipOutputStream zip;
+
+    private JsonWriter manifest;
+
+
+    public ProjectArchiveWriter(OutputStream out) {
+        zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Obtain the archive file name of a project
+     *
+     * @param idProject
+     * @param name
+     * @return
+     */
+    public static String fileName(Long idProject, String name) {
+        String safeName = name == null ? "" : name.replaceAll("[^A-Za-z0-9._-]+", "_");
+        if (safeName.length() > MAX_NAME_LENGTH) {
+            safeName = safeName.substring(0, MAX_NAME_LENGTH);
+        }
+
+        return PROJECT_DIRECTORY + idProject + (safeName.isEmpty() ? "" : "-" + safeName) + ".xml";
+    }
+
+    /**
+     * Start the manifest. Projects are added to the manifest with
+     * addToManifest() until endManifest() is called.
+     *
+     * @throws IOException
+     */
+    public void startManifest() throws IOException {
+        zip.putNextEntry(new ZipEntry(MANIFEST));
+
+        // The writer must not close the archive
+        Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8) {
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+
+        manifest = new JsonWriter(writer);
+        manifest.setIndent("  ");
+        manifest.beginObject();
+        manifest.name("version").value(VERSION);
+        manifest.name("projects").beginArray();
+    }
+
+    public void addToManifest(ProjectSummary project) throws IOException {
+        manifest.beginObject();
+        manifest.name("id").value(project.getId());
+        manifest.name("file").value(fileName(project.getId(), project.getName()));
+        manifest.name("name").value(project.getName());
+        manifest.name("description").value(project.getDescription());
+        manifest.name("type").value(project.getType() == null ? null : project.getType().name());
+        manifest.name("board").value(project.getBoard());
+        manifest.name("private").value(project.getPrivate());
+        manifest.name("shared").value(project.getShared());
+        manifest.name("created").value(project.getCreated() == null
+                ? null : DateConversion.toDateTimeString(project.getCreated().getTime()));
+        manifest.name("modified").value(project.getModified() == null
+                ? null : DateConversion.toDateTimeString(project.getModified().getTime()));
+        manifest.endObject();
+    }
+
+    public void endManifest() throws IOException {
+        manifest.endArray();
+        manifest.endObject();
+        manifest.close();
+        manifest = null;
+
+        zip.closeEntry();
+    }
+
+    /**
+     * Add the code of a project to the archive
+     *
+     * @param project
+     * @throws IOException
+     */
+    public void addProject(ProjectRecord project) throws IOException {
+        ZipEntry entry = new ZipEntry(fileName(project.getId(), project.getName()));
+        if (project.getModified() != null) {
+            entry.setTime(project.getModified().getTimeInMillis());
+        }
+
+        zip.putNextEntry(entry);
+        if (project.getCode() != null) {
+            zip.write(project.getCode().getBytes(StandardCharsets.UTF_8));
+        }
+        zip.closeEntry();
+    }
+
+    /**
+     * Complete the archive. The underlying stream is flushed, not closed.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        zip.finish();
+        zip.flush();
+    }
+
+}
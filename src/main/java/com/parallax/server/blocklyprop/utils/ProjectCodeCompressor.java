@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeCodec;
+import com.parallax.server.blocklyprop.services.ProjectService;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Background conversion of existing project code to the project code store.
+ *
+ * When enabled, the conversion starts with the application and works through
+ * the project table in small chunks, pausing between chunks to keep the load
+ * on the database low. Projects saved after the project code store was
+ * introduced already refer to it and are skipped. The compression report is
+ * written to the log when the conversion completes.
+ */
+@Singleton
+public class ProjectCodeCompressor {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectCodeCompressor.class);
+
+    /**
+     * Log the compression report after this many chunks
+     */
+    private static final int REPORT_INTERVAL = 100;
+
+    private final ProjectService projectService;
+    private final ProjectCodeCodec projectCodeCodec;
+
+    private final int chunkSize;
+    private final long pause;
+
+    private Thread thread;
+
+
+    @Inject
+    public ProjectCodeCompressor(
+            Configuration configuration,
+            ProjectService projectService,
+            ProjectCodeCodec projectCodeCodec) {
+
+        this.projectService = projectService;
+        this.projectCodeCodec = projectCodeCodec;
+
+        chunkSize = configuration.getInt("project.code.compression.convert.chunk", 100);
+        pause = configuration.getLong("project.code.compression.convert.pause", 1000);
+
+        if (configuration.getBoolean("project.code.compression.convert", false)) {
+
+            thread = new Thread(new Conversion(), "project-code-compressor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the conversion thread
+     */
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+
+    class Conversion implements Runnable {
+
+        @Override
+        public void run() {
+            LOG.info("Converting existing project code to the project code store");
+
+            Long idAfter = 0L;
+            int chunks = 0;
+
+            try {
+                while (idAfter != null) {
+                    idAfter = projectService.compressProjectCode(idAfter, chunkSize);
+
+                    if (++chunks % REPORT_INTERVAL == 0) {
+                        LOG.info("Project code conversion reached project {}", idAfter);
+                        LOG.info(projectCodeCodec.report());
+                    }
+
+                    if (idAfter != null && pause > 0) {
+                        Thread.sleep(pause);
+                    }
+                }
+
+                LOG.info("Project code conversion complete");
+            } catch (InterruptedException ie) {
+                LOG.info("Project code conversion interrupted");
+            } catch (Exception ex) {
+                LOG.error("Project code conversion failed after project {}. {}", idAfter, ex.getMessage());
+            }
+
+            LOG.info(projectCodeCodec.report());
+        }
+    }
+
+}
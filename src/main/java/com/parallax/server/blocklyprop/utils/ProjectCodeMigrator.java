@@ -0,0 +1,586 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.ProjectCodeUpgrade;
+import com.parallax.server.blocklyprop.ProjectMigrationStatus;
+import com.parallax.server.blocklyprop.db.dao.impl.ProjectDaoImpl;
+import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeMigration;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeMigrations;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import com.parallax.server.blocklyprop.services.ProjectService;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.sql.DataSource;
+import org.apache.commons.configuration.Configuration;
+import org.jooq.SQLDialect;
+import org.jooq.exception.DataAccessException;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Bulk migration of project code to the current block version.
+ *
+ * Started by an administrator, the migration works through all projects with
+ * an older block version in chunks, in id order. The deprecated blocks of a
+ * chunk are replaced in parallel on a fork-join pool, after which the chunk
+ * is written in a single transaction. Projects saved while their chunk is
+ * migrated are left alone.
+ *
+ * Progress is checkpointed after every chunk. A migration that was running
+ * when the application stopped resumes after the last chunk written. In a
+ * dry run the projects are migrated and counted, but not written.
+ *
+ * A running migration holds a database lock, so only one server migrates at
+ * a time. Starting or resuming a migration on another server does nothing
+ * while the lock is held; the lock is released by the database when the
+ * server holding it goes away.
+ *
+ * The migration reads at most project.migration.rate projects per second.
+ * It uses one database connection, or two when the next chunk is read while
+ * the previous one is written, besides the connection holding the lock.
+ */
+@Singleton
+public class ProjectCodeMigrator {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectCodeMigrator.class);
+
+    /**
+     * How long a shutdown waits for the chunk being migrated
+     */
+    private static final long SHUTDOWN_TIMEOUT = 30000;
+
+    /**
+     * Name of the database lock held by the server running the migration
+     */
+    private static final String MIGRATION_LOCK = "blocklyprop.project.migration";
+
+    private final ProjectService projectService;
+    private final DataSource dataSource;
+
+    private final int chunkSize;
+    private final double rate;
+    private final int parallelism;
+    private final int connections;
+
+    private final Meter examined;
+    private final Counter migrated;
+    private final Counter unchanged;
+    private final Counter skipped;
+    private final Counter failed;
+
+    /**
+     * Status of the current or latest run
+     */
+    private volatile ProjectMigrationStatus status;
+
+    private volatile boolean stopping;
+
+    private volatile boolean shuttingDown;
+
+    private Thread thread;
+
+    /**
+     * Connection holding the migration lock while a migration runs
+     */
+    private Connection lock;
+
+
+    @Inject
+    public ProjectCodeMigrator(
+            Configuration configuration,
+            ProjectService projectService,
+            DataSource dataSource) {
+
+        this.projectService = projectService;
+        this.dataSource = dataSource;
+
+        chunkSize = Math.max(1, configuration.getInt("project.migration.chunk", 200));
+        rate = configuration.getDouble("project.migration.rate", 500);
+        parallelism = Math.max(1, configuration.getInt("project.migration.parallelism",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        connections = Math.min(2, Math.max(1, configuration.getInt("project.migration.connections", 2)));
+
+        MetricRegistry metrics = Monitor.metrics();
+        examined = metrics.meter(MetricRegistry.name("project", "migration", "examined"));
+        migrated = metrics.counter(MetricRegistry.name("project", "migration", "migrated"));
+        unchanged = metrics.counter(MetricRegistry.name("project", "migration", "unchanged"));
+        skipped = metrics.counter(MetricRegistry.name("project", "migration", "skipped"));
+        failed = metrics.counter(MetricRegistry.name("project", "migration", "failed"));
+        metrics.register(MetricRegistry.name("project", "migration", "lastid"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                ProjectMigrationStatus current = status;
+                return current == null ? 0 : current.getLastId();
+            }
+        });
+
+        if (configuration.getBoolean("project.migration.resume", true)) {
+            Thread resume = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    resume();
+                }
+            }, "project-migrator-resume");
+            resume.setDaemon(true);
+            resume.start();
+        }
+    }
+
+    /**
+     * Start migrating all projects with an older block version
+     *
+     * @param dryRun migrate and count the projects without writing them
+     * @return false if a migration is already running, on this or another
+     * server
+     */
+    public synchronized boolean start(boolean dryRun) {
+        if (isRunning() || shuttingDown || !lock()) {
+            return false;
+        }
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+
+        ProjectMigrationStatus started = new ProjectMigrationStatus();
+        started.setState(ProjectMigrationStatus.State.RUNNING);
+        started.setDryRun(dryRun);
+        started.setBlockVersion(ProjectDaoImpl.BLOCKLY_LIBRARY_VERSION);
+        started.setLastId(0L);
+        started.setStarted(now);
+        started.setUpdated(now);
+
+        try {
+            projectService.saveProjectMigration(started);
+        } catch (RuntimeException ex) {
+            unlock();
+            throw ex;
+        }
+
+        run(started);
+
+        return true;
+    }
+
+    /**
+     * Stop the running migration after the chunk it is working on
+     *
+     * @return false if no migration is running
+     */
+    public synchronized boolean stop() {
+        if (!isRunning()) {
+            return false;
+        }
+
+        stopping = true;
+        return true;
+    }
+
+    /**
+     * Stop the running migration because the application stops. The
+     * migration is left running in its checkpoint, so it resumes when the
+     * application starts again.
+     */
+    public void shutdown() {
+        Thread running;
+        synchronized (this) {
+            shuttingDown = true;
+            stopping = true;
+            running = thread;
+        }
+
+        if (running == null) {
+            return;
+        }
+
+        try {
+            running.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        running.interrupt();
+    }
+
+    /**
+     * Obtain the status of the current or latest migration
+     *
+     * @return the status, or null if no migration has run
+     */
+    public ProjectMigrationStatus getStatus() {
+        ProjectMigrationStatus current = status;
+        return current != null ? current : projectService.getProjectMigration();
+    }
+
+
+    private synchronized boolean isRunning() {
+        return thread != null && thread.isAlive();
+    }
+
+    // Continue a migration that was running when the application stopped,
+    // unless another server already continues it
+    private synchronized void resume() {
+        if (isRunning() || shuttingDown || !lock()) {
+            return;
+        }
+
+        try {
+            // Read after taking the lock, so a migration finished by another
+            // server is seen as finished
+            ProjectMigrationStatus checkpoint = projectService.getProjectMigration();
+
+            if (checkpoint == null || checkpoint.getState() != ProjectMigrationStatus.State.RUNNING) {
+                unlock();
+                return;
+            }
+
+            if (!checkpoint.getBlockVersion().equals(ProjectDaoImpl.BLOCKLY_LIBRARY_VERSION)) {
+                LOG.info("Not resuming the project migration to block version {}",
+                        checkpoint.getBlockVersion());
+                unlock();
+                return;
+            }
+
+            LOG.info("Resuming the project migration after project {}", checkpoint.getLastId());
+            run(checkpoint);
+        } catch (Exception ex) {
+            LOG.error("Unable to resume the project migration. {}", ex.getMessage());
+            unlock();
+        }
+    }
+
+    // Take the migration lock on a connection of its own, as the lock
+    // belongs to the connection and must outlive the transactions of the
+    // migration
+    private synchronized boolean lock() {
+        Connection connection = null;
+        try {
+            connection = dataSource.getConnection();
+            Object locked = DSL.using(connection, SQLDialect.MYSQL)
+                    .fetchValue("select get_lock(?, 0)", MIGRATION_LOCK);
+
+            if (locked != null && ((Number) locked).intValue() == 1) {
+                lock = connection;
+                return true;
+            }
+
+            LOG.info("The project migration is running on another server");
+        } catch (SQLException | DataAccessException ex) {
+            LOG.error("Unable to take the project migration lock. {}", ex.getMessage());
+        }
+
+        close(connection);
+        return false;
+    }
+
+    // Check that the lock is still held, which also keeps its connection
+    // from timing out
+    private synchronized boolean isLocked() {
+        if (lock == null) {
+            return false;
+        }
+
+        try {
+            Object held = DSL.using(lock, SQLDialect.MYSQL)
+                    .fetchValue("select is_used_lock(?) = connection_id()", MIGRATION_LOCK);
+            return held != null && ((Number) held).intValue() == 1;
+        } catch (DataAccessException ex) {
+            LOG.error("Unable to check the project migration lock. {}", ex.getMessage());
+            return false;
+        }
+    }
+
+    private synchronized void unlock() {
+        if (lock == null) {
+            return;
+        }
+
+        try {
+            DSL.using(lock, SQLDialect.MYSQL).fetchValue("select release_lock(?)", MIGRATION_LOCK);
+        } catch (DataAccessException ex) {
+            LOG.warn("Unable to release the project migration lock. {}", ex.getMessage());
+        }
+
+        close(lock);
+        lock = null;
+    }
+
+    private static void close(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            LOG.warn("Unable to close the project migration lock connection. {}", ex.getMessage());
+        }
+    }
+
+    private synchronized void run(ProjectMigrationStatus migration) {
+        status = migration;
+        stopping = false;
+
+        thread = new Thread(new Migration(migration), "project-migrator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    // A migration stopped by a shutdown is resumed later
+    private ProjectMigrationStatus.State stoppedState() {
+        return shuttingDown
+                ? ProjectMigrationStatus.State.RUNNING
+                : ProjectMigrationStatus.State.STOPPED;
+    }
+
+
+    /**
+     * The outcome of migrating a chunk of projects
+     */
+    static class Chunk {
+
+        private final List<ProjectCodeUpgrade> upgrades = new ArrayList<>();
+        private Long lastId;
+        private int examined;
+        private int migrated;
+        private int unchanged;
+        private int failed;
+    }
+
+
+    class Migration implements Runnable {
+
+        private final ProjectMigrationStatus migration;
+
+        Migration(ProjectMigrationStatus migration) {
+            this.migration = migration;
+        }
+
+        @Override
+        public void run() {
+            LOG.info("Migrating project code to block version {}{}, chunk: {}, rate: {} projects/s",
+                    migration.getBlockVersion(), migration.isDryRun() ? " (dry run)" : "", chunkSize, rate);
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            ExecutorService writer = connections > 1
+                    ? Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread writerThread = new Thread(runnable, "project-migrator-writer");
+                            writerThread.setDaemon(true);
+                            return writerThread;
+                        }
+                    })
+                    : null;
+            RateLimiter limiter = rate > 0 ? RateLimiter.create(rate) : null;
+
+            Long idAfter = migration.getLastId();
+            Future<?> writing = null;
+
+            boolean lost = false;
+
+            try {
+                while (!stopping) {
+                    if (!isLocked()) {
+                        LOG.error("Lost the project migration lock after project {}", idAfter);
+                        lost = true;
+                        break;
+                    }
+
+                    List<ProjectRecord> projects = projectService.getLegacyProjectCode(idAfter, chunkSize);
+                    if (projects.isEmpty()) {
+                        break;
+                    }
+
+                    if (limiter != null) {
+                        limiter.acquire(projects.size());
+                    }
+
+                    Chunk chunk = migrate(pool, projects);
+                    idAfter = chunk.lastId;
+
+                    // One chunk is written at a time, in order
+                    if (writing != null) {
+                        writing.get();
+                    }
+
+                    Write write = new Write(migration, chunk);
+                    if (writer == null) {
+                        write.run();
+                    } else {
+                        writing = writer.submit(write);
+                    }
+                }
+
+                if (writing != null) {
+                    writing.get();
+                }
+
+                migration.setState(stopping
+                        ? stoppedState()
+                        : ProjectMigrationStatus.State.FINISHED);
+            } catch (InterruptedException ie) {
+                LOG.info("Project migration interrupted");
+                migration.setState(stoppedState());
+            } catch (Exception ex) {
+                LOG.error("Project migration failed after project {}. {}", migration.getLastId(), ex.getMessage());
+                migration.setState(ProjectMigrationStatus.State.STOPPED);
+            } finally {
+                pool.shutdown();
+                if (writer != null) {
+                    writer.shutdown();
+                }
+            }
+
+            // Without the lock, the checkpoint may belong to another server,
+            // so it is left alone and reported as stored
+            if (lost) {
+                migration.setState(ProjectMigrationStatus.State.RUNNING);
+                status = null;
+            } else {
+                try {
+                    migration.setUpdated(new Timestamp(System.currentTimeMillis()));
+                    projectService.saveProjectMigration(migration);
+                } catch (Exception ex) {
+                    LOG.error("Unable to save the project migration checkpoint. {}", ex.getMessage());
+                }
+            }
+
+            unlock();
+            LOG.info("Project migration {}: {}", migration.getState(), migration);
+        }
+
+        // Replace the deprecated blocks of a chunk of projects in parallel
+        private Chunk migrate(ForkJoinPool pool, List<ProjectRecord> projects) throws InterruptedException {
+            List<Callable<ProjectCodeUpgrade>> tasks = new ArrayList<>(projects.size());
+
+            for (final ProjectRecord project : projects) {
+                tasks.add(new Callable<ProjectCodeUpgrade>() {
+                    @Override
+                    public ProjectCodeUpgrade call() {
+                        String code = project.getCode();
+                        String migratedCode = code == null
+                                ? null
+                                : ProjectCodeMigrations.standard().migrate(
+                                        code,
+                                        project.getType(),
+                                        project.getCodeBlockVersion(),
+                                        ProjectCodeMigration.RANDOM_BLOCK_IDS);
+
+                        // Code without deprecated blocks only needs its block
+                        // version raised
+                        return new ProjectCodeUpgrade(
+                                project.getId(),
+                                project.getCodeBlockVersion(),
+                                migratedCode == code ? null : migratedCode);
+                    }
+                });
+            }
+
+            Chunk chunk = new Chunk();
+            chunk.lastId = projects.get(projects.size() - 1).getId();
+            chunk.examined = projects.size();
+
+            List<Future<ProjectCodeUpgrade>> results = pool.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    ProjectCodeUpgrade upgrade = results.get(i).get();
+                    chunk.upgrades.add(upgrade);
+
+                    if (upgrade.getCode() == null) {
+                        chunk.unchanged++;
+                    } else {
+                        chunk.migrated++;
+                    }
+                } catch (ExecutionException ex) {
+                    LOG.warn("Unable to migrate project {}. {}",
+                            projects.get(i).getId(), ex.getCause().getMessage());
+                    chunk.failed++;
+                }
+            }
+
+            return chunk;
+        }
+    }
+
+
+    // Write a migrated chunk and its checkpoint
+    class Write implements Runnable {
+
+        private final ProjectMigrationStatus migration;
+        private final Chunk chunk;
+
+        Write(ProjectMigrationStatus migration, Chunk chunk) {
+            this.migration = migration;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public void run() {
+            int written = migration.isDryRun()
+                    ? chunk.upgrades.size()
+                    : projectService.upgradeProjectCode(chunk.upgrades);
+
+            int chunkSkipped = chunk.upgrades.size() - written;
+
+            examined.mark(chunk.examined);
+            migrated.inc(chunk.migrated);
+            unchanged.inc(chunk.unchanged);
+            skipped.inc(chunkSkipped);
+            failed.inc(chunk.failed);
+
+            migration.setLastId(chunk.lastId);
+            migration.setExamined(migration.getExamined() + chunk.examined);
+            migration.setMigrated(migration.getMigrated() + chunk.migrated);
+            migration.setUnchanged(migration.getUnchanged() + chunk.unchanged);
+            migration.setSkipped(migration.getSkipped() + chunkSkipped);
+            migration.setFailed(migration.getFailed() + chunk.failed);
+            migration.setUpdated(new Timestamp(System.currentTimeMillis()));
+
+            projectService.saveProjectMigration(migration);
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.ProjectCodeUpgrade;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import com.parallax.server.blocklyprop.services.ProjectService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Write back project code that was migrated when it was read.
+ *
+ * Projects saved with an older block version have their deprecated blocks
+ * replaced every time they are read. The result of such a migration is
+ * queued here and written by a background thread, together with the current
+ * block version, so each project is migrated only once.
+ *
+ * A project is not written if it was saved after the migrated code was read.
+ * Migrations that cannot be written, or that do not fit in the queue, are
+ * simply done again the next time the project is read.
+ */
+@Singleton
+public class ProjectCodeUpgrader {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectCodeUpgrader.class);
+
+    /**
+     * Projects written per transaction
+     */
+    private static final int BATCH_SIZE = 100;
+
+    private final Provider<ProjectService> projectService;
+
+    private final boolean enabled;
+    private final int maxPending;
+
+    /**
+     * Migrated projects waiting to be written
+     */
+    private final ConcurrentMap<Long, ProjectCodeUpgrade> pending = new ConcurrentHashMap<>();
+
+    private final Counter upgraded;
+    private final Counter skipped;
+
+    private ScheduledExecutorService executor;
+
+
+    @Inject
+    public ProjectCodeUpgrader(
+            Configuration configuration,
+            Provider<ProjectService> projectService) {
+
+        // Projects read through the project service are queued here, so the
+        // service is looked up when the queue is written
+        this.projectService = projectService;
+
+        enabled = configuration.getBoolean("project.code.upgrade.enabled", true);
+        maxPending = configuration.getInt("project.code.upgrade.maxpending", 1000);
+        long interval = configuration.getLong("project.code.upgrade.interval", 1000);
+
+        MetricRegistry metrics = Monitor.metrics();
+        upgraded = metrics.counter(MetricRegistry.name("project", "code", "upgrade", "written"));
+        skipped = metrics.counter(MetricRegistry.name("project", "code", "upgrade", "skipped"));
+        metrics.register(MetricRegistry.name("project", "code", "upgrade", "pending"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return pending.size();
+            }
+        });
+
+        if (enabled) {
+            LOG.info("Project code upgrade enabled, interval: {} ms", interval);
+
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "project-code-upgrader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            executor.scheduleWithFixedDelay(new Writer(), interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the writer thread. Migrations still queued are done again when
+     * the projects are next read.
+     */
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Queue the result of a migration
+     *
+     * @param idProject
+     * @param fromVersion the block version of the code that was migrated
+     * @param code the migrated code, or null if the migration did not change
+     * the code
+     */
+    public void upgrade(Long idProject, Short fromVersion, String code) {
+        if (!enabled || idProject == null || fromVersion == null) {
+            return;
+        }
+
+        if (pending.size() >= maxPending) {
+            return;
+        }
+
+        pending.putIfAbsent(idProject, new ProjectCodeUpgrade(idProject, fromVersion, code));
+    }
+
+
+    class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            List<ProjectCodeUpgrade> batch = new ArrayList<>(BATCH_SIZE);
+
+            for (ProjectCodeUpgrade upgrade : pending.values()) {
+                if (pending.remove(upgrade.getIdProject(), upgrade)) {
+                    batch.add(upgrade);
+                }
+
+                if (batch.size() >= BATCH_SIZE) {
+                    write(batch);
+                    batch.clear();
+                }
+            }
+
+            write(batch);
+        }
+
+        private void write(List<ProjectCodeUpgrade> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                int count = projectService.get().upgradeProjectCode(batch);
+                upgraded.inc(count);
+                skipped.inc(batch.size() - count);
+            } catch (Exception ex) {
+                LOG.warn("Unable to write the migrated code of {} projects. {}", batch.size(), ex.getMessage());
+            }
+        }
+    }
+
+}
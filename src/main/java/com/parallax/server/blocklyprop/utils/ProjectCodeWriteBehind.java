@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.ProjectCodeSave;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import com.parallax.server.blocklyprop.services.ProjectService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Write-behind buffer for saved project code.
+ *
+ * When enabled, saving project code only places the code in a buffer that
+ * holds the latest saved code of each project. Saving the same project again
+ * before the buffer is written replaces the buffered code, so a burst of
+ * saves results in a single write. A small pool of threads writes the buffer
+ * to the database in batches at a fixed interval.
+ *
+ * Buffered code is returned when a project is read, until it is written. The
+ * buffer is written out completely when the application shuts down.
+ *
+ * Saves are only buffered up to project.code.writebehind.maxpending projects;
+ * beyond that they are written immediately.
+ */
+@Singleton
+public class ProjectCodeWriteBehind {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectCodeWriteBehind.class);
+
+    private final Provider<ProjectService> projectService;
+
+    private final boolean enabled;
+    private final long interval;
+    private final int batchSize;
+    private final int maxPending;
+
+    /**
+     * Latest saved code per project, waiting to be written
+     */
+    private final ConcurrentMap<Long, ProjectCodeSave> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Code being written. A project is written by one thread at a time, so
+     * older code never overwrites newer code.
+     */
+    private final ConcurrentMap<Long, ProjectCodeSave> writing = new ConcurrentHashMap<>();
+
+    private final Counter saves;
+    private final Counter coalesced;
+    private final Counter written;
+
+    private ScheduledExecutorService executor;
+
+
+    @Inject
+    public ProjectCodeWriteBehind(
+            Configuration configuration,
+            Provider<ProjectService> projectService) {
+
+        // The project service saves through this class, so it is looked up
+        // when the buffer is written
+        this.projectService = projectService;
+
+        enabled = configuration.getBoolean("project.code.writebehind.enabled", false);
+        interval = configuration.getLong("project.code.writebehind.interval", 2000);
+        batchSize = Math.max(1, configuration.getInt("project.code.writebehind.batch", 100));
+        maxPending = configuration.getInt("project.code.writebehind.maxpending", 10000);
+
+        MetricRegistry metrics = Monitor.metrics();
+        saves = metrics.counter(MetricRegistry.name("project", "code", "writebehind", "saves"));
+        coalesced = metrics.counter(MetricRegistry.name("project", "code", "writebehind", "coalesced"));
+        written = metrics.counter(MetricRegistry.name("project", "code", "writebehind", "written"));
+        metrics.register(MetricRegistry.name("project", "code", "writebehind", "pending"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return pending.size();
+            }
+        });
+
+        if (enabled) {
+            int threads = Math.max(1, configuration.getInt("project.code.writebehind.threads", 2));
+            LOG.info("Project code write-behind enabled, interval: {} ms, threads: {}", interval, threads);
+
+            executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "project-code-writer-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            for (int i = 0; i < threads; i++) {
+                executor.scheduleWithFixedDelay(new Writer(), interval, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Is saved project code buffered
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Buffer saved project code
+     *
+     * @param save
+     * @return true if the code was buffered, false if it must be written
+     * immediately
+     */
+    public boolean save(ProjectCodeSave save) {
+        if (!enabled || executor.isShutdown()) {
+            return false;
+        }
+
+        if (pending.size() >= maxPending && !pending.containsKey(save.getIdProject())) {
+            return false;
+        }
+
+        saves.inc();
+        if (pending.put(save.getIdProject(), save) != null) {
+            coalesced.inc();
+        }
+
+        return true;
+    }
+
+    /**
+     * Obtain the buffered code of a project
+     *
+     * @param idProject
+     * @return the code or null if no code is buffered for the project
+     */
+    public String getCode(Long idProject) {
+        if (!enabled) {
+            return null;
+        }
+
+        ProjectCodeSave save = pending.get(idProject);
+        if (save == null) {
+            save = writing.get(idProject);
+        }
+
+        return save == null ? null : save.getCode();
+    }
+
+    /**
+     * Take the buffered code of a project out of the buffer
+     *
+     * @param idProject
+     * @return the buffered save or null if no code is buffered for the project
+     */
+    public ProjectCodeSave remove(Long idProject) {
+        return enabled ? pending.remove(idProject) : null;
+    }
+
+    /**
+     * Stop the writer threads and write all buffered code
+     */
+    public void drain() {
+        if (!enabled) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(interval + 30000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        LOG.info("Writing the code of {} projects before shutdown", pending.size());
+        new Writer().run();
+    }
+
+
+    // Move up to a batch of buffered saves to the writing map
+    private List<ProjectCodeSave> take() {
+        List<ProjectCodeSave> batch = new ArrayList<>(batchSize);
+
+        for (Map.Entry<Long, ProjectCodeSave> entry : pending.entrySet()) {
+            if (batch.size() >= batchSize) {
+                break;
+            }
+
+            Long idProject = entry.getKey();
+            ProjectCodeSave save = entry.getValue();
+
+            if (writing.putIfAbsent(idProject, save) != null) {
+                continue;
+            }
+
+            if (pending.remove(idProject, save)) {
+                batch.add(save);
+            } else {
+                writing.remove(idProject, save);
+            }
+        }
+
+        return batch;
+    }
+
+
+    class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            List<ProjectCodeSave> batch = take();
+
+            while (!batch.isEmpty()) {
+                try {
+                    written.inc(projectService.get().saveProjectCode(batch).size());
+                } catch (Exception ex) {
+                    LOG.error("Unable to write the code of {} projects. {}", batch.size(), ex.getMessage());
+
+                    // Keep the code for the next attempt, unless it was saved again
+                    for (ProjectCodeSave save : batch) {
+                        pending.putIfAbsent(save.getIdProject(), save);
+                    }
+                    return;
+                } finally {
+                    for (ProjectCodeSave save : batch) {
+                        writing.remove(save.getIdProject(), save);
+                    }
+                }
+
+                batch = take();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.services.ProjectService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Periodically correct the materialized project counts.
+ *
+ * The counts are kept up to date as projects change, so a run normally finds
+ * nothing to correct. It guards against drift from changes made outside the
+ * application, such as manual database maintenance. The users are reconciled
+ * in small chunks, pausing between chunks to keep the load on the database
+ * low.
+ */
+@Singleton
+public class ProjectCounterReconciler {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectCounterReconciler.class);
+
+    private final ProjectService projectService;
+
+    private final int chunkSize;
+    private final long pause;
+    private final long interval;
+
+    private Thread thread;
+
+
+    @Inject
+    public ProjectCounterReconciler(Configuration configuration, ProjectService projectService) {
+        this.projectService = projectService;
+
+        chunkSize = configuration.getInt("project.counter.reconcile.chunk", 500);
+        pause = configuration.getLong("project.counter.reconcile.pause", 1000);
+        interval = TimeUnit.HOURS.toMillis(configuration.getLong("project.counter.reconcile.interval", 6));
+
+        if (interval > 0) {
+            thread = new Thread(new Reconciliation(), "project-counter-reconciler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the reconciliation thread
+     */
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+
+    class Reconciliation implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(interval);
+                    reconcile();
+                }
+            } catch (InterruptedException ie) {
+                LOG.info("Project count reconciliation interrupted");
+            }
+        }
+
+        private void reconcile() throws InterruptedException {
+            LOG.info("Reconciling project counts");
+
+            Long idAfter = 0L;
+            try {
+                while (idAfter != null) {
+                    idAfter = projectService.reconcileProjectCounters(idAfter, chunkSize);
+
+                    if (idAfter != null && pause > 0) {
+                        Thread.sleep(pause);
+                    }
+                }
+
+                LOG.info("Project count reconciliation complete");
+            } catch (InterruptedException ie) {
+                throw ie;
+            } catch (Exception ex) {
+                LOG.error("Project count reconciliation failed after user {}. {}", idAfter, ex.getMessage());
+            }
+        }
+    }
+
+}
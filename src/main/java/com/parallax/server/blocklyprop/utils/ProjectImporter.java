@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.db.generated.tables.records.ProjectRecord;
+import com.parallax.server.blocklyprop.services.ProjectService;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Import a stream of projects into the account of the current user.
+ *
+ * Projects are read one at a time and created in chunks of
+ * project.import.batch projects. Each chunk is created in its own
+ * transaction, so a large import does not hold one long transaction open,
+ * and a chunk that fails does not undo the chunks before it. The code of a
+ * chunk is released once it has been created, so the memory used does not
+ * depend on the size of the import.
+ */
+@Singleton
+public class ProjectImporter {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectImporter.class);
+
+    private final ProjectService projectService;
+
+    private final int batchSize;
+    private final int maxProjects;
+
+
+    @Inject
+    public ProjectImporter(Configuration configuration, ProjectService projectService) {
+        this.projectService = projectService;
+
+        batchSize = Math.max(1, configuration.getInt("project.import.batch", 100));
+        maxProjects = configuration.getInt("project.import.max", 5000);
+    }
+
+    /**
+     * Import the projects read from a stream
+     *
+     * @param reader
+     * @param idUser the id of the current user
+     * @param idCloudUser the cloud session id of the current user
+     * @return the outcome of each project read, in stream order
+     * @throws IOException if the stream cannot be read. The projects imported
+     * before the failure are kept.
+     */
+    public List<ProjectArchiveReader.Item> importProjects(
+            ProjectArchiveReader reader, Long idUser, Long idCloudUser) throws IOException {
+
+        List<ProjectArchiveReader.Item> items = new ArrayList<>();
+        List<ProjectArchiveReader.Item> chunk = new ArrayList<>(batchSize);
+        int projects = 0;
+        int imported = 0;
+
+        ProjectArchiveReader.Item item;
+        while ((item = reader.next()) != null) {
+            items.add(item);
+
+            if (item.getProject() == null) {
+                continue;
+            }
+
+            if (maxProjects > 0 && ++projects > maxProjects) {
+                item.setProject(null);
+                item.setError("Import limit of " + maxProjects + " projects reached");
+                continue;
+            }
+
+            chunk.add(item);
+            if (chunk.size() >= batchSize) {
+                imported += importChunk(chunk, idUser, idCloudUser);
+            }
+        }
+
+        imported += importChunk(chunk, idUser, idCloudUser);
+
+        LOG.info("Imported {} of {} projects for user {}", imported, items.size(), idUser);
+        return items;
+    }
+
+
+    // Create a chunk of projects and return the number created
+    private int importChunk(List<ProjectArchiveReader.Item> chunk, Long idUser, Long idCloudUser) {
+        if (chunk.isEmpty()) {
+            return 0;
+        }
+
+        int imported = 0;
+
+        List<ProjectRecord> projects = new ArrayList<>(chunk.size());
+        for (ProjectArchiveReader.Item item : chunk) {
+            projects.add(item.getProject());
+        }
+
+        try {
+            List<Long> ids = projectService.importProjects(idUser, idCloudUser, projects);
+
+            for (int i = 0; i < chunk.size(); i++) {
+                chunk.get(i).setId(ids.get(i));
+            }
+            imported = ids.size();
+        } catch (RuntimeException ex) {
+            LOG.error("Unable to import {} projects for user {}. {}", chunk.size(), idUser, ex.getMessage());
+
+            for (ProjectArchiveReader.Item item : chunk) {
+                item.setError("Unable to create the project");
+            }
+        }
+
+        for (ProjectArchiveReader.Item item : chunk) {
+            item.setProject(null);
+        }
+
+        chunk.clear();
+        return imported;
+    }
+
+}
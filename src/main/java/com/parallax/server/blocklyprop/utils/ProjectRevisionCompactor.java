@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.services.ProjectRevisionService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Periodically apply the project revision retention policy.
+ *
+ * The compaction works through the projects with revisions in small chunks,
+ * pausing between chunks to keep the load on the database low, and then
+ * waits for the next run.
+ */
+@Singleton
+public class ProjectRevisionCompactor {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectRevisionCompactor.class);
+
+    private final ProjectRevisionService projectRevisionService;
+
+    private final int chunkSize;
+    private final long pause;
+    private final long interval;
+
+    private Thread thread;
+
+
+    @Inject
+    public ProjectRevisionCompactor(
+            Configuration configuration,
+            ProjectRevisionService projectRevisionService) {
+
+        this.projectRevisionService = projectRevisionService;
+
+        chunkSize = configuration.getInt("project.revision.compaction.chunk", 100);
+        pause = configuration.getLong("project.revision.compaction.pause", 1000);
+        interval = TimeUnit.HOURS.toMillis(configuration.getLong("project.revision.compaction.interval", 24));
+
+        if (configuration.getBoolean("project.revision.enabled", true) && interval > 0) {
+            thread = new Thread(new Compaction(), "project-revision-compactor");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the compaction thread
+     */
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+
+    class Compaction implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(interval);
+                    compact();
+                }
+            } catch (InterruptedException ie) {
+                LOG.info("Project revision compaction interrupted");
+            }
+        }
+
+        private void compact() throws InterruptedException {
+            LOG.info("Compacting project revisions");
+
+            Long idAfter = 0L;
+            try {
+                while (idAfter != null) {
+                    idAfter = projectRevisionService.compactProjectRevisions(idAfter, chunkSize);
+
+                    if (idAfter != null && pause > 0) {
+                        Thread.sleep(pause);
+                    }
+                }
+
+                LOG.info("Project revision compaction complete");
+            } catch (InterruptedException ie) {
+                throw ie;
+            } catch (Exception ex) {
+                LOG.error("Project revision compaction failed after project {}. {}", idAfter, ex.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.ProjectRevision;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import com.parallax.server.blocklyprop.services.ProjectRevisionService;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Record project code revisions in the background.
+ *
+ * Saving project code only queues the saved code. A single background thread
+ * takes the queued saves and stores them as revisions in batches, so the
+ * delta computation and the revision writes are not part of the save request.
+ *
+ * Saves still queued when the application stops are recorded before it
+ * stops. When the queue is full, saves are not recorded as revisions. The
+ * number of saves skipped is available in the metrics registry as
+ * project.revision.dropped. A batch that cannot be recorded is recorded
+ * again one project at a time; saves of projects that still fail are counted
+ * as project.revision.failed.
+ */
+@Singleton
+public class ProjectRevisionRecorder {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectRevisionRecorder.class);
+
+    /**
+     * How often the recorder thread checks whether it is stopped
+     */
+    private static final long POLL_TIMEOUT = 1000;
+
+    /**
+     * How long a stop waits for the batch being recorded
+     */
+    private static final long STOP_TIMEOUT = 30000;
+
+    private final ProjectRevisionService projectRevisionService;
+
+    private final boolean enabled;
+    private final int batchSize;
+
+    private final BlockingQueue<ProjectRevision> queue;
+
+    private final Counter dropped;
+    private final Counter failed;
+
+    private volatile boolean running = true;
+
+    private Thread thread;
+
+
+    @Inject
+    public ProjectRevisionRecorder(
+            Configuration configuration,
+            ProjectRevisionService projectRevisionService) {
+
+        this.projectRevisionService = projectRevisionService;
+
+        enabled = configuration.getBoolean("project.revision.enabled", true);
+        batchSize = Math.max(1, configuration.getInt("project.revision.batch", 100));
+        queue = new LinkedBlockingQueue<>(configuration.getInt("project.revision.queue", 10000));
+
+        MetricRegistry metrics = Monitor.metrics();
+        dropped = metrics.counter(MetricRegistry.name("project", "revision", "dropped"));
+        failed = metrics.counter(MetricRegistry.name("project", "revision", "failed"));
+        metrics.register(MetricRegistry.name("project", "revision", "queued"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return queue.size();
+            }
+        });
+
+        if (enabled) {
+            thread = new Thread(new Recorder(), "project-revision-recorder");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queue saved project code to be recorded as a revision
+     *
+     * @param idProject
+     * @param code
+     */
+    public void record(Long idProject, String code) {
+        if (!enabled || idProject == null || code == null) {
+            return;
+        }
+
+        ProjectRevision saved = new ProjectRevision();
+        saved.setIdProject(idProject);
+        saved.setCode(code);
+        saved.setCreated(new GregorianCalendar());
+
+        if (!queue.offer(saved)) {
+            dropped.inc();
+            LOG.warn("Revision queue full, revision of project {} not recorded", idProject);
+        }
+    }
+
+    /**
+     * Stop the recorder thread and record the revisions still queued
+     */
+    public void stop() {
+        if (thread == null) {
+            return;
+        }
+
+        running = false;
+        try {
+            thread.join(STOP_TIMEOUT);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        LOG.info("Recording {} queued project revisions before shutdown", queue.size());
+        new Recorder().flush();
+    }
+
+
+    class Recorder implements Runnable {
+
+        private final List<ProjectRevision> batch = new ArrayList<>(batchSize);
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    ProjectRevision saved = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (saved == null) {
+                        continue;
+                    }
+
+                    batch.add(saved);
+                    queue.drainTo(batch, batchSize - 1);
+                    record();
+                } catch (InterruptedException ie) {
+                    LOG.info("Project revision recorder interrupted");
+                    return;
+                }
+            }
+        }
+
+        // Record everything queued, on the calling thread
+        void flush() {
+            while (queue.drainTo(batch, batchSize) > 0) {
+                record();
+            }
+        }
+
+        private void record() {
+            try {
+                projectRevisionService.recordRevisions(batch);
+            } catch (Exception ex) {
+                LOG.warn("Unable to record {} project revisions, recording them per project. {}",
+                        batch.size(), ex.getMessage());
+                recordPerProject();
+            }
+
+            batch.clear();
+        }
+
+        // Record the batch one project at a time, so a project that cannot
+        // be recorded does not take the other projects with it
+        private void recordPerProject() {
+            Map<Long, List<ProjectRevision>> projects = new LinkedHashMap<>();
+            for (ProjectRevision saved : batch) {
+                List<ProjectRevision> saves = projects.get(saved.getIdProject());
+                if (saves == null) {
+                    saves = new ArrayList<>();
+                    projects.put(saved.getIdProject(), saves);
+                }
+
+                saves.add(saved);
+            }
+
+            for (Map.Entry<Long, List<ProjectRevision>> project : projects.entrySet()) {
+                try {
+                    projectRevisionService.recordRevisions(project.getValue());
+                } catch (Exception ex) {
+                    failed.inc(project.getValue().size());
+                    LOG.error("Unable to record {} revisions of project {}. {}",
+                            project.getValue().size(), project.getKey(), ex.getMessage());
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import com.parallax.server.blocklyprop.security.BlocklyPropSessionDao;
+import com.parallax.server.blocklyprop.services.SessionService;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Periodically delete expired sessions from the session table.
+ *
+ * Shiro's session validation is disabled, as it loads every session and
+ * would run on each server, so expired sessions were never removed. The
+ * reaper deletes them in small batches, oldest first, pausing between
+ * batches to keep the load on the database low.
+ *
+ * A session is deleted session.reaper.grace seconds after it expired, which
+ * leaves time for last access times still queued by a session touch writer
+ * to be written. The grace is raised to at least one touch interval plus
+ * GRACE_MARGIN, as a shorter grace would delete sessions whose last access
+ * has not been written yet. Each batch holds a database lock, so servers running the
+ * reaper at the same time take turns instead of deleting the same sessions.
+ * A run ends when another server holds the lock.
+ */
+@Singleton
+public class SessionReaper {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SessionReaper.class);
+
+    /**
+     * Seconds allowed for a touch writer batch to reach the database
+     */
+    private static final long GRACE_MARGIN = 60;
+
+    private final SessionService sessionService;
+
+    private final int batchSize;
+    private final long pause;
+    private final long interval;
+    private final long grace;
+
+    private final Counter deleted;
+    private final Counter locked;
+    private final Timer batches;
+
+    private Thread thread;
+
+
+    @Inject
+    public SessionReaper(Configuration configuration, SessionService sessionService) {
+        this.sessionService = sessionService;
+
+        batchSize = configuration.getInt("session.reaper.batch", 500);
+        pause = configuration.getLong("session.reaper.pause", 1000);
+        interval = TimeUnit.MINUTES.toMillis(configuration.getLong("session.reaper.interval", 60));
+
+        long touchInterval = configuration.getLong("session.touch.interval", 60);
+        long configuredGrace = configuration.getLong("session.reaper.grace", 300);
+        long minimumGrace = touchInterval + GRACE_MARGIN;
+        if (configuredGrace < minimumGrace) {
+            LOG.warn("Session reaper grace of {} seconds is shorter than the session touch interval, using {} seconds",
+                    configuredGrace, minimumGrace);
+        }
+        grace = TimeUnit.SECONDS.toMillis(Math.max(configuredGrace, minimumGrace));
+
+        MetricRegistry metrics = Monitor.metrics();
+        deleted = metrics.counter(MetricRegistry.name("session", "reaper", "deleted"));
+        locked = metrics.counter(MetricRegistry.name("session", "reaper", "locked"));
+        batches = metrics.timer(MetricRegistry.name("session", "reaper", "batch"));
+
+        if (configuration.getBoolean("session.reaper.enabled", true) && interval > 0) {
+            thread = new Thread(new Reaping(), "session-reaper");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the reaper thread
+     */
+    public void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+
+    class Reaping implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(interval);
+                    reap();
+                }
+            } catch (InterruptedException ie) {
+                LOG.info("Session reaping interrupted");
+            }
+        }
+
+        private void reap() throws InterruptedException {
+            long now = System.currentTimeMillis();
+            Timestamp expiredBefore = new Timestamp(now - grace);
+
+            // Every session gets the same timeout, so no session last
+            // accessed after this has expired
+            Timestamp idleBefore = new Timestamp(now - grace - BlocklyPropSessionDao.SESSION_TIMEOUT);
+
+            int total = 0;
+            try {
+                while (true) {
+                    Integer count;
+
+                    Timer.Context timer = batches.time();
+                    try {
+                        count = sessionService.reapExpiredSessions(expiredBefore, idleBefore, batchSize);
+                    } finally {
+                        timer.stop();
+                    }
+
+                    if (count == null) {
+                        LOG.debug("Session reaping left to another server");
+                        locked.inc();
+                        break;
+                    }
+
+                    total += count;
+                    deleted.inc(count);
+
+                    if (count < batchSize) {
+                        break;
+                    }
+
+                    if (pause > 0) {
+                        Thread.sleep(pause);
+                    }
+                }
+
+                LOG.info("Deleted {} expired sessions", total);
+            } catch (InterruptedException ie) {
+                throw ie;
+            } catch (Exception ex) {
+                LOG.error("Session reaping failed after {} sessions. {}", total, ex.getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.parallax.server.blocklyprop.utils;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.parallax.server.blocklyprop.db.generated.Tables;
+import com.parallax.server.blocklyprop.db.generated.tables.records.SessionRecord;
+import com.parallax.server.blocklyprop.monitoring.Monitor;
+import com.parallax.server.blocklyprop.services.SessionService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Coalesce session updates that only change the last access time.
+ *
+ * Shiro updates the session on every request, if only to record the time it
+ * was last accessed. An update that leaves everything but the last access
+ * time as it was last read or written is queued here instead of being
+ * written. A background thread writes the queued access times every
+ * session.touch.interval seconds, in one batch of updates of the last access
+ * time alone, so a session is written at most once per interval unless its
+ * attributes change.
+ *
+ * An update that does change the session leaves the attributes column out
+ * when the attributes are the ones last read or written. They are most of
+ * the size of a session row and rarely change.
+ *
+ * Access times still queued when the application stops are written before
+ * it stops.
+ */
+@Singleton
+public class SessionTouchWriter {
+
+    /**
+     * Application logging facility
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SessionTouchWriter.class);
+
+    /**
+     * Sessions written per transaction
+     */
+    private static final int BATCH_SIZE = 500;
+
+    // The touch writer used by the Shiro session DAO, which is not created
+    // by Guice
+    private static SessionTouchWriter sessionTouchWriter;
+
+    private final SessionService sessionService;
+
+    private final boolean enabled;
+
+    /**
+     * The session values last read from or written to the session table
+     */
+    private final Cache<String, Written> written;
+
+    /**
+     * Last access times waiting to be written
+     */
+    private final ConcurrentMap<String, Timestamp> pending = new ConcurrentHashMap<>();
+
+    private final Meter coalesced;
+    private final Counter flushed;
+    private final Meter skipped;
+    private final Counter skippedBytes;
+
+    private final long interval;
+
+    private ScheduledExecutorService executor;
+
+
+    @Inject
+    public SessionTouchWriter(Configuration configuration, SessionService sessionService) {
+        this.sessionService = sessionService;
+
+        enabled = configuration.getBoolean("session.touch.enabled", true);
+        interval = configuration.getLong("session.touch.interval", 60);
+        long maxSessions = configuration.getLong("session.touch.maxsessions", 10000);
+
+        written = CacheBuilder.newBuilder()
+                .maximumSize(maxSessions)
+                .expireAfterAccess(1, TimeUnit.DAYS)
+                .build();
+
+        MetricRegistry metrics = Monitor.metrics();
+        coalesced = metrics.meter(MetricRegistry.name("session", "touch", "coalesced"));
+        flushed = metrics.counter(MetricRegistry.name("session", "touch", "written"));
+        skipped = metrics.meter(MetricRegistry.name("session", "attributes", "skipped"));
+        skippedBytes = metrics.counter(MetricRegistry.name("session", "attributes", "skipped", "bytes"));
+        metrics.register(MetricRegistry.name("session", "touch", "pending"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return pending.size();
+            }
+        });
+
+        if (enabled) {
+            LOG.info("Session touch coalescing enabled, interval: {} seconds", interval);
+
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "session-touch-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            executor.scheduleWithFixedDelay(new Writer(), interval, interval, TimeUnit.SECONDS);
+        }
+
+        sessionTouchWriter = this;
+    }
+
+    /**
+     * The touch writer, or null before the application is configured
+     *
+     * @return
+     */
+    public static SessionTouchWriter getSessionTouchWriter() {
+        return sessionTouchWriter;
+    }
+
+    /**
+     * Record the values of a session as read from or written to the session
+     * table. A queued access time of the session is no longer needed.
+     *
+     * @param session
+     */
+    public void written(SessionRecord session) {
+        if (!enabled || session == null || session.getIdsession() == null) {
+            return;
+        }
+
+        pending.remove(session.getIdsession());
+        written.put(session.getIdsession(), new Written(session));
+    }
+
+    /**
+     * Queue the last access time of a session, if that is all that changed
+     *
+     * @param session the session to update
+     * @return true if the update was queued, false if it must be written
+     */
+    public boolean touch(SessionRecord session) {
+        if (!enabled || session.getIdsession() == null || session.getLastaccesstime() == null) {
+            return false;
+        }
+
+        Written last = written.getIfPresent(session.getIdsession());
+        if (last == null || !last.isTouch(session)) {
+            return false;
+        }
+
+        pending.put(session.getIdsession(), session.getLastaccesstime());
+        coalesced.mark();
+        return true;
+    }
+
+    /**
+     * Leave the attributes out of the update of a session if they are the
+     * attributes last read or written
+     *
+     * @param session the session to update
+     * @return true if the attributes are left out
+     */
+    public boolean skipUnchangedAttributes(SessionRecord session) {
+        if (!enabled || session.getIdsession() == null || session.getAttributes() == null) {
+            return false;
+        }
+
+        Written last = written.getIfPresent(session.getIdsession());
+        if (last == null || !last.hasAttributes(session.getAttributes())) {
+            return false;
+        }
+
+        session.changed(Tables.SESSION.ATTRIBUTES, false);
+        skipped.mark();
+        skippedBytes.inc(session.getAttributes().length);
+        return true;
+    }
+
+    /**
+     * Stop the writer thread and write all queued access times
+     */
+    public void stop() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(interval, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        LOG.info("Writing the access time of {} sessions before shutdown", pending.size());
+        new Writer().run();
+    }
+
+    /**
+     * Forget a deleted session
+     *
+     * @param idSession
+     */
+    public void removed(String idSession) {
+        if (idSession != null) {
+            pending.remove(idSession);
+            written.invalidate(idSession);
+        }
+    }
+
+
+    class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            Map<String, Timestamp> batch = new HashMap<>();
+
+            for (Map.Entry<String, Timestamp> touch : pending.entrySet()) {
+                if (pending.remove(touch.getKey(), touch.getValue())) {
+                    batch.put(touch.getKey(), touch.getValue());
+                }
+
+                if (batch.size() >= BATCH_SIZE) {
+                    write(batch);
+                    batch.clear();
+                }
+            }
+
+            write(batch);
+        }
+
+        private void write(Map<String, Timestamp> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                sessionService.touchSessions(batch);
+                flushed.inc(batch.size());
+            } catch (Exception ex) {
+                LOG.warn("Unable to write the access time of {} sessions. {}", batch.size(), ex.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Session values other than the last access time. The serialized
+     * attributes are kept as their length and SHA-256 digest only.
+     */
+    static class Written {
+
+        private final Timestamp startTimestamp;
+        private final Long timeout;
+        private final String host;
+        private final int attributesLength;
+        private final byte[] attributesDigest;
+
+        Written(SessionRecord session) {
+            startTimestamp = session.getStarttimestamp();
+            timeout = session.getTimeout();
+            host = session.getHost();
+
+            byte[] attributes = session.getAttributes();
+            attributesLength = attributes == null ? -1 : attributes.length;
+            attributesDigest = attributes == null ? null : digest(attributes);
+        }
+
+        // Attributes are compared serialized, which also catches attribute
+        // values changed in place
+        boolean isTouch(SessionRecord session) {
+            return Objects.equals(startTimestamp, session.getStarttimestamp())
+                    && Objects.equals(timeout, session.getTimeout())
+                    && Objects.equals(host, session.getHost())
+                    && hasAttributes(session.getAttributes());
+        }
+
+        boolean hasAttributes(byte[] attributes) {
+            if (attributes == null || attributesDigest == null) {
+                return attributes == null && attributesDigest == null;
+            }
+
+            return attributes.length == attributesLength
+                    && MessageDigest.isEqual(attributesDigest, digest(attributes));
+        }
+
+        private static byte[] digest(byte[] attributes) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(attributes);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("SHA-256 is not available", ex);
+            }
+        }
+    }
+
+}
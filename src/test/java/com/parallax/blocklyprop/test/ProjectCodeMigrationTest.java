@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2018 Parallax Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the “Software”), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.parallax.blocklyprop.test;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.util.EventReaderDelegate;
+
+import com.parallax.server.blocklyprop.db.enums.ProjectType;
+import com.parallax.server.blocklyprop.db.utils.LiteralRewriter;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeMigration;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeMigrationStep;
+import com.parallax.server.blocklyprop.db.utils.ProjectCodeMigrations;
+import com.parallax.server.blocklyprop.db.utils.TokenFilter;
+
+
+/**
+ * Test the deprecated block migration against a corpus of project code.
+ *
+ * Each file in /migration has an expected.xml counterpart holding the code
+ * produced by the original chain of replaceAll() calls, with the block id
+ * generator fixed to BLOCK_ID. Files starting with spin- are Spin projects,
+ * all others are PropC projects.
+ */
+public class ProjectCodeMigrationTest {
+
+    private static final String BLOCK_ID = "0123456789abcdefghij";
+
+    private static final String[] CORPUS = {
+        "propc-current",
+        "propc-operators",
+        "propc-ramping-present",
+        "propc-unicode",
+        "spin-integer",
+        "spin-legacy",
+        "spin-math-number",
+        "spin-timescale"
+    };
+
+    private static final Supplier<String> BLOCK_IDS = new Supplier<String>() {
+        @Override
+        public String get() {
+            return BLOCK_ID;
+        }
+    };
+
+    @Test
+    public void verifyCorpus() throws IOException {
+        for (String name : CORPUS) {
+            ProjectType type = name.startsWith("spin-") ? ProjectType.SPIN : ProjectType.PROPC;
+
+            String code = read(name + ".xml");
+            String expected = read(name + ".expected.xml");
+
+            assertEquals(
+                    "Migrated code of " + name + " must match the original migration.",
+                    expected,
+                    ProjectCodeMigration.migrate(code, type, BLOCK_IDS));
+
+            // Migrating twice must reuse the buffers cleanly
+            assertEquals(
+                    "Second migration of " + name + " must give the same code.",
+                    expected,
+                    ProjectCodeMigration.migrate(code, type, BLOCK_IDS));
+        }
+    }
+
+    @Test
+    public void verifyUnchangedCodeIsReturned() throws IOException {
+        String code = read("propc-current.xml");
+
+        assertSame(
+                "Code without deprecated blocks should be returned as is.",
+                code,
+                ProjectCodeMigration.migrate(code, ProjectType.PROPC, BLOCK_IDS));
+    }
+
+    @Test
+    public void verifyScreenMatchesMigration() throws IOException {
+        for (String name : CORPUS) {
+            ProjectType type = name.startsWith("spin-") ? ProjectType.SPIN : ProjectType.PROPC;
+            String code = read(name + ".xml");
+
+            assertEquals(
+                    "Screening of " + name + " must agree with the migration.",
+                    ProjectCodeMigration.migrate(code, type, BLOCK_IDS) != code,
+                    ProjectCodeMigration.mayChange(code, type));
+        }
+    }
+
+    @Test
+    public void verifyTokenScreen() {
+        TokenFilter filter = new TokenFilter(Arrays.asList("field name=\"OP\">ADD</field", "_000 / ", "ab"));
+
+        assertTrue(filter.foundIn("ab"));
+        assertTrue(filter.foundIn("xab"));
+        assertTrue(filter.foundIn("xxab"));
+        assertTrue(filter.foundIn("<field name=\"OP\">ADD</field>"));
+        assertTrue(filter.foundIn("x1_000 / 2"));
+        assertTrue(filter.foundIn("_000 / "));
+
+        assertFalse(filter.foundIn(""));
+        assertFalse(filter.foundIn("a"));
+        assertFalse(filter.foundIn("a b"));
+        assertFalse(filter.foundIn("<field name=\"OP\">AND</field>"));
+        assertFalse(filter.foundIn("_000 /"));
+    }
+
+    @Test
+    public void verifyStandardSteps() throws IOException {
+        for (String name : CORPUS) {
+            ProjectType type = name.startsWith("spin-") ? ProjectType.SPIN : ProjectType.PROPC;
+            String code = read(name + ".xml");
+
+            assertEquals(
+                    "Migrated code of " + name + " must match the original migration.",
+                    read(name + ".expected.xml"),
+                    ProjectCodeMigrations.standard().migrate(code, type, (short) 0, BLOCK_IDS));
+
+            assertSame(
+                    "Code of the current block version should be returned as is.",
+                    code,
+                    ProjectCodeMigrations.standard().migrate(
+                            code, type, ProjectCodeMigrations.CURRENT_VERSION, BLOCK_IDS));
+        }
+    }
+
+    @Test
+    public void verifyStepsAfterStoredVersion() {
+        ProjectCodeMigrations migrations = new ProjectCodeMigrations(
+                Arrays.<ProjectCodeMigrationStep>asList(
+                        new RenameBlock((short) 3, "renamed", "current"),
+                        new ProjectCodeMigrationStep.Text((short) 1) {
+                            @Override
+                            public String migrate(String code, ProjectType type, Supplier<String> blockIds) {
+                                return code.replace("\"legacy\"", "\"deprecated\"");
+                            }
+                        },
+                        new RenameBlock((short) 2, "deprecated", "renamed")));
+
+        assertEquals(3, migrations.getCurrentVersion());
+
+        String legacy = "<xml xmlns=\"http://www.w3.org/1999/xhtml\">"
+                + "<block type=\"legacy\"><field name=\"N\">5 &lt; 6</field></block>"
+                + "</xml>";
+        String current = "<xml xmlns=\"http://www.w3.org/1999/xhtml\">"
+                + "<block type=\"current\"><field name=\"N\">5 &lt; 6</field></block>"
+                + "</xml>";
+
+        assertEquals(current, migrations.migrate(legacy, ProjectType.PROPC, (short) 0, BLOCK_IDS));
+
+        // Steps up to the stored version have already been applied
+        assertSame(legacy, migrations.migrate(legacy, ProjectType.PROPC, (short) 1, BLOCK_IDS));
+        assertSame(legacy, migrations.migrate(legacy, ProjectType.PROPC, (short) 3, BLOCK_IDS));
+
+        String renamed = legacy.replace("legacy", "renamed");
+        assertEquals(current, migrations.migrate(renamed, ProjectType.PROPC, (short) 2, BLOCK_IDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verifyDuplicateVersionsAreRejected() {
+        new ProjectCodeMigrations(Arrays.<ProjectCodeMigrationStep>asList(
+                new RenameBlock((short) 2, "a", "b"),
+                new RenameBlock((short) 2, "b", "c")));
+    }
+
+    @Test
+    public void verifyRewriteAtBoundaries() {
+        Map<String, String> rules = new LinkedHashMap<>();
+        rules.put("abc", "X");
+        rules.put("bcd", "Y");
+        rules.put("ca", "");
+        LiteralRewriter rewriter = new LiteralRewriter(rules);
+
+        StringBuilder out = new StringBuilder();
+        assertEquals(3, rewriter.rewrite("abcdbcdcab", out));
+        assertEquals("XdYb", out.toString());
+
+        out.setLength(0);
+        assertEquals(0, rewriter.rewrite("ab bc cd", out));
+        assertEquals("", out.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void verifyNestedPatternsAreRejected() {
+        Map<String, String> rules = new LinkedHashMap<>();
+        rules.put("field name=\"OP\">AND</field", "&amp;&amp;");
+        rules.put("AND", "&amp;");
+
+        new LiteralRewriter(rules);
+    }
+
+
+    /**
+     * Rename a block type, as a streaming XML step
+     */
+    private static class RenameBlock extends ProjectCodeMigrationStep.Xml {
+
+        private static final XMLEventFactory EVENTS = XMLEventFactory.newInstance();
+
+        private static final QName TYPE = new QName("type");
+
+        private final String from;
+        private final String to;
+
+        RenameBlock(short version, String from, String to) {
+            super(version);
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean appliesTo(String code, ProjectType type) {
+            return code.contains("block type=\"" + from + "\"");
+        }
+
+        @Override
+        public XMLEventReader filter(XMLEventReader events, ProjectType type, Supplier<String> blockIds) {
+            return new EventReaderDelegate(events) {
+                @Override
+                public XMLEvent nextEvent() throws XMLStreamException {
+                    return rename(super.nextEvent());
+                }
+
+                @Override
+                public Object next() {
+                    return rename((XMLEvent) super.next());
+                }
+            };
+        }
+
+        private XMLEvent rename(XMLEvent event) {
+            if (!event.isStartElement()) {
+                return event;
+            }
+
+            StartElement element = event.asStartElement();
+            Attribute blockType = element.getAttributeByName(TYPE);
+            if (blockType == null || !from.equals(blockType.getValue())) {
+                return event;
+            }
+
+            List<Attribute> attributes = new ArrayList<>();
+            for (Iterator<?> i = element.getAttributes(); i.hasNext();) {
+                Attribute attribute = (Attribute) i.next();
+                attributes.add(attribute == blockType ? EVENTS.createAttribute(TYPE, to) : attribute);
+            }
+
+            return EVENTS.createStartElement(
+                    element.getName(), attributes.iterator(), element.getNamespaces());
+        }
+    }
+
+    private static String read(String name) throws IOException {
+        InputStream in = ProjectCodeMigrationTest.class.getResourceAsStream("/migration/" + name);
+        assertNotNull("Missing corpus file " + name, in);
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
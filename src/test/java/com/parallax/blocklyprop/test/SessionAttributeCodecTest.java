@@ -0,0 +1,156 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.parallax.blocklyprop.test;
+
+import static  org.junit.Assert.*;
+import org.junit.Test;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.parallax.client.cloudsession.objects.User;
+import com.parallax.server.blocklyprop.SessionData;
+import com.parallax.server.blocklyprop.db.utils.SessionAttributeCodec;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.support.DefaultSubjectContext;
+
+
+/**
+ *
+ * Test the compact encoding of the SessionAttributeCodec class.
+ */
+public class SessionAttributeCodecTest {
+
+    private static final String SESSION_DATA_KEY =
+            "Key[type=com.parallax.server.blocklyprop.SessionData, annotation=[none]]";
+
+    @Test
+    public void verifySessionDataRoundTrip() {
+        HashMap<Object, Object> attributes = new HashMap<>();
+        attributes.put(SESSION_DATA_KEY, sessionData());
+
+        SessionData decoded = (SessionData) roundTrip(attributes).get(SESSION_DATA_KEY);
+
+        assertEquals("Session user id must survive encoding", Long.valueOf(42), decoded.getIdUser());
+        assertEquals("Session locale must survive encoding", "en", decoded.getLocale());
+        assertEquals("Session user must survive encoding",
+                "robotics-club-42", decoded.getUser().getScreenname());
+    }
+
+    @Test
+    public void verifyUserRoundTrip() {
+        HashMap<Object, Object> attributes = new HashMap<>();
+        attributes.put("user", user());
+
+        User decoded = (User) roundTrip(attributes).get("user");
+
+        assertEquals("User id must survive encoding", Long.valueOf(42), decoded.getId());
+        assertEquals("User email must survive encoding", "user42@example.com", decoded.getEmail());
+        assertEquals("User screen name must survive encoding", "robotics-club-42", decoded.getScreenname());
+        assertEquals("User locale must survive encoding", "en", decoded.getLocale());
+    }
+
+    @Test
+    public void verifyPrincipalsRoundTrip() {
+        HashMap<Object, Object> attributes = new HashMap<>();
+        attributes.put(DefaultSubjectContext.PRINCIPALS_SESSION_KEY,
+                new SimplePrincipalCollection("user42@example.com", "CloudSession"));
+        attributes.put(DefaultSubjectContext.AUTHENTICATED_SESSION_KEY, Boolean.TRUE);
+        attributes.put("count", 7);
+        attributes.put("timestamp", 1530403200000L);
+        attributes.put("empty", null);
+
+        assertEquals("Principals and simple values must survive encoding",
+                attributes, roundTrip(attributes));
+    }
+
+    @Test
+    public void verifyJavaSerializedRowDecodes() {
+        HashMap<Object, Object> attributes = new HashMap<>();
+        attributes.put(DefaultSubjectContext.AUTHENTICATED_SESSION_KEY, Boolean.TRUE);
+        attributes.put("locale", "en");
+
+        byte[] legacy = SerializationUtils.serialize(attributes);
+
+        assertEquals("Rows written with Java serialization must still decode",
+                attributes, compactCodec().decode(legacy));
+    }
+
+    @Test
+    public void verifyTruncatedEncodingRejected() {
+        SessionAttributeCodec codec = compactCodec();
+        byte[] encoded = codec.encode(sessionAttributes());
+
+        for (int length = 1; length < encoded.length; length++) {
+            try {
+                codec.decode(Arrays.copyOf(encoded, length));
+                fail("Encoding truncated to " + length + " bytes must be rejected");
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void verifyChangedSchemaRejected() {
+        SessionAttributeCodec codec = compactCodec();
+
+        // A null key keeps the layout fixed: codec, count, key tag, object tag, type index, schema hash
+        HashMap<Object, Object> attributes = new HashMap<>();
+        attributes.put(null, sessionData());
+        byte[] encoded = codec.encode(attributes);
+        encoded[5] ^= 0x01;
+
+        try {
+            codec.decode(encoded);
+            fail("Encoding of a changed type must be rejected");
+        } catch (IllegalArgumentException ex) {
+            assertTrue("Rejection must name the changed type", ex.getMessage().contains("has changed"));
+        }
+    }
+
+
+    private static SessionAttributeCodec compactCodec() {
+        BaseConfiguration configuration = new BaseConfiguration();
+        configuration.setProperty("session.attributes.codec", "compact");
+        return new SessionAttributeCodec(configuration);
+    }
+
+    private static HashMap<Object, Object> roundTrip(Map<Object, Object> attributes) {
+        SessionAttributeCodec codec = compactCodec();
+        byte[] encoded = codec.encode(attributes);
+        assertEquals("Compact encoding must be selected", SessionAttributeCodec.CODEC_COMPACT, encoded[0]);
+        return codec.decode(encoded);
+    }
+
+    private static HashMap<Object, Object> sessionAttributes() {
+        HashMap<Object, Object> attributes = new HashMap<>();
+        attributes.put(DefaultSubjectContext.PRINCIPALS_SESSION_KEY,
+                new SimplePrincipalCollection("user42@example.com", "CloudSession"));
+        attributes.put(DefaultSubjectContext.AUTHENTICATED_SESSION_KEY, Boolean.TRUE);
+        attributes.put(SESSION_DATA_KEY, sessionData());
+        return attributes;
+    }
+
+    private static SessionData sessionData() {
+        SessionData sessionData = new SessionData();
+        sessionData.setUser(user());
+        sessionData.setIdUser(42L);
+        sessionData.setLocale("en");
+        return sessionData;
+    }
+
+    private static User user() {
+        User user = new User();
+        user.setId(42L);
+        user.setEmail("user42@example.com");
+        user.setScreenname("robotics-club-42");
+        user.setLocale("en");
+        return user;
+    }
+}